@@ -0,0 +1,202 @@
+package umm3601;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.LongStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * A closed-loop load test comparing the server's thread modes (see
+ * `Server.ThreadMode`). For each mode it starts the server in its own JVM
+ * (so the server and the clients don't compete for the same threads), and
+ * then for each level of concurrency runs that many clients (each sending
+ * a request, waiting for the response, and immediately sending the next)
+ * for a fixed time, and reports the throughput and latency percentiles.
+ * <p>
+ * Run it with `./gradlew loadTest`, optionally passing the concurrency
+ * levels, the number of seconds to run each one, and the request path,
+ * e.g., `-PloadTestArgs="1000,10000 20 /api/todos?owner=Fry"`. The results
+ * are also written as JSON to `build/reports/loadtest/results.json`. At
+ * high concurrency the client machine may need a higher open file limit
+ * (`ulimit -n`); failed requests are counted as errors.
+ */
+public final class LoadTest {
+  private static final String DEFAULT_CONCURRENCY = "1000,10000";
+  private static final int DEFAULT_SECONDS = 10;
+  private static final String DEFAULT_PATH = "/api/todos?owner=Fry&limit=20";
+  // The port `Server` listens on, which must be free.
+  private static final int SERVER_PORT = 4567;
+  private static final int STARTUP_TIMEOUT_SECONDS = 60;
+  private static final int STARTUP_POLL_MILLIS = 100;
+  private static final String RESULTS_FILE = "build/reports/loadtest/results.json";
+  private static final int HTTP_OK = 200;
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double P50 = 0.50;
+  private static final double P99 = 0.99;
+  private static final double P999 = 0.999;
+
+  private LoadTest() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    int[] concurrencies = Arrays.stream((args.length > 0 ? args[0] : DEFAULT_CONCURRENCY).split(","))
+      .mapToInt(Integer::parseInt)
+      .toArray();
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_SECONDS;
+    String path = args.length > 2 ? args[2] : DEFAULT_PATH;
+
+    List<Map<String, Object>> results = new ArrayList<>();
+    System.out.printf("%-8s %11s %10s %8s %12s %9s %9s %9s%n",
+      "mode", "concurrency", "requests", "errors", "requests/s", "p50 ms", "p99 ms", "p99.9 ms");
+    for (Server.ThreadMode mode : Server.ThreadMode.values()) {
+      Process server = startServer(mode);
+      try {
+        URI uri = URI.create("http://localhost:" + SERVER_PORT + path);
+        awaitServer(uri);
+        for (int concurrency : concurrencies) {
+          // A warm-up run of the same length, so the JIT, the server's
+          // threads and the connections are all warmed up before measuring.
+          run(uri, concurrency, seconds);
+          Map<String, Object> result = run(uri, concurrency, seconds);
+          result.put("mode", mode.name().toLowerCase());
+          results.add(result);
+          System.out.printf("%-8s %11d %10d %8d %12.0f %9.2f %9.2f %9.2f%n",
+            result.get("mode"), concurrency, result.get("requests"), result.get("errors"),
+            result.get("requestsPerSecond"), result.get("p50Millis"), result.get("p99Millis"),
+            result.get("p999Millis"));
+        }
+      } finally {
+        server.destroy();
+        server.waitFor();
+      }
+    }
+    File resultsFile = new File(RESULTS_FILE);
+    resultsFile.getParentFile().mkdirs();
+    new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(resultsFile, results);
+  }
+
+  /**
+   * Start the server (`Main`) in a new JVM with the same classpath, running
+   * requests in the given mode.
+   */
+  private static Process startServer(Server.ThreadMode mode) throws IOException {
+    String java = ProcessHandle.current().info().command().orElse("java");
+    return new ProcessBuilder(java,
+        "-cp", System.getProperty("java.class.path"),
+        "-D" + Main.THREAD_MODE_PROPERTY + "=" + mode.name().toLowerCase(Locale.ROOT),
+        Main.class.getName())
+      .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+      .redirectError(ProcessBuilder.Redirect.DISCARD)
+      .start();
+  }
+
+  // Wait until the server answers requests.
+  private static void awaitServer(URI uri) throws IOException, InterruptedException {
+    HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+    long deadline = System.nanoTime() + STARTUP_TIMEOUT_SECONDS * (long) NANOS_PER_SECOND;
+    try (HttpClient client = HttpClient.newHttpClient()) {
+      while (true) {
+        try {
+          client.send(request, HttpResponse.BodyHandlers.discarding());
+          return;
+        } catch (IOException e) {
+          if (System.nanoTime() > deadline) {
+            throw new IOException("The server didn't start", e);
+          }
+          Thread.sleep(STARTUP_POLL_MILLIS);
+        }
+      }
+    }
+  }
+
+  /**
+   * Run `concurrency` clients against the server for the given time.
+   *
+   * @return the number of requests and errors, the throughput, and the
+   *   latency percentiles
+   */
+  private static Map<String, Object> run(URI uri, int concurrency, int seconds)
+      throws InterruptedException, ExecutionException {
+    HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+    long start = System.nanoTime();
+    long deadline = start + seconds * (long) NANOS_PER_SECOND;
+    List<Future<long[]>> clients = new ArrayList<>();
+    long errors = 0;
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient client = HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_1_1)
+          .executor(executor)
+          .build()) {
+      for (int i = 0; i < concurrency; i++) {
+        clients.add(executor.submit(() -> runClient(client, request, deadline)));
+      }
+      LongStream.Builder latencies = LongStream.builder();
+      for (Future<long[]> future : clients) {
+        long[] clientLatencies = future.get();
+        // Failed requests are recorded as negative latencies.
+        for (long latency : clientLatencies) {
+          if (latency < 0) {
+            errors++;
+          } else {
+            latencies.add(latency);
+          }
+        }
+      }
+      double elapsed = (System.nanoTime() - start) / NANOS_PER_SECOND;
+      long[] sorted = latencies.build().sorted().toArray();
+
+      Map<String, Object> result = new LinkedHashMap<>();
+      result.put("concurrency", concurrency);
+      result.put("seconds", seconds);
+      result.put("requests", (long) sorted.length);
+      result.put("errors", errors);
+      result.put("requestsPerSecond", sorted.length / elapsed);
+      result.put("p50Millis", percentile(sorted, P50));
+      result.put("p99Millis", percentile(sorted, P99));
+      result.put("p999Millis", percentile(sorted, P999));
+      return result;
+    }
+  }
+
+  private static long[] runClient(HttpClient client, HttpRequest request, long deadline) {
+    LongStream.Builder latencies = LongStream.builder();
+    while (System.nanoTime() < deadline) {
+      long sent = System.nanoTime();
+      try {
+        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+        long latency = System.nanoTime() - sent;
+        latencies.add(response.statusCode() == HTTP_OK ? latency : -1);
+      } catch (IOException e) {
+        latencies.add(-1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return latencies.build().toArray();
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return Double.NaN;
+    }
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+    return sorted[Math.max(0, index)] / NANOS_PER_MILLI;
+  }
+}
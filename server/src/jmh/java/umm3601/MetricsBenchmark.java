@@ -0,0 +1,66 @@
+package umm3601;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.javalin.http.HandlerType;
+
+/**
+ * Benchmarks of the overhead `Metrics` adds to each request (recording
+ * its latency, from one thread and from several recording into the same
+ * histogram at once), and of scraping the metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"MagicNumber"})
+public class MetricsBenchmark {
+  private static final String[] ROUTES = {"/api/todos", "/api/todos/{id}", "/api/users", "/api/users/{id}"};
+
+  private Metrics metrics;
+  private long nanos;
+
+  @Setup
+  public void setUp() {
+    metrics = new Metrics();
+    metrics.addJvmMetrics();
+    // As if the server had been running a while.
+    for (int i = 0; i < 100_000; i++) {
+      metrics.recordRequest(HandlerType.GET, ROUTES[i % ROUTES.length], i % 10 == 0 ? 404 : 200, i * 100L);
+    }
+  }
+
+  @Benchmark
+  public void recordRequest() {
+    nanos = (nanos + 977) % 50_000_000;
+    metrics.recordRequest(HandlerType.GET, "/api/todos/{id}", 200, nanos);
+  }
+
+  // The latencies needn't be exact, so races on `nanos` are fine.
+  @Benchmark
+  @Threads(4)
+  public void concurrentRecordRequests() {
+    nanos = (nanos + 977) % 50_000_000;
+    metrics.recordRequest(HandlerType.GET, "/api/todos/{id}", 200, nanos);
+  }
+
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public String scrape() {
+    return metrics.scrape();
+  }
+}
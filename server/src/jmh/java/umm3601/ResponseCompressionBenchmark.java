@@ -0,0 +1,88 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todo.Todo;
+
+/**
+ * Benchmarks of the server-side cost of producing a list of todos: just
+ * serializing it (as sent uncompressed), serializing and gzipping it on
+ * the fly (as Javalin does for uncached responses), and fetching the
+ * pre-compressed response from the `ResponseCache`.
+ * <p>
+ * The setup also prints how many bytes each way of sending the list puts
+ * on the wire.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class ResponseCompressionBenchmark {
+  private static final long SEED = 3601;
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  @Param({"100", "1000"})
+  public int size;
+
+  private Todo[] todos;
+  private ResponseCache cache;
+  private Map<String, List<String>> queryParams;
+
+  @Setup
+  public void setUp() throws IOException {
+    todos = SyntheticData.todos(size, SEED);
+    queryParams = SyntheticData.queryParams("limit=" + size);
+    cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    cache.put(1, queryParams, ResponseCache.Entry.of(todos, null));
+
+    byte[] json = OBJECT_MAPPER.writeValueAsBytes(todos);
+    System.out.printf("%n%d todos: %d bytes of JSON, %d gzipped on the fly, %d pre-compressed%n",
+      size, json.length, gzipOnTheFly(json).length, Compression.gzip(json).length);
+  }
+
+  // Gzip the way Javalin does, at its default level.
+  private static byte[] gzipOnTheFly(byte[] bytes) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(bytes);
+    }
+    return compressed.toByteArray();
+  }
+
+  @Benchmark
+  public byte[] serialize() throws IOException {
+    return OBJECT_MAPPER.writeValueAsBytes(todos);
+  }
+
+  @Benchmark
+  public byte[] serializeAndGzip() throws IOException {
+    return gzipOnTheFly(OBJECT_MAPPER.writeValueAsBytes(todos));
+  }
+
+  @Benchmark
+  public ResponseCache.Entry cached() {
+    return cache.get(1, queryParams);
+  }
+}
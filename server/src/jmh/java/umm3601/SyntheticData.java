@@ -0,0 +1,152 @@
+package umm3601;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import umm3601.todo.Todo;
+import umm3601.user.User;
+
+/**
+ * Generates synthetic todos and users that look like the ones in
+ * `todos.json` and `users.json` (the same owners, categories, companies
+ * and lorem ipsum bodies, in roughly the same proportions), but in any
+ * quantity, for the benchmarks.
+ * <p>
+ * The data only depends on the count and the seed, so every run of a
+ * benchmark sees exactly the same data.
+ */
+public final class SyntheticData {
+  public static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Dawn", "Workman", "Roberta"};
+  public static final String[] CATEGORIES = {"software design", "video games", "homework", "groceries"};
+  public static final String[] COMPANIES = {"OHMNET", "NIQUENT", "IBM", "FRENEX", "UMM", "CONJURICA"};
+  public static final String[] WORDS = {
+    "lorem", "ipsum", "dolor", "sit", "amet", "consectetur", "adipisicing", "elit", "sed", "do",
+    "eiusmod", "tempor", "incididunt", "ut", "labore", "et", "dolore", "magna", "aliqua", "enim",
+    "ad", "minim", "veniam", "quis", "nostrud", "exercitation", "ullamco", "laboris", "nisi",
+    "aliquip", "ex", "ea", "commodo", "consequat", "duis", "aute", "irure", "in", "voluptate",
+    "velit", "esse", "cillum", "eu", "fugiat", "nulla", "pariatur", "excepteur", "sint",
+    "occaecat", "cupidatat", "non", "proident", "sunt", "culpa", "qui", "officia", "deserunt",
+    "mollit", "anim", "id", "est", "laborum"
+  };
+  private static final String[] FIRST_NAMES = {"Connie", "Lynn", "Roseann", "Leta", "Kitty", "Marie", "Sherri"};
+  private static final String[] LAST_NAMES = {"Stewart", "Ferguson", "Roberson", "Jones", "Page", "Barrera"};
+  private static final int ID_BYTES = 12;
+  private static final int MIN_WORDS = 8;
+  private static final int MAX_WORDS = 24;
+  private static final int MIN_AGE = 18;
+  private static final int MAX_AGE = 60;
+
+  private SyntheticData() {
+  }
+
+  // A random 24 hex digit id, like a MongoDB object id.
+  private static String id(Random random) {
+    byte[] bytes = new byte[ID_BYTES];
+    random.nextBytes(bytes);
+    return HexFormat.of().formatHex(bytes);
+  }
+
+  private static String body(Random random) {
+    StringBuilder body = new StringBuilder();
+    int words = MIN_WORDS + random.nextInt(MAX_WORDS - MIN_WORDS);
+    for (int i = 0; i < words; i++) {
+      String word = WORDS[random.nextInt(WORDS.length)];
+      if (i == 0) {
+        body.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+      } else {
+        body.append(' ').append(word);
+      }
+    }
+    return body.append('.').toString();
+  }
+
+  /**
+   * Generate todos.
+   *
+   * @param count how many todos to generate
+   * @param seed the seed for the random data
+   * @return the todos
+   */
+  public static Todo[] todos(int count, long seed) {
+    Random random = new Random(seed);
+    Todo[] todos = new Todo[count];
+    for (int i = 0; i < count; i++) {
+      Todo todo = new Todo();
+      todo._id = id(random);
+      // New strings for the repeated values, as if each todo had been
+      // read from JSON separately.
+      todo.owner = new String(OWNERS[random.nextInt(OWNERS.length)]);
+      todo.status = random.nextBoolean();
+      todo.body = body(random);
+      todo.category = new String(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+      todos[i] = todo;
+    }
+    return todos;
+  }
+
+  /**
+   * Generate users.
+   *
+   * @param count how many users to generate
+   * @param seed the seed for the random data
+   * @return the users
+   */
+  public static User[] users(int count, long seed) {
+    Random random = new Random(seed);
+    User[] users = new User[count];
+    for (int i = 0; i < count; i++) {
+      User user = new User();
+      user._id = id(random);
+      String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+      String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+      user.name = first + " " + last;
+      user.age = MIN_AGE + random.nextInt(MAX_AGE - MIN_AGE);
+      user.company = COMPANIES[random.nextInt(COMPANIES.length)];
+      user.email = (first + last).toLowerCase() + "@" + user.company.toLowerCase() + ".com";
+      users[i] = user;
+    }
+    return users;
+  }
+
+  /**
+   * Turn a query string like `owner=Fry&limit=10` into the query
+   * parameter map the databases take.
+   *
+   * @param query the query string (without the leading `?`)
+   * @return a map from each parameter to its values
+   */
+  public static Map<String, List<String>> queryParams(String query) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (String param : query.split("&")) {
+      if (!param.isEmpty()) {
+        String[] keyAndValue = param.split("=", 2);
+        queryParams.computeIfAbsent(keyAndValue[0], k -> new ArrayList<>()).add(keyAndValue[1]);
+      }
+    }
+    return queryParams;
+  }
+
+  /**
+   * Write records to a temporary JSON data file, which is deleted when
+   * the JVM exits.
+   *
+   * @param records the records to write
+   * @return the path of the data file
+   * @throws IOException if the file can't be written
+   */
+  public static String writeDataFile(Object[] records) throws IOException {
+    Path file = Files.createTempFile("synthetic", ".json");
+    file.toFile().deleteOnExit();
+    new ObjectMapper().writeValue(file.toFile(), records);
+    return file.toString();
+  }
+}
@@ -0,0 +1,75 @@
+package umm3601.todo;
+
+import java.lang.ref.Reference;
+import java.util.BitSet;
+
+import umm3601.SyntheticData;
+
+/**
+ * Compares the heap used by an array of `Todo` objects (as Jackson would
+ * read them from JSON) with the heap used by a `TodoStore` holding the
+ * same todos, both for just the columns the store keeps the todos in and
+ * for the whole store including all of its indexes.
+ * <p>
+ * This isn't a JMH benchmark, since JMH measures time and allocation
+ * rates, not how much is retained. Run it with `./gradlew heapFootprint`
+ * (optionally with `-PtodoCount=N`).
+ */
+public final class HeapFootprint {
+  private static final long SEED = 3601;
+  private static final int DEFAULT_COUNT = 100_000;
+  private static final int GC_ROUNDS = 5;
+  private static final double BYTES_PER_MB = 1024 * 1024;
+
+  private HeapFootprint() {
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < GC_ROUNDS; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  public static void main(String[] args) {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_COUNT;
+
+    long start = usedHeap();
+    Todo[] todos = SyntheticData.todos(count, SEED);
+    long objectBytes = usedHeap() - start;
+
+    Object[] columns = columnsOf(todos);
+    long columnBytes = usedHeap() - start - objectBytes;
+
+    TodoStore store = new TodoStore(todos);
+    long storeBytes = usedHeap() - start - objectBytes - columnBytes;
+    Reference.reachabilityFence(todos);
+    Reference.reachabilityFence(columns);
+    Reference.reachabilityFence(store);
+
+    System.out.printf("%d todos as objects:  %8.1f MB (%d bytes/todo)%n",
+      count, objectBytes / BYTES_PER_MB, objectBytes / count);
+    System.out.printf("%d todos as columns:  %8.1f MB (%d bytes/todo, %.1fx smaller)%n",
+      count, columnBytes / BYTES_PER_MB, columnBytes / count, (double) objectBytes / columnBytes);
+    System.out.printf("%d todos in a store:  %8.1f MB (%d bytes/todo, including indexes)%n",
+      count, storeBytes / BYTES_PER_MB, storeBytes / count);
+  }
+
+  // The same columns a `TodoStore` keeps, without any of its indexes.
+  private static Object[] columnsOf(Todo[] todos) {
+    StringColumn.Builder ids = new StringColumn.Builder();
+    DictionaryColumn.Builder owners = new DictionaryColumn.Builder();
+    DictionaryColumn.Builder categories = new DictionaryColumn.Builder();
+    StringColumn.Builder bodies = new StringColumn.Builder();
+    BitSet statuses = new BitSet();
+    for (int i = 0; i < todos.length; i++) {
+      ids.add(todos[i]._id);
+      owners.add(todos[i].owner);
+      categories.add(todos[i].category);
+      bodies.add(todos[i].body);
+      statuses.set(i, todos[i].status);
+    }
+    return new Object[] {ids.build(), owners.build(), categories.build(), bodies.build(), statuses};
+  }
+}
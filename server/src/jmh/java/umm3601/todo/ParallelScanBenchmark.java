@@ -0,0 +1,67 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.SyntheticData;
+
+/**
+ * How queries that have to check every todo scale with the number of
+ * threads their scans are split over (see `ParallelScan`). With one
+ * thread the scan is done on the calling thread, as it was before scans
+ * were split. The speedup can't be more than the number of processors
+ * the benchmark runs on, so run it with, e.g.,
+ * `-PjmhArgs="ParallelScanBenchmark -p threads=1,2,4,8,16,32"` on a
+ * machine with at least 32 of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class ParallelScanBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000000"})
+  public int size;
+
+  @Param({"1", "2", "4", "8", "16", "32"})
+  public int threads;
+
+  // A string too short for the trigram index, which has to be searched
+  // for in every body, and a cheap check of every todo's owner after a
+  // category's posting list.
+  @Param({"contains=it", "category=homework&contains=ut&ignoreCase=true"})
+  public String query;
+
+  private TodoDatabase database;
+  private Map<String, List<String>> queryParams;
+
+  @Setup
+  public void setUp() throws IOException {
+    database = new TodoDatabase(SyntheticData.writeDataFile(SyntheticData.todos(size, SEED)));
+    database.setParallelScan(new ParallelScan(threads, ParallelScan.DEFAULT_THRESHOLD, ParallelScan.SEGMENT_SIZE));
+    queryParams = SyntheticData.queryParams(query);
+  }
+
+  @Benchmark
+  public TodoQueryResult scan() {
+    return database.queryTodos(queryParams);
+  }
+}
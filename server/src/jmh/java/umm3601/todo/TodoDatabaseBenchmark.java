@@ -0,0 +1,125 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.SyntheticData;
+
+/**
+ * Benchmarks of the `TodoDatabase` hot paths: `listTodos` over a mix of
+ * queries, `getTodo` lookups, `updateTodo` writes, `todoStats` with and
+ * without filters, and the indexed `contains` search compared to a plain
+ * scan of every body.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class TodoDatabaseBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000", "100000"})
+  public int size;
+
+  private TodoDatabase database;
+  private Todo[] todos;
+  private String[] ids;
+  private int nextId;
+
+  /**
+   * The query for the `listTodos` benchmark. This is a separate state so
+   * that the other benchmarks aren't repeated for every query.
+   */
+  @State(Scope.Benchmark)
+  public static class Query {
+    @Param({
+      "owner=Blanche",
+      "owner=Blanche&category=homework&status=complete",
+      "orderBy=body",
+      "contains=magna",
+      "limit=20",
+      "status=incomplete&orderBy=owner&limit=20",
+      "owner=Blanche&contains=magna",
+      "category=homework&orderBy=body&limit=10"
+    })
+    public String query;
+
+    private Map<String, List<String>> queryParams;
+
+    @Setup
+    public void setUp() {
+      queryParams = SyntheticData.queryParams(query);
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    todos = SyntheticData.todos(size, SEED);
+    database = new TodoDatabase(SyntheticData.writeDataFile(todos));
+    ids = Arrays.stream(todos).map(todo -> todo._id).toArray(String[]::new);
+  }
+
+  @Benchmark
+  public Todo[] listTodos(Query query) {
+    return database.listTodos(query.queryParams);
+  }
+
+  @Benchmark
+  public Todo getTodo() {
+    nextId = (nextId + 1) % ids.length;
+    return database.getTodo(ids[nextId]);
+  }
+
+  // A single write, which builds a new store. (Concurrent writes share
+  // the cost of building a store, so this is the worst case per write.)
+  @Benchmark
+  public Todo updateTodo() {
+    nextId = (nextId + 1) % ids.length;
+    return database.updateTodo(ids[nextId], todo -> {
+      todo.status = !todo.status;
+      return todo;
+    });
+  }
+
+  // Stats for all the todos come from the indexes, so this shouldn't
+  // depend on the size.
+  @Benchmark
+  public TodoStats todoStats() {
+    return database.todoStats(SyntheticData.queryParams("groupBy=owner"));
+  }
+
+  @Benchmark
+  public TodoStats filteredTodoStats() {
+    return database.todoStats(SyntheticData.queryParams("groupBy=category&status=complete"));
+  }
+
+  @Benchmark
+  public Todo[] containsIndexed() {
+    return database.listTodos(SyntheticData.queryParams("contains=consequat"));
+  }
+
+  // The baseline for `containsIndexed`: what the `contains` filter did
+  // before it had the trigram index.
+  @Benchmark
+  public Todo[] containsScan() {
+    return Arrays.stream(todos).filter(todo -> todo.body.contains("consequat")).toArray(Todo[]::new);
+  }
+}
@@ -0,0 +1,83 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.SyntheticData;
+
+/**
+ * Latency distributions (JMH's sample mode, which reports percentiles up
+ * to p99.99) of `getTodo` and of pages of todos, from the size of the
+ * sample data up to a million todos. Lookups by `_id` and limited pages
+ * are answered from indexes, so their p99 should stay flat as the number
+ * of todos grows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = {"-Xmx3g"})
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class TodoLatencyBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"300", "10000", "1000000"})
+  public int size;
+
+  private TodoDatabase database;
+  private String[] ids;
+  private int nextId;
+
+  /**
+   * The page asked for by the `listTodos` benchmark.
+   */
+  @State(Scope.Benchmark)
+  public static class Page {
+    @Param({
+      "owner=Blanche&limit=20",
+      "status=incomplete&orderBy=owner&limit=20"
+    })
+    public String query;
+
+    private Map<String, List<String>> queryParams;
+
+    @Setup
+    public void setUp() {
+      queryParams = SyntheticData.queryParams(query);
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    Todo[] todos = SyntheticData.todos(size, SEED);
+    database = new TodoDatabase(SyntheticData.writeDataFile(todos));
+    ids = Arrays.stream(todos).map(todo -> todo._id).toArray(String[]::new);
+  }
+
+  @Benchmark
+  public Todo getTodo() {
+    nextId = (nextId + 1) % ids.length;
+    return database.getTodo(ids[nextId]);
+  }
+
+  @Benchmark
+  public Todo[] listTodos(Page page) {
+    return database.listTodos(page.queryParams);
+  }
+}
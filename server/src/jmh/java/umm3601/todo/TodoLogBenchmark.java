@@ -0,0 +1,141 @@
+package umm3601.todo;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.Main;
+import umm3601.SyntheticData;
+
+/**
+ * Benchmarks of logged writes (see `TodoLog`): the latency of a write when
+ * the log is synced every batch and when it's synced periodically, from
+ * one thread and from several (whose writes share syncs), and how long
+ * recovering from a snapshot and a log of many write batches takes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class TodoLogBenchmark {
+  private static final long SEED = 3601;
+  private static final int SIZE = 10_000;
+
+  // How often the log is synced, with 0 meaning every batch.
+  @Param({"0", "10"})
+  public long syncMillis;
+
+  private Path directory;
+  private TodoDatabase database;
+  private String[] ids;
+  private int nextId;
+
+  /**
+   * A snapshot and a log of `logBatches` write batches on top of it, for
+   * the `recover` benchmark.
+   */
+  @State(Scope.Benchmark)
+  public static class Recovery {
+    @Param({"1000", "10000"})
+    public int logBatches;
+
+    private String dataFile;
+    private Path directory;
+
+    @Setup
+    public void setUp() throws IOException {
+      Todo[] todos = SyntheticData.todos(SIZE, SEED);
+      dataFile = SyntheticData.writeDataFile(todos);
+      directory = Files.createTempDirectory("todo-log");
+      try (TodoDatabase database = open(dataFile, directory, Duration.ofMillis(10))) {
+        for (int i = 0; i < logBatches; i++) {
+          if (i % 10 == 0) {
+            database.addTodo(todos[i % todos.length]);
+          } else {
+            database.updateTodo(todos[i % todos.length]._id, todo -> {
+              todo.status = !todo.status;
+              return todo;
+            });
+          }
+        }
+      }
+      System.out.printf("%n%d logged write batches: %d bytes of log%n", logBatches,
+        Files.size(directory.resolve("todos.log")));
+    }
+  }
+
+  private static TodoDatabase open(String dataFile, Path directory, Duration syncInterval) throws IOException {
+    // The log is never compacted, so every benchmark sees the same log.
+    return new TodoDatabase(dataFile, directory.resolve("todos.snapshot"), directory.resolve("todos.log"),
+      syncInterval, Long.MAX_VALUE);
+  }
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    Todo[] todos = SyntheticData.todos(SIZE, SEED);
+    directory = Files.createTempDirectory("todo-log");
+    database = new TodoDatabase(SyntheticData.writeDataFile(todos), directory.resolve("todos.snapshot"),
+      directory.resolve("todos.log"), Duration.ofMillis(syncMillis), Main.DEFAULT_TODO_LOG_COMPACT_BYTES);
+    ids = Arrays.stream(todos).map(todo -> todo._id).toArray(String[]::new);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    database.close();
+  }
+
+  private Todo toggleStatus(int id) {
+    return database.updateTodo(ids[id], todo -> {
+      todo.status = !todo.status;
+      return todo;
+    });
+  }
+
+  @Benchmark
+  public Todo loggedWrite() {
+    nextId = (nextId + 1) % ids.length;
+    return toggleStatus(nextId);
+  }
+
+  // Concurrent writers, whose writes are applied (and logged and synced)
+  // in batches. The ids needn't be exact, so races on `nextId` are fine.
+  @Benchmark
+  @Threads(4)
+  public Todo concurrentLoggedWrites() {
+    nextId = (nextId + 1) % ids.length;
+    return toggleStatus(nextId);
+  }
+
+  // Replay the whole log on top of the snapshot, as a restart does.
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  @Warmup(iterations = 3)
+  @Measurement(iterations = 10)
+  public int recover(Recovery recovery) throws IOException {
+    try (TodoDatabase database = open(recovery.dataFile, recovery.directory, Duration.ZERO)) {
+      return database.size();
+    }
+  }
+}
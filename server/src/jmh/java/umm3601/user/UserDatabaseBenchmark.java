@@ -0,0 +1,79 @@
+package umm3601.user;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import umm3601.SyntheticData;
+
+/**
+ * Benchmarks of the `UserDatabase` hot paths: `listUsers` over a mix of
+ * queries, and `getUser` lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@SuppressWarnings({"MagicNumber", "VisibilityModifier"})
+public class UserDatabaseBenchmark {
+  private static final long SEED = 3601;
+
+  @Param({"1000", "100000"})
+  public int size;
+
+  private UserDatabase database;
+  private String[] ids;
+  private int nextId;
+
+  /**
+   * The query for the `listUsers` benchmark. This is a separate state so
+   * that `getUser` isn't repeated for every query.
+   */
+  @State(Scope.Benchmark)
+  public static class Query {
+    @Param({"age=25", "company=OHMNET", "age=25&company=OHMNET", "limit=20", "ageMin=30&ageMax=35",
+      "name=Con&limit=20", "company=OHMNET&email=a&orderBy=age&limit=20", "orderBy=name&limit=20"})
+    public String query;
+
+    private Map<String, List<String>> queryParams;
+
+    @Setup
+    public void setUp() {
+      queryParams = SyntheticData.queryParams(query);
+    }
+  }
+
+  @Setup
+  public void setUp() throws IOException {
+    User[] users = SyntheticData.users(size, SEED);
+    database = new UserDatabase(SyntheticData.writeDataFile(users));
+    ids = Arrays.stream(users).map(user -> user._id).toArray(String[]::new);
+  }
+
+  @Benchmark
+  public User[] listUsers(Query query) {
+    return database.listUsers(query.queryParams);
+  }
+
+  @Benchmark
+  public User getUser() {
+    nextId = (nextId + 1) % ids.length;
+    return database.getUser(ids[nextId]);
+  }
+}
@@ -0,0 +1,113 @@
+package umm3601;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import io.javalin.compression.CompressionStrategy;
+import io.javalin.compression.Gzip;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * Gzip compression of responses.
+ * <p>
+ * Javalin compresses responses on the fly for clients that accept gzip
+ * (see `strategy()`), which costs CPU on every request. Responses we
+ * cache are compressed just once, when they're cached, and sent as they
+ * are (see `ResponseCache.Entry`), so they can afford the best (slowest)
+ * compression level.
+ * <p>
+ * Brotli isn't offered, since Javalin's Brotli support needs a native
+ * library.
+ */
+public final class Compression {
+  /**
+   * Responses smaller than this are sent uncompressed, since they fit in
+   * a packet or two anyway and compressing them isn't worth the CPU.
+   */
+  public static final int MIN_COMPRESSED_BYTES = 1024;
+  public static final String GZIP = "gzip";
+  // The gzip level for compressing responses on the fly, which trades
+  // some size for speed.
+  private static final int DYNAMIC_LEVEL = 6;
+
+  private Compression() {
+  }
+
+  /**
+   * How Javalin should compress the responses that aren't already
+   * compressed.
+   *
+   * @return the compression strategy
+   */
+  public static CompressionStrategy strategy() {
+    CompressionStrategy strategy = new CompressionStrategy(null, new Gzip(DYNAMIC_LEVEL));
+    strategy.setMinSizeForCompression(MIN_COMPRESSED_BYTES);
+    return strategy;
+  }
+
+  /**
+   * Gzip some bytes as well as possible.
+   *
+   * @param bytes the bytes to compress
+   * @return the compressed bytes
+   */
+  public static byte[] gzip(byte[] bytes) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 2);
+    try (GZIPOutputStream out = new GZIPOutputStream(compressed) {
+      {
+        def.setLevel(Deflater.BEST_COMPRESSION);
+      }
+    }) {
+      out.write(bytes);
+    } catch (IOException e) {
+      // Writing to a byte array can't actually fail.
+      throw new IllegalStateException(e);
+    }
+    return compressed.toByteArray();
+  }
+
+  /**
+   * Check whether the client accepts gzipped responses, according to its
+   * `Accept-Encoding` header.
+   *
+   * @param ctx a Javalin HTTP context
+   * @return whether we can send a gzipped response
+   */
+  public static boolean acceptsGzip(Context ctx) {
+    String acceptEncoding = ctx.header(Header.ACCEPT_ENCODING);
+    if (acceptEncoding == null) {
+      return false;
+    }
+    // A `*` only applies if gzip isn't listed explicitly.
+    boolean acceptsAny = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (name.equalsIgnoreCase(GZIP)) {
+        return !isRefused(parts);
+      } else if (name.equals("*")) {
+        acceptsAny = !isRefused(parts);
+      }
+    }
+    return acceptsAny;
+  }
+
+  // Whether the parameters of a coding include `q=0`, which means the
+  // client doesn't accept it.
+  private static boolean isRefused(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String parameter = parts[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+}
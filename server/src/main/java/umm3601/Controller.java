@@ -21,7 +21,7 @@ import io.javalin.Javalin;
  * Note that this interface definition is _complete_ and you shouldn't need to
  * add anything to it. You just need to make sure that any new controllers
  * you implement also implement this interface, providing their own `addRoutes()`
- * method.
+ * method (and, if they have anything worth measuring, `addMetrics()`).
  */
 public interface Controller {
   /**
@@ -35,4 +35,14 @@ public interface Controller {
    * @param server The Javalin server to add routes to
    */
   void addRoutes(Javalin server);
+
+  /**
+   * Add the controller's own counters and gauges (beyond the request
+   * latencies that the server records for every route) to the server's
+   * metrics. By default there aren't any.
+   *
+   * @param metrics The server's metrics
+   */
+  default void addMetrics(Metrics metrics) {
+  }
 }
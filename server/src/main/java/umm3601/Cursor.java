@@ -0,0 +1,98 @@
+package umm3601;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * Opaque cursors for paging through lists with `?limit=N&after=CURSOR`.
+ * <p>
+ * A cursor records where a page ended (typically the sort key and `_id`
+ * of the last item on the page) so that the next page can pick up right
+ * after it, using the indexes to find the spot, rather than recomputing
+ * and throwing away all the earlier pages. To clients a cursor is just an
+ * opaque string (URL-safe base64 of a small JSON array), which they get
+ * from the `Link: <...>; rel="next"` header of the previous page.
+ */
+public final class Cursor {
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private Cursor() {
+  }
+
+  /**
+   * Encode the given parts as an opaque cursor.
+   *
+   * @param parts the values that identify where a page ended
+   * @return the cursor
+   */
+  public static String encode(String... parts) {
+    try {
+      byte[] json = OBJECT_MAPPER.writeValueAsBytes(parts);
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+    } catch (IOException e) {
+      // Writing an array of strings to a byte array can't actually fail.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Decode a cursor made by `encode`.
+   *
+   * @param cursor the cursor sent by the client
+   * @param expectedParts how many parts the cursor should have
+   * @return the parts of the cursor
+   * @throws BadRequestResponse if the cursor isn't one we could have made
+   */
+  public static String[] decode(String cursor, int expectedParts) {
+    String[] parts;
+    try {
+      parts = OBJECT_MAPPER.readValue(Base64.getUrlDecoder().decode(cursor), String[].class);
+    } catch (IOException | IllegalArgumentException e) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' is not valid");
+    }
+    if (parts == null || parts.length != expectedParts) {
+      throw new BadRequestResponse("Specified cursor '" + cursor + "' is not valid");
+    }
+    return parts;
+  }
+
+  /**
+   * Add a `Link` header pointing at the next page to the response. The
+   * link is the current request with its `after` parameter replaced by
+   * the given cursor.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param cursor the cursor for the next page, or `null` if this is the
+   *   last page (in which case no header is added)
+   */
+  public static void addNextLink(Context ctx, String cursor) {
+    if (cursor == null) {
+      return;
+    }
+    StringJoiner query = new StringJoiner("&");
+    for (Map.Entry<String, List<String>> param : ctx.queryParamMap().entrySet()) {
+      if (!param.getKey().equals("after")) {
+        for (String value : param.getValue()) {
+          query.add(urlEncode(param.getKey()) + "=" + urlEncode(value));
+        }
+      }
+    }
+    query.add("after=" + cursor);
+    ctx.header(Header.LINK, "<" + ctx.path() + "?" + query + ">; rel=\"next\"");
+  }
+
+  private static String urlEncode(String s) {
+    return URLEncoder.encode(s, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,150 @@
+package umm3601;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches data files in the filesystem (with a NIO `WatchService`), and
+ * reloads each one's database whenever it changes, so new data can be
+ * served without restarting the server.
+ * <p>
+ * The reloads run on the watcher's own thread. Each database builds its
+ * new store and indexes there while requests carry on with the old one,
+ * then swaps the new one in (see `TodoDatabase.reload` and
+ * `UserDatabase.reload`). A file usually changes in several steps, so a
+ * reload waits until the file has been quiet for a moment. Even so, the
+ * safest way to change a data file is to write the new one alongside it
+ * and rename it over the old one, so a reload never sees it half written.
+ * If a reload fails, the database keeps its old data and the failure is
+ * logged; the next change to the file tries again.
+ */
+public final class DataFileWatcher implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(DataFileWatcher.class);
+
+  /**
+   * Reloads a database from its data file.
+   */
+  @FunctionalInterface
+  public interface Reload {
+    void reload() throws IOException;
+  }
+
+  private final WatchService watchService;
+  private final Duration quietPeriod;
+  // What to do when each watched file changes, by its absolute path, and
+  // the directories that are being watched for them.
+  private final Map<Path, Reload> reloads = new ConcurrentHashMap<>();
+  private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+  private final Thread thread;
+
+  /**
+   * Construct a watcher, which doesn't watch anything until it's told to
+   * with `watch`.
+   *
+   * @param quietPeriod how long a changed file must go without changing
+   *   again before it's reloaded
+   * @throws IOException if the filesystem can't be watched
+   */
+  public DataFileWatcher(Duration quietPeriod) throws IOException {
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.quietPeriod = quietPeriod;
+    thread = new Thread(this::run, "data-file-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Start watching a file.
+   *
+   * @param file the file
+   * @param reload what to do when it changes
+   * @throws IOException if its directory can't be watched
+   */
+  public void watch(Path file, Reload reload) throws IOException {
+    Path absolute = file.toAbsolutePath().normalize();
+    Path directory = absolute.getParent();
+    reloads.put(absolute, reload);
+    if (directories.add(directory)) {
+      // Renaming a file over the data file shows up as it being created.
+      directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+    LOGGER.info("Watching {} for changes", absolute);
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        Set<Path> changed = new LinkedHashSet<>();
+        collectChanges(watchService.take(), changed);
+        // Wait for the changes to stop before reloading anything.
+        WatchKey key = watchService.poll(quietPeriod.toNanos(), TimeUnit.NANOSECONDS);
+        while (key != null) {
+          collectChanges(key, changed);
+          key = watchService.poll(quietPeriod.toNanos(), TimeUnit.NANOSECONDS);
+        }
+        for (Path file : changed) {
+          reload(file);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // The watcher has been closed.
+    }
+  }
+
+  private void collectChanges(WatchKey key, Set<Path> changed) {
+    Path directory = (Path) key.watchable();
+    Set<Path> files = new HashSet<>();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+        // Some events were lost, so any of the directory's files may have
+        // changed.
+        reloads.keySet().stream().filter(file -> file.getParent().equals(directory)).forEach(files::add);
+      } else {
+        files.add(directory.resolve((Path) event.context()));
+      }
+    }
+    key.reset();
+    files.stream().filter(reloads::containsKey).forEach(changed::add);
+  }
+
+  private void reload(Path file) {
+    try {
+      reloads.get(file).reload();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Could not reload " + file + "; keeping the data that was loaded before", e);
+    }
+  }
+
+  /**
+   * Stop watching, and wait for any reload in progress to finish.
+   *
+   * @throws IOException if the watch service can't be closed
+   */
+  @Override
+  public void close() throws IOException {
+    thread.interrupt();
+    watchService.close();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
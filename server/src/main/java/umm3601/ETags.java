@@ -0,0 +1,145 @@
+package umm3601;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Strong entity tags for conditional GETs (`If-None-Match`).
+ * <p>
+ * A list response is completely determined by the version of the data it
+ * came from and the query, so its tag is computed from just those,
+ * without running the query or serializing anything. Versions are only
+ * unique within one run of the server, so list tags also include a random
+ * id for this run; after a restart every client just downloads its lists
+ * once more. The tag of a single record is computed from the record's
+ * contents instead, so it stays the same across restarts and changes to
+ * other records.
+ * <p>
+ * Strong tags have to differ between representations, and clients that
+ * accept gzip may get a response gzipped (from the `ResponseCache`, or by
+ * Javalin on the fly) where other clients get it as it is. So responses
+ * to clients that accept gzip get the tag with `-gzip` added, and a
+ * client revalidating either form of the tag is told it's up to date.
+ */
+public final class ETags {
+  // The number of bytes of the SHA-256 digest kept in a tag.
+  private static final int DIGEST_BYTES = 16;
+  private static final int INSTANCE_BYTES = 8;
+  private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+  private static final String GZIP_SUFFIX = "-" + Compression.GZIP;
+  // Identifies this run of the server.
+  static final String INSTANCE = randomId();
+
+  private ETags() {
+  }
+
+  private static String randomId() {
+    byte[] id = new byte[INSTANCE_BYTES];
+    new SecureRandom().nextBytes(id);
+    return ENCODER.encodeToString(id);
+  }
+
+  /**
+   * The tag for the response to a list query.
+   *
+   * @param version the version of the data the query runs against
+   * @param queryParams the query parameters
+   * @return the quoted tag
+   */
+  public static String forQuery(long version, Map<String, List<String>> queryParams) {
+    return forContent(INSTANCE, ResponseCache.key(version, queryParams));
+  }
+
+  /**
+   * The tag for a response determined by the given strings, such as the
+   * fields of a record.
+   *
+   * @param parts the strings, any of which may be `null`
+   * @return the quoted tag
+   */
+  public static String forContent(String... parts) {
+    MessageDigest digest = sha256();
+    for (String part : parts) {
+      // Prefixing each part with its length means different lists of
+      // parts can't run together into the same bytes.
+      String encoded = part == null ? "-1:" : part.length() + ":" + part;
+      digest.update(encoded.getBytes(StandardCharsets.UTF_8));
+    }
+    return '"' + ENCODER.encodeToString(Arrays.copyOf(digest.digest(), DIGEST_BYTES)) + '"';
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * The tag for the gzipped representation of a response.
+   *
+   * @param etag the quoted tag of the response as it is
+   * @return the quoted tag with `-gzip` added
+   */
+  public static String gzipped(String etag) {
+    return etag.substring(0, etag.length() - 1) + GZIP_SUFFIX + '"';
+  }
+
+  /**
+   * Add the `ETag` header to the response (for the representation the
+   * client can get, as it is or gzipped), and if the client already has
+   * the current response (according to its `If-None-Match` header, in
+   * either representation) set the status to 304 Not Modified.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param etag the quoted tag of the current response as it is
+   * @return whether the response is 304 Not Modified, in which case the
+   *   caller shouldn't send a body
+   */
+  public static boolean notModified(Context ctx, String etag) {
+    ctx.header(Header.ETAG, Compression.acceptsGzip(ctx) ? gzipped(etag) : etag);
+    ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+    String ifNoneMatch = ctx.header(Header.IF_NONE_MATCH);
+    if (matches(ifNoneMatch, etag) || matches(ifNoneMatch, gzipped(etag))) {
+      ctx.status(HttpStatus.NOT_MODIFIED);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check an `If-None-Match` header against a tag. As `If-None-Match` uses
+   * the weak comparison, `W/` prefixes are ignored.
+   *
+   * @param ifNoneMatch the header, or `null` if there isn't one
+   * @param etag the quoted tag of the current response
+   * @return whether the header matches the tag
+   */
+  static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String tag : ifNoneMatch.split(",")) {
+      String trimmed = tag.trim();
+      if (trimmed.startsWith("W/")) {
+        trimmed = trimmed.substring(2);
+      }
+      if (trimmed.equals("*") || trimmed.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,78 @@
+package umm3601;
+
+import java.util.function.IntBinaryOperator;
+
+/**
+ * Sorts an array of ints (like the positions in a store) with a
+ * comparison of their own, such as one that compares the values of a
+ * field at two positions.
+ * <p>
+ * `Arrays.sort` can only sort ints by their natural order, and sorting
+ * with a `Comparator` means boxing every int into an `Integer`, which at a
+ * million positions is a million short-lived objects per sort. This is a
+ * merge sort over the ints themselves instead, which allocates nothing
+ * but one copy of the array. It's stable: ints that compare equal stay in
+ * the order they started in.
+ */
+public final class IntSort {
+  // Runs this short are insertion sorted rather than split any further.
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  private IntSort() {
+  }
+
+  /**
+   * Sort an array of ints in place.
+   *
+   * @param values the ints to sort
+   * @param comparison compares two ints, returning a negative number, zero
+   *   or a positive number like `Comparator.compare`
+   */
+  public static void sort(int[] values, IntBinaryOperator comparison) {
+    mergeSort(values.clone(), values, 0, values.length, comparison);
+  }
+
+  /**
+   * Sort a range of `target`, which holds the same ints as the range of
+   * `source` when it's called. Each half is sorted into `source` (using
+   * `target` as scratch space), then the halves are merged into `target`,
+   * so nothing is copied back and forth.
+   */
+  private static void mergeSort(int[] source, int[] target, int low, int high, IntBinaryOperator comparison) {
+    if (high - low <= INSERTION_SORT_THRESHOLD) {
+      insertionSort(target, low, high, comparison);
+      return;
+    }
+    int mid = (low + high) >>> 1;
+    mergeSort(target, source, low, mid, comparison);
+    mergeSort(target, source, mid, high, comparison);
+    // If the halves are already in order (as they often are when the
+    // values were mostly sorted to begin with), there's nothing to merge.
+    if (comparison.applyAsInt(source[mid - 1], source[mid]) <= 0) {
+      System.arraycopy(source, low, target, low, high - low);
+      return;
+    }
+    int left = low;
+    int right = mid;
+    for (int i = low; i < high; i++) {
+      // Taking from the left half on ties keeps the sort stable.
+      if (right >= high || left < mid && comparison.applyAsInt(source[left], source[right]) <= 0) {
+        target[i] = source[left++];
+      } else {
+        target[i] = source[right++];
+      }
+    }
+  }
+
+  private static void insertionSort(int[] values, int low, int high, IntBinaryOperator comparison) {
+    for (int i = low + 1; i < high; i++) {
+      int value = values[i];
+      int j = i;
+      while (j > low && comparison.applyAsInt(values[j - 1], value) > 0) {
+        values[j] = values[j - 1];
+        j--;
+      }
+      values[j] = value;
+    }
+  }
+}
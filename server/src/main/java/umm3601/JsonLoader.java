@@ -0,0 +1,169 @@
+package umm3601;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+/**
+ * Reads a data file holding a JSON array of objects, one object at a time.
+ * <p>
+ * Rather than parsing the whole file into a list and then an array (which
+ * holds the entire document in memory at once), this uses a streaming
+ * Jackson `JsonParser` and hands each object to a consumer as soon as it
+ * has been read, so a database can build its store and indexes in the same
+ * single pass over the file.
+ * <p>
+ * The data file can be either a classpath resource (like `/todos.json`) or
+ * a path in the filesystem. Files in the filesystem are read through a
+ * stream unless they're memory-mapped on request (see `mapFiles`). Files
+ * that are watched and reloaded while the server runs are never mapped:
+ * touching a mapped page of a file that has been truncated underneath us
+ * raises an `InternalError` (SIGBUS) rather than an `IOException`.
+ */
+public final class JsonLoader {
+  // Setting this (e.g., `-Ddata.mmap=true`) memory-maps data files in the
+  // filesystem when they're loaded, as long as they aren't watched for
+  // changes (`-Ddata.watch=false`); see `Main`.
+  public static final String MAP_FILES_PROPERTY = "data.mmap";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(JsonLoader.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double BYTES_PER_MB = 1024 * 1024;
+  private static final double MILLIS_PER_SECOND = 1000;
+
+  private JsonLoader() {
+  }
+
+  /**
+   * Read every object in the JSON array in a data file.
+   *
+   * @param <T> the type of the objects in the array
+   * @param dataFile a classpath resource or filesystem path
+   * @param type the class of the objects in the array
+   * @param consumer called with each object, in order, as it's read
+   * @return the number of objects read
+   * @throws IOException if the data file can't be found or read, or isn't
+   *   a JSON array of objects
+   */
+  public static <T> int load(String dataFile, Class<T> type, Consumer<? super T> consumer) throws IOException {
+    return load(dataFile, type, consumer, false);
+  }
+
+  /**
+   * Read every object in the JSON array in a data file, memory-mapping
+   * the file if it's in the filesystem and `mapFile` is set.
+   *
+   * @param <T> the type of the objects in the array
+   * @param dataFile a classpath resource or filesystem path
+   * @param type the class of the objects in the array
+   * @param consumer called with each object, in order, as it's read
+   * @param mapFile whether to memory-map a file in the filesystem rather
+   *   than read it through a stream (which mustn't be done if the file
+   *   might be changed while it's read)
+   * @return the number of objects read
+   * @throws IOException if the data file can't be found or read, or isn't
+   *   a JSON array of objects
+   */
+  public static <T> int load(String dataFile, Class<T> type, Consumer<? super T> consumer, boolean mapFile)
+      throws IOException {
+    long start = System.nanoTime();
+    int count = 0;
+    long bytes;
+    try (InputStream input = open(dataFile, mapFile); JsonParser parser = OBJECT_MAPPER.createParser(input)) {
+      if (parser.nextToken() != JsonToken.START_ARRAY) {
+        throw new IOException("Expected " + dataFile + " to hold a JSON array");
+      }
+      while (parser.nextToken() == JsonToken.START_OBJECT) {
+        consumer.accept(OBJECT_MAPPER.readValue(parser, type));
+        count++;
+      }
+      if (parser.currentToken() != JsonToken.END_ARRAY) {
+        throw new IOException("Expected " + dataFile + " to hold a JSON array of objects");
+      }
+      bytes = parser.currentLocation().getByteOffset();
+    }
+    double seconds = Math.max(System.nanoTime() - start, 1) / NANOS_PER_SECOND;
+    double megabytes = bytes / BYTES_PER_MB;
+    LOGGER.info(String.format("Loaded %d records (%.1f MB) from %s in %.0f ms: %.0f records/sec, %.1f MB/sec",
+      count, megabytes, dataFile, seconds * MILLIS_PER_SECOND, count / seconds, megabytes / seconds));
+    return count;
+  }
+
+  /**
+   * Check whether data files should be memory-mapped when they're loaded:
+   * only if `data.mmap` is set and data files aren't watched, since a
+   * watched file can be rewritten while it's mapped.
+   *
+   * @return whether to map data files
+   */
+  public static boolean mapFiles() {
+    return Boolean.getBoolean(MAP_FILES_PROPERTY)
+      && !Boolean.parseBoolean(System.getProperty(Main.DATA_WATCH_PROPERTY, "true"));
+  }
+
+  /**
+   * Open a data file, looking first for a classpath resource and then for
+   * a file in the filesystem.
+   *
+   * @param dataFile a classpath resource or filesystem path
+   * @return a stream of the contents of the data file
+   * @throws IOException if there's no such resource or file
+   */
+  public static InputStream open(String dataFile) throws IOException {
+    return open(dataFile, false);
+  }
+
+  /**
+   * Open a data file, looking first for a classpath resource and then for
+   * a file in the filesystem, which is memory-mapped if `mapFile` is set.
+   *
+   * @param dataFile a classpath resource or filesystem path
+   * @param mapFile whether to memory-map a file in the filesystem
+   * @return a stream of the contents of the data file
+   * @throws IOException if there's no such resource or file
+   */
+  public static InputStream open(String dataFile, boolean mapFile) throws IOException {
+    // The `.getResourceAsStream` method searches for the given resource in
+    // the classpath, and returns `null` if it isn't found.
+    InputStream resourceAsStream = JsonLoader.class.getResourceAsStream(dataFile);
+    if (resourceAsStream != null) {
+      return resourceAsStream;
+    }
+    Path path;
+    try {
+      path = Path.of(dataFile);
+    } catch (InvalidPathException e) {
+      throw new IOException("Could not find " + dataFile, e);
+    }
+    if (!Files.isRegularFile(path)) {
+      throw new IOException("Could not find " + dataFile);
+    }
+    if (mapFile) {
+      // The mapping stays valid after the channel is closed. (Files of 2GB
+      // or more can't be mapped in one piece, and fail here.)
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        return new ByteBufferBackedInputStream(buffer);
+      }
+    }
+    // The parser does its own buffering. If the file is cut short while
+    // it's read, the parser sees a truncated document and throws an
+    // `IOException`.
+    return Files.newInputStream(path);
+  }
+}
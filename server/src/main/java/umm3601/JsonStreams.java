@@ -0,0 +1,89 @@
+package umm3601;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+
+/**
+ * Support for writing large JSON responses without building them in
+ * memory first.
+ * <p>
+ * `ctx.json(array)` serializes the entire array into a buffer before any
+ * of it is sent. `writeJsonArray` instead uses a Jackson `JsonGenerator`
+ * to write each element straight to the response's output stream as it's
+ * produced. Since the length of the response isn't known up front, Jetty
+ * sends it with chunked transfer encoding, and the memory used stays the
+ * same however many elements there are.
+ * <p>
+ * `writeNdjson` does the same for newline-delimited JSON (one value per
+ * line), which is what bulk exports use, since a client can process each
+ * line as it arrives without parsing the whole response.
+ */
+public final class JsonStreams {
+  public static final String NDJSON = "application/x-ndjson";
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private JsonStreams() {
+  }
+
+  /**
+   * Write the given elements to the response as a JSON array, one element
+   * at a time.
+   * <p>
+   * Any validation of the request needs to happen _before_ this is called,
+   * since once we've started writing the response we can no longer turn it
+   * into an error response.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param elements the elements of the array
+   * @throws IOException if there are problems writing the response
+   */
+  public static void writeJsonArray(Context ctx, Iterator<?> elements) throws IOException {
+    ctx.contentType(ContentType.APPLICATION_JSON);
+    JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(ctx.outputStream());
+    // Javalin takes care of closing the response stream itself.
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    generator.writeStartArray();
+    while (elements.hasNext()) {
+      generator.writeObject(elements.next());
+    }
+    generator.writeEndArray();
+    generator.close();
+  }
+
+  /**
+   * Write the given elements to the response as newline-delimited JSON,
+   * one element per line.
+   * <p>
+   * As with `writeJsonArray`, the request needs to be validated before
+   * this is called.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param elements the elements to write
+   * @return the number of elements written
+   * @throws IOException if there are problems writing the response
+   */
+  public static long writeNdjson(Context ctx, Iterator<?> elements) throws IOException {
+    ctx.contentType(NDJSON);
+    JsonGenerator generator = OBJECT_MAPPER.getFactory().createGenerator(ctx.outputStream());
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    // Jackson separates root values with a space by default, which would
+    // start every line after the first with one; each line is ended with
+    // a newline instead.
+    generator.setRootValueSeparator(null);
+    long count = 0;
+    while (elements.hasNext()) {
+      generator.writeObject(elements.next());
+      generator.writeRaw('\n');
+      count++;
+    }
+    generator.close();
+    return count;
+  }
+}
@@ -0,0 +1,165 @@
+package umm3601;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds, in the style of an HDR
+ * histogram: the buckets are log-linear, so every latency from a
+ * nanosecond to about a minute is kept to within about 3% of its value,
+ * in a fixed 8 KB of counts.
+ * <p>
+ * Latencies below 64 ns get a bucket each. Above that each power of two
+ * is split into 32 equal buckets, so a bucket is never wider than 1/32 of
+ * the values in it. Latencies too big for the last bucket are counted in
+ * it.
+ * <p>
+ * Recording a latency is a couple of shifts and two atomic adds, with no
+ * locks and no allocation, so it's cheap enough to do for every request.
+ * All the methods are thread safe.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 6;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+  // The biggest latency with a bucket of its own: about 68 seconds.
+  private static final long MAX_NANOS = (1L << 36) - 1;
+  private static final int BUCKETS = bucketOf(MAX_NANOS) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder totalNanos = new LongAdder();
+
+  /**
+   * The bucket a latency goes in.
+   *
+   * @param nanos the latency, which mustn't be negative or more than
+   *   `MAX_NANOS`
+   * @return the index of its bucket
+   */
+  private static int bucketOf(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) nanos;
+    }
+    // Keep the top SUB_BUCKET_BITS - 1 bits after the leading one.
+    int shift = Long.SIZE - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+    return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) ((nanos >>> shift) - HALF_SUB_BUCKETS);
+  }
+
+  /**
+   * The smallest latency that goes in a bucket.
+   *
+   * @param bucket the index of the bucket
+   * @return its smallest latency, in nanoseconds
+   */
+  static long lowestNanosOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+    return (long) (HALF_SUB_BUCKETS + (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS) << shift;
+  }
+
+  /**
+   * The biggest latency that goes in a bucket.
+   *
+   * @param bucket the index of the bucket
+   * @return its biggest latency, in nanoseconds
+   */
+  static long highestNanosOf(int bucket) {
+    return lowestNanosOf(bucket + 1) - 1;
+  }
+
+  /**
+   * Record one latency.
+   *
+   * @param nanos the latency in nanoseconds; negative latencies (from a
+   *   clock going backwards) are counted as zero
+   */
+  public void record(long nanos) {
+    long clamped = Math.min(Math.max(nanos, 0), MAX_NANOS);
+    counts.incrementAndGet(bucketOf(clamped));
+    totalNanos.add(clamped);
+  }
+
+  /**
+   * Take a copy of the counts so far, so they can be summarized without
+   * later latencies changing them part way through.
+   *
+   * @return the copy
+   */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+    }
+    return new Snapshot(copy, totalNanos.sum());
+  }
+
+  /**
+   * The counts in a `LatencyHistogram` at one moment. (The total is read
+   * separately from the counts, so it may include a latency or two that
+   * they don't.)
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long totalNanos;
+
+    private Snapshot(long[] counts, long totalNanos) {
+      this.counts = counts;
+      long sum = 0;
+      for (long c : counts) {
+        sum += c;
+      }
+      this.count = sum;
+      this.totalNanos = totalNanos;
+    }
+
+    public long count() {
+      return count;
+    }
+
+    public long totalNanos() {
+      return totalNanos;
+    }
+
+    /**
+     * Count the latencies that were no more than a limit, as near as the
+     * buckets can tell: a bucket is counted if its biggest latency is
+     * within the limit.
+     *
+     * @param nanos the limit
+     * @return the number of latencies within it
+     */
+    public long countAtOrBelow(long nanos) {
+      long sum = 0;
+      for (int i = 0; i < counts.length && highestNanosOf(i) <= nanos; i++) {
+        sum += counts[i];
+      }
+      return sum;
+    }
+
+    /**
+     * Find the latency at a quantile: the biggest latency in the bucket
+     * holding the latency that at least that fraction of the latencies
+     * are no more than.
+     *
+     * @param quantile the quantile, from 0 to 1
+     * @return the latency in nanoseconds, or 0 if there aren't any
+     */
+    public long valueAtQuantile(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return highestNanosOf(i);
+        }
+      }
+      return highestNanosOf(counts.length - 1);
+    }
+  }
+}
@@ -1,6 +1,9 @@
 package umm3601;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
 
 import umm3601.todo.TodoController;
 import umm3601.user.UserController;
@@ -9,6 +12,44 @@ public class Main {
   public static final String USER_DATA_FILE = "/users.json";
   public static final String TODO_DATA_FILE = "/todos.json";
 
+  // The data files can be replaced by files in the filesystem by setting
+  // these system properties (e.g., `-Dtodos.file=/data/todos.json`).
+  public static final String USER_DATA_FILE_PROPERTY = "users.file";
+  public static final String TODO_DATA_FILE_PROPERTY = "todos.file";
+  // Setting this (e.g., `-Dtodos.snapshot=/data/todos.snapshot`) makes the
+  // server start from a binary snapshot of the todos when the data file
+  // hasn't changed since the snapshot was written, which is much faster
+  // than parsing the data file for large datasets.
+  public static final String TODO_SNAPSHOT_FILE_PROPERTY = "todos.snapshot";
+  // Setting this (e.g., `-Dtodos.log=/data/todos.log`) makes changes to
+  // the todos survive restarts, by logging them and replaying the log on
+  // top of the snapshot (which defaults to the log's name plus `.snapshot`)
+  // when the server starts; see `TodoLog`. The log is synced every batch
+  // of writes, unless `todos.log.syncMillis` is set to sync it that often
+  // instead (faster writes, but the last few can be lost if the machine
+  // crashes). It's compacted into the snapshot whenever it grows past
+  // `todos.log.compactBytes`.
+  public static final String TODO_LOG_FILE_PROPERTY = "todos.log";
+  public static final String TODO_LOG_SYNC_MILLIS_PROPERTY = "todos.log.syncMillis";
+  public static final String TODO_LOG_COMPACT_BYTES_PROPERTY = "todos.log.compactBytes";
+  public static final long DEFAULT_TODO_LOG_COMPACT_BYTES = 8L * 1024 * 1024;
+  // Requests run on Jetty's pool of platform threads unless this is set
+  // to `virtual` (e.g., `-Dserver.threads=virtual`); see `Server.ThreadMode`.
+  public static final String THREAD_MODE_PROPERTY = "server.threads";
+  // Data files in the filesystem are watched, and reloaded whenever they
+  // change, unless this is set to `false` (e.g., `-Ddata.watch=false`);
+  // see `DataFileWatcher`. The todos aren't reloaded if their writes are
+  // logged, since the log holds changes the data file doesn't.
+  public static final String DATA_WATCH_PROPERTY = "data.watch";
+  // (Data files that aren't watched can be memory-mapped when they're
+  // loaded, by also setting `data.mmap`; see `JsonLoader.MAP_FILES_PROPERTY`.)
+  // How long a changed data file must go without changing again before
+  // it's reloaded.
+  public static final Duration DATA_WATCH_QUIET_PERIOD = Duration.ofMillis(250);
+  // (Queries that have to check lots of todos one at a time split the
+  // work over a pool of threads of their own, which is configured by the
+  // `todos.scan.*` properties; see `ParallelScan`.)
+
   public static void main(String[] args) throws IOException {
 
     // The implementations of `Controller` used for the server. These will presumably
@@ -17,7 +58,8 @@ public class Main {
     final Controller[] controllers = Main.getControllers();
 
     // Construct the server
-    Server server = new Server(controllers);
+    String threadMode = System.getProperty(THREAD_MODE_PROPERTY, Server.ThreadMode.PLATFORM.name());
+    Server server = new Server(controllers, Server.ThreadMode.parse(threadMode));
 
     // Start the server
     server.startServer();
@@ -34,14 +76,60 @@ public class Main {
    * @throws IOException
    */
   static Controller[] getControllers() throws IOException {
+    String todoDataFile = System.getProperty(TODO_DATA_FILE_PROPERTY, TODO_DATA_FILE);
+    UserController userController =
+      UserController.buildUserController(System.getProperty(USER_DATA_FILE_PROPERTY, USER_DATA_FILE));
+    TodoController todoController = buildTodoController(todoDataFile);
+    // Todos can be joined with the users who own them.
+    todoController.setUserDatabase(userController.getUserDatabase());
+    if (Boolean.parseBoolean(System.getProperty(DATA_WATCH_PROPERTY, "true"))) {
+      watchDataFiles(userController, todoController, todoDataFile);
+    }
     Controller[] controllers = new Controller[] {
       // You would add additional controllers here, as you create them,
       // although you need to make sure that each of your new controllers implements
       // the `Controller` interface.
-      UserController.buildUserController(USER_DATA_FILE),
-      TodoController.buildTodoController(TODO_DATA_FILE)
+      userController,
+      todoController
     };
     return controllers;
   }
 
+  private static void watchDataFiles(UserController userController, TodoController todoController,
+      String todoDataFile) throws IOException {
+    String userDataFile = System.getProperty(USER_DATA_FILE_PROPERTY, USER_DATA_FILE);
+    // Classpath resources (like the default data files) never change, so
+    // only files in the filesystem are watched.
+    boolean watchUsers = Files.isRegularFile(Path.of(userDataFile));
+    boolean watchTodos = Files.isRegularFile(Path.of(todoDataFile))
+      && System.getProperty(TODO_LOG_FILE_PROPERTY) == null;
+    if (!watchUsers && !watchTodos) {
+      return;
+    }
+    // The watcher's thread is a daemon, so it stops with the server.
+    DataFileWatcher watcher = new DataFileWatcher(DATA_WATCH_QUIET_PERIOD);
+    if (watchUsers) {
+      watcher.watch(Path.of(userDataFile), () -> userController.getUserDatabase().reload(userDataFile));
+    }
+    if (watchTodos) {
+      watcher.watch(Path.of(todoDataFile), () -> todoController.getTodoDatabase().reload(todoDataFile));
+    }
+  }
+
+  private static TodoController buildTodoController(String todoDataFile) throws IOException {
+    String todoSnapshotFile = System.getProperty(TODO_SNAPSHOT_FILE_PROPERTY);
+    String todoLogFile = System.getProperty(TODO_LOG_FILE_PROPERTY);
+    if (todoLogFile != null) {
+      Path snapshotFile = Path.of(todoSnapshotFile == null ? todoLogFile + ".snapshot" : todoSnapshotFile);
+      Duration syncInterval = Duration.ofMillis(Long.getLong(TODO_LOG_SYNC_MILLIS_PROPERTY, 0));
+      long compactionBytes = Long.getLong(TODO_LOG_COMPACT_BYTES_PROPERTY, DEFAULT_TODO_LOG_COMPACT_BYTES);
+      return TodoController.buildTodoController(todoDataFile, snapshotFile, Path.of(todoLogFile), syncInterval,
+        compactionBytes);
+    }
+    if (todoSnapshotFile != null) {
+      return TodoController.buildTodoController(todoDataFile, Path.of(todoSnapshotFile));
+    }
+    return TodoController.buildTodoController(todoDataFile);
+  }
+
 }
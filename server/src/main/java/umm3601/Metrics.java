@@ -0,0 +1,339 @@
+package umm3601;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.DoubleSupplier;
+
+import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.HandlerType;
+
+/**
+ * The server's metrics, in the Prometheus text format (served at
+ * `/metrics`, to local clients only).
+ * <p>
+ * Every request's latency is recorded in a `LatencyHistogram` for its
+ * route (the path it matched, like `/api/users/{id}`, so there's one per
+ * endpoint rather than one per user), method and status. Each one is
+ * exported as a Prometheus histogram, with the latencies at a few
+ * quantiles alongside it.
+ * <p>
+ * Anything else (like the controllers' counts of rows scanned, or the
+ * JVM's allocation rate) is a counter or gauge whose value is read when
+ * the metrics are scraped, so keeping it up to date costs nothing extra.
+ * <p>
+ * All the methods are thread safe.
+ */
+public final class Metrics {
+  public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+  // The route of requests whose paths didn't match any route (static
+  // files and 404s).
+  public static final String UNMATCHED_ROUTE = "unmatched";
+
+  private static final String REQUEST_DURATION = "http_server_request_duration_seconds";
+  private static final String REQUEST_QUANTILES = "http_server_request_duration_quantile_seconds";
+  // The upper bounds of the exported histogram buckets.
+  private static final String[] BUCKET_SECONDS = {
+    "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+    "1", "2.5", "5", "10"
+  };
+  private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double MILLIS_PER_SECOND = 1e3;
+  private static final int NANOS_PER_MILLI = 1_000_000;
+  // Counts above this are written in exponent form, since doubles can't
+  // hold every integer beyond it.
+  private static final double MAX_EXACT_INTEGER = 1L << 53;
+
+  // HTTP statuses go from 100 to 599; anything outside that is counted as
+  // the nearest one.
+  private static final int MIN_STATUS = 100;
+  private static final int MAX_STATUS = 599;
+  private static final int STATUSES = MAX_STATUS - MIN_STATUS + 1;
+  private static final int METHODS = HandlerType.values().length;
+
+  // The latency histograms for each route, indexed by method and status.
+  // Only the histograms for combinations that have been seen are created.
+  private final ConcurrentHashMap<String, AtomicReferenceArray<LatencyHistogram>> requests =
+    new ConcurrentHashMap<>();
+  // The counters and gauges, by name, in the order they were added.
+  private final Map<String, Family> families = new LinkedHashMap<>();
+
+  // The total allocated when the allocation rate was last worked out.
+  private long lastAllocatedBytes;
+  private long lastAllocationNanos;
+
+  /**
+   * A counter or gauge, with a value for each set of labels it was added
+   * with.
+   */
+  private static final class Family {
+    private final String type;
+    private final String help;
+    private final List<Sample> samples = new ArrayList<>();
+
+    private Family(String type, String help) {
+      this.type = type;
+      this.help = help;
+    }
+  }
+
+  private record Sample(String labels, DoubleSupplier value) {
+  }
+
+  /**
+   * Record a request, as a Javalin request logger (so it's called once
+   * each request has been handled, whatever the outcome).
+   *
+   * @param ctx the context of the request
+   * @param executionTimeMs how long handling it took, in milliseconds
+   */
+  public void recordRequest(Context ctx, float executionTimeMs) {
+    // Requests that didn't reach an endpoint handler never get past the
+    // `BEFORE` handlers (which is where static files are served from).
+    String route = ctx.handlerType() == HandlerType.BEFORE ? UNMATCHED_ROUTE : ctx.endpointHandlerPath();
+    recordRequest(ctx.method(), route, ctx.statusCode(), (long) (executionTimeMs * NANOS_PER_MILLI));
+  }
+
+  /**
+   * Record a request's latency. This doesn't lock or allocate anything
+   * once the route, method and status have been seen before.
+   *
+   * @param method the request's method
+   * @param route the route it matched
+   * @param status the status of the response
+   * @param nanos how long handling it took, in nanoseconds
+   */
+  public void recordRequest(HandlerType method, String route, int status, long nanos) {
+    AtomicReferenceArray<LatencyHistogram> histograms = requests.get(route);
+    if (histograms == null) {
+      histograms = requests.computeIfAbsent(route, r -> new AtomicReferenceArray<>(METHODS * STATUSES));
+    }
+    int index = method.ordinal() * STATUSES + Math.min(Math.max(status, MIN_STATUS), MAX_STATUS) - MIN_STATUS;
+    LatencyHistogram histogram = histograms.get(index);
+    if (histogram == null) {
+      histograms.compareAndSet(index, null, new LatencyHistogram());
+      histogram = histograms.get(index);
+    }
+    histogram.record(nanos);
+  }
+
+  /**
+   * Add a counter: a value that only ever goes up, like a number of
+   * requests, or of rows scanned.
+   *
+   * @param name the counter's name, which should end in `_total`
+   * @param help a description of the counter
+   * @param labels the labels that tell this value from others with the
+   *   same name (which share its help)
+   * @param value read for the counter's value whenever the metrics are
+   *   scraped
+   */
+  public void counter(String name, String help, Map<String, String> labels, DoubleSupplier value) {
+    add("counter", name, help, labels, value);
+  }
+
+  /**
+   * Add a gauge: a value that can go up and down, like the size of the
+   * heap.
+   *
+   * @param name the gauge's name
+   * @param help a description of the gauge
+   * @param labels the labels that tell this value from others with the
+   *   same name (which share its help)
+   * @param value read for the gauge's value whenever the metrics are
+   *   scraped
+   */
+  public void gauge(String name, String help, Map<String, String> labels, DoubleSupplier value) {
+    add("gauge", name, help, labels, value);
+  }
+
+  private synchronized void add(String type, String name, String help, Map<String, String> labels,
+      DoubleSupplier value) {
+    Family family = families.computeIfAbsent(name, n -> new Family(type, help));
+    if (!family.type.equals(type)) {
+      throw new IllegalArgumentException("Metric " + name + " is already a " + family.type);
+    }
+    family.samples.add(new Sample(labels(new TreeMap<>(labels)), value));
+  }
+
+  /**
+   * Add gauges and counters for the JVM: how much memory has been
+   * allocated and how fast, how big the heap is, and how much the garbage
+   * collectors have run.
+   */
+  public void addJvmMetrics() {
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+        && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+      synchronized (this) {
+        lastAllocatedBytes = threads.getTotalThreadAllocatedBytes();
+        lastAllocationNanos = System.nanoTime();
+      }
+      counter("jvm_allocated_bytes_total", "Bytes allocated on the heap by all threads.", Map.of(),
+        threads::getTotalThreadAllocatedBytes);
+      gauge("jvm_allocation_rate_bytes_per_second", "Bytes allocated per second since the last scrape.", Map.of(),
+        () -> allocationRate(threads.getTotalThreadAllocatedBytes()));
+    }
+    MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    gauge("jvm_memory_used_bytes", "Bytes of memory in use.", Map.of("area", "heap"),
+      () -> memory.getHeapMemoryUsage().getUsed());
+    gauge("jvm_memory_max_bytes", "The most bytes of memory that can be used, or -1 if there's no limit.",
+      Map.of("area", "heap"), () -> memory.getHeapMemoryUsage().getMax());
+    for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+      Map<String, String> labels = Map.of("gc", collector.getName());
+      counter("jvm_gc_collections_total", "Garbage collections run.", labels, collector::getCollectionCount);
+      counter("jvm_gc_collection_seconds_total", "Time spent on garbage collections.", labels,
+        () -> collector.getCollectionTime() / MILLIS_PER_SECOND);
+    }
+  }
+
+  /**
+   * Work out how fast memory has been allocated since the last time this
+   * was called.
+   *
+   * @param allocatedBytes the total allocated so far
+   * @return the bytes allocated per second since the last call
+   */
+  private synchronized double allocationRate(long allocatedBytes) {
+    long now = System.nanoTime();
+    double seconds = (now - lastAllocationNanos) / NANOS_PER_SECOND;
+    double rate = seconds > 0 ? (allocatedBytes - lastAllocatedBytes) / seconds : 0;
+    lastAllocatedBytes = allocatedBytes;
+    lastAllocationNanos = now;
+    return rate;
+  }
+
+  /**
+   * Respond with the metrics, if the request came from this machine.
+   *
+   * @param ctx the context of the request
+   */
+  public void serve(Context ctx) {
+    if (!isLocal(ctx.ip())) {
+      throw new ForbiddenResponse("Metrics are only available to local clients");
+    }
+    ctx.contentType(CONTENT_TYPE);
+    ctx.result(scrape());
+  }
+
+  static boolean isLocal(String ip) {
+    try {
+      // An IP address is parsed, not looked up.
+      return InetAddress.getByName(ip).isLoopbackAddress();
+    } catch (UnknownHostException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Write out all the metrics in the Prometheus text format.
+   *
+   * @return the metrics
+   */
+  public String scrape() {
+    StringBuilder out = new StringBuilder();
+    writeRequests(out);
+    synchronized (this) {
+      families.forEach((name, family) -> {
+        writeHeader(out, name, family.type, family.help);
+        for (Sample sample : family.samples) {
+          writeSample(out, name, sample.labels, sample.value.getAsDouble());
+        }
+      });
+    }
+    return out.toString();
+  }
+
+  private void writeRequests(StringBuilder out) {
+    // Take the snapshots first, so the histograms and quantiles agree.
+    Map<String, LatencyHistogram.Snapshot> snapshots = new TreeMap<>();
+    requests.forEach((route, histograms) -> {
+      for (int i = 0; i < histograms.length(); i++) {
+        LatencyHistogram histogram = histograms.get(i);
+        if (histogram != null) {
+          Map<String, String> labels = new TreeMap<>();
+          labels.put("method", HandlerType.values()[i / STATUSES].name());
+          labels.put("route", route);
+          labels.put("status", Integer.toString(i % STATUSES + MIN_STATUS));
+          snapshots.put(labels(labels), histogram.snapshot());
+        }
+      }
+    });
+    if (snapshots.isEmpty()) {
+      return;
+    }
+    writeHeader(out, REQUEST_DURATION, "histogram", "Time taken to handle requests.");
+    snapshots.forEach((labels, snapshot) -> {
+      for (String bound : BUCKET_SECONDS) {
+        long nanos = Math.round(Double.parseDouble(bound) * NANOS_PER_SECOND);
+        writeSample(out, REQUEST_DURATION + "_bucket", labels + ",le=\"" + bound + "\"",
+          snapshot.countAtOrBelow(nanos));
+      }
+      writeSample(out, REQUEST_DURATION + "_bucket", labels + ",le=\"+Inf\"", snapshot.count());
+      writeSample(out, REQUEST_DURATION + "_sum", labels, snapshot.totalNanos() / NANOS_PER_SECOND);
+      writeSample(out, REQUEST_DURATION + "_count", labels, snapshot.count());
+    });
+    writeHeader(out, REQUEST_QUANTILES, "gauge", "Time taken to handle requests, at quantiles (within 3%).");
+    snapshots.forEach((labels, snapshot) -> {
+      for (String quantile : QUANTILES) {
+        writeSample(out, REQUEST_QUANTILES, labels + ",quantile=\"" + quantile + "\"",
+          snapshot.valueAtQuantile(Double.parseDouble(quantile)) / NANOS_PER_SECOND);
+      }
+    });
+  }
+
+  private static void writeHeader(StringBuilder out, String name, String type, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help.replace("\\", "\\\\").replace("\n", "\\n"))
+      .append('\n');
+    out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private static void writeSample(StringBuilder out, String name, String labels, double value) {
+    out.append(name);
+    if (!labels.isEmpty()) {
+      out.append('{').append(labels).append('}');
+    }
+    out.append(' ').append(format(value)).append('\n');
+  }
+
+  /**
+   * Write out labels, in the order given.
+   *
+   * @param labels the labels' names and values
+   * @return the labels, like `method="GET",status="200"`
+   */
+  private static String labels(Map<String, String> labels) {
+    StringBuilder out = new StringBuilder();
+    labels.forEach((name, value) -> {
+      if (out.length() > 0) {
+        out.append(',');
+      }
+      out.append(name).append("=\"")
+        .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+    });
+    return out.toString();
+  }
+
+  static String format(double value) {
+    if (Double.isNaN(value)) {
+      return "NaN";
+    }
+    if (Double.isInfinite(value)) {
+      return value > 0 ? "+Inf" : "-Inf";
+    }
+    if (value == Math.rint(value) && Math.abs(value) < MAX_EXACT_INTEGER) {
+      return Long.toString((long) value);
+    }
+    return Double.toString(value);
+  }
+}
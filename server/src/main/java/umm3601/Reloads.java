@@ -0,0 +1,83 @@
+package umm3601;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How often a database's data file has been reloaded (see
+ * `DataFileWatcher`), and how long the last reload took: building the new
+ * store and its indexes, which happens while requests carry on with the
+ * old one, and swapping it in, which is all that requests could ever have
+ * to wait for.
+ */
+public final class Reloads {
+  private static final Logger LOGGER = LoggerFactory.getLogger(Reloads.class);
+  private static final double NANOS_PER_SECOND = 1e9;
+  private static final double NANOS_PER_MILLI = 1e6;
+  private static final double NANOS_PER_MICRO = 1e3;
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private volatile long lastBuildNanos;
+  private volatile long lastSwapNanos;
+
+  /**
+   * Record (and log) a reload.
+   *
+   * @param dataFile the data file that was reloaded
+   * @param size how many records were loaded from it
+   * @param buildNanos how long the new store took to build
+   * @param swapNanos how long it took to swap it in
+   */
+  public void record(String dataFile, int size, long buildNanos, long swapNanos) {
+    LOGGER.info(String.format("Reloaded %d records from %s: built in %.1f ms, swapped in %.1f us", size, dataFile,
+      buildNanos / NANOS_PER_MILLI, swapNanos / NANOS_PER_MICRO));
+    lastBuildNanos = buildNanos;
+    lastSwapNanos = swapNanos;
+    count.incrementAndGet();
+  }
+
+  /**
+   * Record a reload that failed, leaving the old store in place.
+   */
+  public void recordFailure() {
+    failures.incrementAndGet();
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  public long failures() {
+    return failures.get();
+  }
+
+  public long lastBuildNanos() {
+    return lastBuildNanos;
+  }
+
+  public long lastSwapNanos() {
+    return lastSwapNanos;
+  }
+
+  /**
+   * Add the reloads to the server's metrics.
+   *
+   * @param metrics the server's metrics
+   * @param collection the name of the database's collection (for the
+   *   `collection` label)
+   */
+  public void addMetrics(Metrics metrics, String collection) {
+    Map<String, String> labels = Map.of("collection", collection);
+    metrics.counter("data_reloads_total", "Times the data file was reloaded.", labels, this::count);
+    metrics.counter("data_reload_failures_total", "Times the data file couldn't be reloaded.", labels,
+      this::failures);
+    metrics.gauge("data_reload_build_seconds", "How long the last reload took to build the new store.", labels,
+      () -> lastBuildNanos / NANOS_PER_SECOND);
+    metrics.gauge("data_reload_swap_seconds", "How long the last reload took to swap the new store in.", labels,
+      () -> lastSwapNanos / NANOS_PER_SECOND);
+  }
+}
@@ -0,0 +1,246 @@
+package umm3601;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * A bounded cache of serialized list responses, keyed by the version of
+ * the data they came from and the (normalized) query parameters.
+ * <p>
+ * Clients tend to repeat the same few queries over and over. On a cache
+ * hit the response bytes are written out as they are, so the query isn't
+ * run again and nothing is serialized. Responses big enough to be worth
+ * compressing are also kept gzipped, so clients that accept gzip get them
+ * without them being compressed again.
+ * <p>
+ * The cache holds at most `maxBytes` of responses, evicting the least
+ * recently used ones first. Any response bigger than a quarter of that
+ * isn't cached at all, so one huge response can't flush out everything
+ * else. Entries are only ever valid for one version of the data: as soon
+ * as a response for a newer version is cached, everything older is
+ * dropped.
+ * <p>
+ * All the methods are thread safe.
+ */
+public final class ResponseCache {
+  public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+  private static final int MAX_ENTRY_FRACTION = 4;
+  private static final int INITIAL_CAPACITY = 16;
+  private static final float LOAD_FACTOR = 0.75f;
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final long maxBytes;
+  // In least to most recently used order.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(INITIAL_CAPACITY, LOAD_FACTOR, true);
+  private long bytes = 0;
+  // The newest version of the data that's been cached.
+  private long latestVersion = Long.MIN_VALUE;
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  /**
+   * A cached response.
+   */
+  public static final class Entry {
+    private final byte[] json;
+    // The gzipped JSON, or `null` if it's not worth compressing.
+    private final byte[] gzipped;
+    private final String nextCursor;
+
+    private Entry(byte[] json, String nextCursor) {
+      this.json = json;
+      this.gzipped = compress(json);
+      this.nextCursor = nextCursor;
+    }
+
+    private static byte[] compress(byte[] json) {
+      if (json.length < Compression.MIN_COMPRESSED_BYTES) {
+        return null;
+      }
+      byte[] gzipped = Compression.gzip(json);
+      return gzipped.length < json.length ? gzipped : null;
+    }
+
+    /**
+     * Serialize a response body for caching.
+     *
+     * @param body the object to serialize as JSON
+     * @param nextCursor the cursor for the `Link` header, or `null`
+     * @return the entry
+     */
+    public static Entry of(Object body, String nextCursor) {
+      try {
+        return new Entry(OBJECT_MAPPER.writeValueAsBytes(body), nextCursor);
+      } catch (JsonProcessingException e) {
+        // The objects we cache are plain data classes, which always serialize.
+        throw new IllegalStateException(e);
+      }
+    }
+
+    public String nextCursor() {
+      return nextCursor;
+    }
+
+    public boolean isCompressed() {
+      return gzipped != null;
+    }
+
+    /**
+     * The number of bytes this response takes up in the cache.
+     *
+     * @return the size of the JSON plus the size of the gzipped JSON
+     */
+    public int size() {
+      return json.length + (gzipped == null ? 0 : gzipped.length);
+    }
+
+    /**
+     * Send this response, including its `Link` header. Clients that accept
+     * gzip get the gzipped response if there is one.
+     *
+     * @param ctx a Javalin HTTP context
+     */
+    public void writeTo(Context ctx) {
+      Cursor.addNextLink(ctx, nextCursor);
+      ctx.contentType(ContentType.APPLICATION_JSON);
+      ctx.header(Header.VARY, Header.ACCEPT_ENCODING);
+      if (gzipped != null && Compression.acceptsGzip(ctx)) {
+        // Javalin leaves responses that already have a `Content-Encoding`
+        // alone, rather than compressing them again.
+        ctx.header(Header.CONTENT_ENCODING, Compression.GZIP);
+        ctx.result(gzipped);
+      } else {
+        ctx.result(json);
+      }
+    }
+  }
+
+  /**
+   * Construct an empty cache.
+   *
+   * @param maxBytes the most response bytes to hold at once
+   */
+  public ResponseCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Build the cache key for a query. Parameters are sorted by name, so the
+   * same query written in a different order has the same key, but the
+   * order of the values of a repeated parameter is kept.
+   *
+   * @param version the version of the data the query runs against
+   * @param queryParams the query parameters
+   * @return the key
+   */
+  static String key(long version, Map<String, List<String>> queryParams) {
+    StringBuilder key = new StringBuilder().append(version);
+    for (Map.Entry<String, List<String>> param : new TreeMap<>(queryParams).entrySet()) {
+      for (String value : param.getValue()) {
+        // Doubling any `&`s means a single `&` always starts a new
+        // parameter, so two different queries can't have the same key.
+        key.append('&').append(param.getKey().replace("&", "&&").replace("=", "&="))
+          .append('=').append(value.replace("&", "&&"));
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Look up a cached response.
+   *
+   * @param version the version of the data the query runs against
+   * @param queryParams the query parameters
+   * @return the cached response, or `null` if there isn't one
+   */
+  public synchronized Entry get(long version, Map<String, List<String>> queryParams) {
+    Entry entry = entries.get(key(version, queryParams));
+    if (entry == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return entry;
+  }
+
+  /**
+   * Cache a response, evicting the least recently used responses if need
+   * be to make room for it.
+   *
+   * @param version the version of the data the response came from
+   * @param queryParams the query parameters
+   * @param entry the response
+   */
+  public synchronized void put(long version, Map<String, List<String>> queryParams, Entry entry) {
+    if (version < latestVersion || entry.size() > maxBytes / MAX_ENTRY_FRACTION) {
+      return;
+    }
+    if (version > latestVersion) {
+      invalidate();
+      latestVersion = version;
+    }
+    Entry previous = entries.put(key(version, queryParams), entry);
+    bytes += entry.size() - (previous == null ? 0 : previous.size());
+    Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+    while (bytes > maxBytes) {
+      bytes -= leastRecentlyUsed.next().size();
+      leastRecentlyUsed.remove();
+      evictions++;
+    }
+  }
+
+  /**
+   * Drop every cached response.
+   */
+  public synchronized void invalidate() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public synchronized long hits() {
+    return hits;
+  }
+
+  public synchronized long misses() {
+    return misses;
+  }
+
+  public synchronized long evictions() {
+    return evictions;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long bytes() {
+    return bytes;
+  }
+
+  /**
+   * Add the cache's hits, misses, evictions and size to the server's
+   * metrics.
+   *
+   * @param metrics the server's metrics
+   * @param name what's cached, to tell this cache from others
+   */
+  public void addMetrics(Metrics metrics, String name) {
+    Map<String, String> labels = Map.of("cache", name);
+    metrics.counter("response_cache_hits_total", "Responses served from the cache.", labels, this::hits);
+    metrics.counter("response_cache_misses_total", "Responses not found in the cache.", labels, this::misses);
+    metrics.counter("response_cache_evictions_total", "Responses dropped to make room in the cache.", labels,
+      this::evictions);
+    metrics.gauge("response_cache_bytes", "Bytes of responses in the cache.", labels, this::bytes);
+  }
+}
@@ -1,6 +1,10 @@
 package umm3601;
 
 import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import io.javalin.Javalin;
 import io.javalin.http.InternalServerErrorResponse;
@@ -12,10 +16,57 @@ public class Server {
   private static final int SERVER_PORT = 4567;
   public static final String CLIENT_DIRECTORY = "../client";
 
+  // The size of Jetty's thread pool. In `PLATFORM` mode these are the
+  // threads requests run on; in `VIRTUAL` mode they only accept
+  // connections and do non-blocking I/O.
+  private static final int MIN_THREADS = 8;
+  private static final int MAX_THREADS = 250;
+  private static final int THREAD_IDLE_TIMEOUT_MILLIS = 60_000;
+
+  /**
+   * How the server runs requests.
+   */
+  public enum ThreadMode {
+    /**
+     * Each request runs on its own virtual thread, so a request that
+     * blocks doesn't hold up any others, however many there are.
+     */
+    VIRTUAL,
+    /**
+     * Requests run on Jetty's bounded pool of platform threads, and queue
+     * up once all of them are busy.
+     */
+    PLATFORM;
+
+    /**
+     * Get the thread mode with the given name, ignoring case.
+     *
+     * @param name the name of a thread mode (e.g., `platform`)
+     * @return the thread mode
+     * @throws IllegalArgumentException if there's no thread mode with
+     *   that name
+     */
+    public static ThreadMode parse(String name) {
+      for (ThreadMode mode : values()) {
+        if (mode.name().equals(name.toUpperCase(Locale.ROOT))) {
+          return mode;
+        }
+      }
+      throw new IllegalArgumentException("Unknown thread mode " + name + "; expected one of "
+        + Arrays.stream(values()).map(mode -> mode.name().toLowerCase(Locale.ROOT)).toList());
+    }
+  }
+
   // The `controllers` field is an array of all the `Controller` implementations
   // for the server. This is used to add routes to the server.
   private Controller[] controllers;
 
+  private ThreadMode threadMode;
+
+  // The latencies of every request, and anything else the controllers
+  // measure; served at `/metrics`.
+  private Metrics metrics = new Metrics();
+
   /**
    * Construct a `Server` object that we'll use (via `startServer()`) to configure
    * and start the server.
@@ -23,12 +74,23 @@ public class Server {
    * @param controllers The implementations of `Controller` used for this server
    */
   public Server(Controller[] controllers) {
+    this(controllers, ThreadMode.PLATFORM);
+  }
+
+  /**
+   * Construct a `Server` object that runs requests in the given way.
+   *
+   * @param controllers The implementations of `Controller` used for this server
+   * @param threadMode How the server runs requests
+   */
+  public Server(Controller[] controllers, ThreadMode threadMode) {
     // This is what is known as a "defensive copy". We make a copy of
     // the array so that if the caller modifies the array after passing
     // it in, we don't have to worry about it. If we didn't do this,
     // the caller could modify the array after passing it in, and then
     // we'd be using the modified array without realizing it.
     this.controllers = Arrays.copyOf(controllers, controllers.length);
+    this.threadMode = threadMode;
   }
 
   /**
@@ -44,6 +106,21 @@ public class Server {
     javalin.start(SERVER_PORT);
   }
 
+  /**
+   * Build the thread pool for Jetty. In `VIRTUAL` mode the pool hands
+   * request handling off to a new virtual thread per request.
+   *
+   * @return The thread pool
+   */
+  private QueuedThreadPool threadPool() {
+    QueuedThreadPool threadPool = new QueuedThreadPool(MAX_THREADS, MIN_THREADS, THREAD_IDLE_TIMEOUT_MILLIS);
+    threadPool.setName("JettyServerThreadPool");
+    if (threadMode == ThreadMode.VIRTUAL) {
+      threadPool.setVirtualThreadsExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+    return threadPool;
+  }
+
   /**
    * Configure the Javalin server. This includes
    *
@@ -53,6 +130,10 @@ public class Server {
    *   JVM is shut down.
    * - Setting up a handler for uncaught exceptions to return an HTTP 500
    *   error.
+   * - Running requests on virtual or platform threads, depending on the
+   *   `threadMode`.
+   * - Compressing responses (see `Compression`).
+   * - Recording how long every request takes (see `Metrics`).
    *
    * @return The Javalin server instance
    */
@@ -79,6 +160,15 @@ public class Server {
       // routes/endpoints that we add below on a page reachable
       // via the "/api" path.
       config.plugins.register(new RouteOverviewPlugin("/api"));
+      // This gives Jetty (the HTTP server underneath Javalin) our own
+      // thread pool, so we control which kind of threads requests run on.
+      config.jetty.server(() -> new org.eclipse.jetty.server.Server(threadPool()));
+      // This gzips responses that are big enough to be worth it, for
+      // clients that accept gzip.
+      config.compression.custom(Compression.strategy());
+      // This is called once each request has been handled, with how long
+      // it took, which goes in the latency histogram for its route.
+      config.requestLogger.http(metrics::recordRequest);
     });
 
     // This catches any uncaught exceptions thrown in the server
@@ -104,19 +194,21 @@ public class Server {
    */
   private void setupRoutes(Javalin server) {
     setDefaultRoutes(server);
-    // Add the routes for each of the implementations of `Controller` in the
-    // `controllers` array.
+    // Add the routes (and metrics) for each of the implementations of
+    // `Controller` in the `controllers` array.
     for (Controller controller : controllers) {
       controller.addRoutes(server);
+      controller.addMetrics(metrics);
     }
+    metrics.addJvmMetrics();
   }
 
   /**
    * Set up the default routes for the server.
    *
    * This includes a simple "hello world" route (just for demonstration
-   * purposes) and routes to redirect "simple" URLs to the actual
-   * HTML pages.
+   * purposes), routes to redirect "simple" URLs to the actual
+   * HTML pages, and the Prometheus metrics (for local clients only).
    *
    * @param server The Javalin server instance
    */
@@ -127,5 +219,8 @@ public class Server {
     // Redirects to create simpler URLs
     server.get("/users", ctx -> ctx.redirect("/users.html"));
     server.get("/todos", ctx -> ctx.redirect("/todos.html"));
+
+    // Metrics, in the Prometheus text format
+    server.get("/metrics", metrics::serve);
   }
 }
@@ -0,0 +1,215 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, dictionary-encoded column of strings, for fields (like a
+ * todo's owner or category) that only have a handful of distinct values.
+ * <p>
+ * Each distinct value is stored once, and the column itself is just an
+ * `int` code per row saying which value it has. Because the codes are
+ * already grouped by value, the column also provides a posting list (the
+ * ascending positions of the rows) for each value, and the rank of each
+ * value in sorted order. A row's value can be `null`, which is given a
+ * code like any other value and sorts first.
+ */
+public final class DictionaryColumn {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // The distinct values, indexed by code.
+  private final String[] values;
+  private final Map<String, Integer> codesByValue;
+  // The code of the value in each row.
+  private final int[] codes;
+  // The posting list for each code, and how many positions are in it.
+  private final int[][] postings;
+  private final int[] counts;
+  // The position of each code's value in sorted order.
+  private final int[] ranks;
+
+  /**
+   * Construct a column from its distinct values and the code of the value
+   * in each row, e.g., as read back from a `TodoSnapshot`.
+   *
+   * @param values the distinct values, indexed by code
+   * @param codes the code of the value in each row
+   */
+  DictionaryColumn(List<String> values, int[] codes) {
+    this.values = values.toArray(new String[0]);
+    this.codes = codes;
+    codesByValue = new HashMap<>(this.values.length * 2);
+    for (int code = 0; code < this.values.length; code++) {
+      codesByValue.put(this.values[code], code);
+    }
+
+    // Count the rows with each code, so each posting list can be allocated
+    // at exactly the right size, then fill them in.
+    counts = new int[this.values.length];
+    for (int code : codes) {
+      counts[code]++;
+    }
+    postings = new int[this.values.length][];
+    for (int code = 0; code < this.values.length; code++) {
+      postings[code] = new int[counts[code]];
+    }
+    int[] filled = new int[this.values.length];
+    for (int position = 0; position < codes.length; position++) {
+      int code = codes[position];
+      postings[code][filled[code]++] = position;
+    }
+
+    Integer[] sorted = new Integer[this.values.length];
+    for (int code = 0; code < sorted.length; code++) {
+      sorted[code] = code;
+    }
+    Arrays.sort(sorted, Comparator.comparing(code -> this.values[code],
+      Comparator.nullsFirst(Comparator.naturalOrder())));
+    ranks = new int[this.values.length];
+    for (int rank = 0; rank < sorted.length; rank++) {
+      ranks[sorted[rank]] = rank;
+    }
+  }
+
+  String[] values() {
+    return values;
+  }
+
+  int[] codes() {
+    return codes;
+  }
+
+  /**
+   * Count the rows with each value, without looking at any rows.
+   *
+   * @return the number of rows with each code (shared, so it mustn't be
+   *   modified)
+   */
+  int[] counts() {
+    return counts;
+  }
+
+  /**
+   * Get the value in a row.
+   *
+   * @param position the row
+   * @return the value in that row (shared by every row with that value)
+   */
+  public String get(int position) {
+    return values[codes[position]];
+  }
+
+  /**
+   * Get the sorted rank of the value in a row. Comparing ranks gives the
+   * same order as comparing the values themselves.
+   *
+   * @param position the row
+   * @return the position of that row's value among the sorted distinct values
+   */
+  public int rank(int position) {
+    return ranks[codes[position]];
+  }
+
+  /**
+   * Get the code of a value, so rows can be checked for it by comparing
+   * their codes.
+   *
+   * @param value the value to look up
+   * @return its code, or -1 if no row has that value
+   */
+  int codeOf(String value) {
+    Integer code = codesByValue.get(value);
+    return code == null ? -1 : code;
+  }
+
+  /**
+   * Get the posting list for a value.
+   *
+   * @param value the value to look up
+   * @return the ascending positions of the rows with that value (shared,
+   *   so it mustn't be modified)
+   */
+  public int[] positionsWith(String value) {
+    Integer code = codesByValue.get(value);
+    return code == null ? PostingLists.EMPTY : postings[code];
+  }
+
+  /**
+   * Builds a `DictionaryColumn` by appending one value at a time.
+   */
+  public static final class Builder {
+    private final List<String> values;
+    private final Map<String, Integer> codesByValue;
+    // The column whose dictionary this builder started with, whose rows
+    // can be copied by their codes, or `null`.
+    private final DictionaryColumn previous;
+    private int[] codes = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public Builder() {
+      values = new ArrayList<>();
+      codesByValue = new HashMap<>();
+      previous = null;
+    }
+
+    /**
+     * Construct a builder that starts with another column's dictionary,
+     * so its rows can be copied across by their codes (see `addRows`).
+     * Values that are no longer in any row stay in the dictionary (with
+     * no rows) until a column is built from scratch.
+     *
+     * @param previous the other column
+     */
+    Builder(DictionaryColumn previous) {
+      values = new ArrayList<>(Arrays.asList(previous.values));
+      codesByValue = new HashMap<>(previous.codesByValue);
+      this.previous = previous;
+    }
+
+    /**
+     * Append a value to the column being built.
+     *
+     * @param value the value to append, which may be `null`
+     */
+    public void add(String value) {
+      Integer code = codesByValue.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        codesByValue.put(value, code);
+      }
+      if (size == codes.length) {
+        codes = Arrays.copyOf(codes, codes.length * 2);
+      }
+      codes[size++] = code;
+    }
+
+    /**
+     * Append a run of the rows of the column this builder started with,
+     * by copying their codes.
+     *
+     * @param from the position of the first row to append
+     * @param to the position just after the last row to append
+     */
+    void addRows(int from, int to) {
+      if (size + (to - from) > codes.length) {
+        codes = Arrays.copyOf(codes, Math.max(codes.length * 2, size + (to - from)));
+      }
+      System.arraycopy(previous.codes, from, codes, size, to - from);
+      size += to - from;
+    }
+
+    /**
+     * Finish building the column.
+     *
+     * @return a column holding all the values that were added, in order
+     */
+    public DictionaryColumn build() {
+      return new DictionaryColumn(values, Arrays.copyOf(codes, size));
+    }
+  }
+}
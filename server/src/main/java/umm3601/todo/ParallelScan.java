@@ -0,0 +1,159 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntPredicate;
+
+/**
+ * Checks todos against a filter one at a time, for filters that can't be
+ * answered from an index (see `TodoQueryPlan`). A big scan is split into
+ * fixed-size segments of positions, which are checked in parallel on a
+ * pool of threads kept just for scans (so scans never compete with
+ * anything else using the common pool), and the segments' matches are
+ * joined back together in the order the positions were in.
+ * <p>
+ * Scans of fewer positions than a threshold are done on the calling
+ * thread, since for them handing the work to the pool would cost more
+ * than it saves.
+ */
+public final class ParallelScan {
+  // The number of threads scans use, and the fewest positions a scan must
+  // have to be split, can be set with these system properties (e.g.,
+  // `-Dtodos.scan.threads=8 -Dtodos.scan.threshold=100000`); by default
+  // there's a thread per processor.
+  public static final String THREADS_PROPERTY = "todos.scan.threads";
+  public static final String THRESHOLD_PROPERTY = "todos.scan.threshold";
+  public static final int DEFAULT_THRESHOLD = 32_768;
+  public static final int SEGMENT_SIZE = 8192;
+
+  private static volatile ParallelScan shared;
+
+  private final int threshold;
+  private final int segmentSize;
+  // `null` if there's only one thread, so every scan is sequential.
+  private final ForkJoinPool pool;
+
+  /**
+   * Construct a scan with its own pool of threads.
+   *
+   * @param parallelism the number of threads to split scans over (1 to
+   *   never split them)
+   * @param threshold the fewest positions a scan must have to be split
+   * @param segmentSize the number of positions in each segment
+   */
+  public ParallelScan(int parallelism, int threshold, int segmentSize) {
+    if (parallelism < 1 || segmentSize < 1) {
+      throw new IllegalArgumentException("A scan needs at least one thread and one position per segment");
+    }
+    this.threshold = threshold;
+    this.segmentSize = segmentSize;
+    pool = parallelism == 1 ? null : new ForkJoinPool(parallelism, forkJoinPool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+      thread.setName("todo-scan-" + thread.getPoolIndex());
+      thread.setDaemon(true);
+      return thread;
+    }, null, false);
+  }
+
+  /**
+   * Get the scan every `TodoDatabase` uses unless it's given another,
+   * configured by the system properties above the first time it's used.
+   *
+   * @return the shared scan
+   */
+  public static ParallelScan shared() {
+    if (shared == null) {
+      synchronized (ParallelScan.class) {
+        if (shared == null) {
+          int threads = Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+          shared = new ParallelScan(Math.max(1, threads), Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD),
+            SEGMENT_SIZE);
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Check whether a scan of some positions would be split over the pool.
+   *
+   * @param positions the number of positions
+   * @return whether it would
+   */
+  public boolean splits(int positions) {
+    return pool != null && positions >= threshold && positions > segmentSize;
+  }
+
+  /**
+   * Find the positions that pass a check.
+   *
+   * @param positions the positions to check, in any order; these aren't
+   *   modified
+   * @param check the check, which must be safe to call from several
+   *   threads at once
+   * @return a new array of the positions that pass, in the same order
+   */
+  public int[] filter(int[] positions, IntPredicate check) {
+    if (!splits(positions.length)) {
+      return filterSegment(positions, 0, positions.length, check);
+    }
+    int[][] segments = new int[(positions.length + segmentSize - 1) / segmentSize][];
+    pool.invoke(new Segments(positions, check, segments, 0, segments.length));
+    int total = 0;
+    for (int[] segment : segments) {
+      total += segment.length;
+    }
+    int[] matches = new int[total];
+    int n = 0;
+    for (int[] segment : segments) {
+      System.arraycopy(segment, 0, matches, n, segment.length);
+      n += segment.length;
+    }
+    return matches;
+  }
+
+  private static int[] filterSegment(int[] positions, int from, int to, IntPredicate check) {
+    int[] matches = new int[to - from];
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      if (check.test(positions[i])) {
+        matches[n++] = positions[i];
+      }
+    }
+    return Arrays.copyOf(matches, n);
+  }
+
+  /**
+   * Checks a run of segments, by splitting it in half until there's only
+   * one segment left, so idle threads can steal the halves.
+   */
+  private final class Segments extends RecursiveAction {
+    private final int[] positions;
+    private final IntPredicate check;
+    private final int[][] results;
+    private final int from;
+    private final int to;
+
+    Segments(int[] positions, IntPredicate check, int[][] results, int from, int to) {
+      this.positions = positions;
+      this.check = check;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from == 1) {
+        int start = from * segmentSize;
+        results[from] = filterSegment(positions, start, Math.min(positions.length, start + segmentSize), check);
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(new Segments(positions, check, results, from, middle),
+        new Segments(positions, check, results, middle, to));
+    }
+  }
+}
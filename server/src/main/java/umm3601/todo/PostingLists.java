@@ -0,0 +1,62 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for working with posting lists, i.e., ascending arrays of
+ * positions in a `TodoStore`.
+ */
+public final class PostingLists {
+  public static final int[] EMPTY = new int[0];
+
+  private PostingLists() {
+  }
+
+  /**
+   * Intersect two ascending posting lists. Each position in the smaller
+   * list is looked up in the larger one with a binary search, so this is
+   * O(small * log(large)) rather than proportional to the size of the
+   * database.
+   *
+   * @param a an ascending posting list
+   * @param b another ascending posting list
+   * @return a new array with the positions in both lists, in ascending order
+   */
+  public static int[] intersect(int[] a, int[] b) {
+    int[] small = a.length <= b.length ? a : b;
+    int[] large = a.length <= b.length ? b : a;
+    int[] result = new int[small.length];
+    int n = 0;
+    int from = 0;
+    for (int position : small) {
+      int found = Arrays.binarySearch(large, from, large.length, position);
+      if (found >= 0) {
+        result[n++] = position;
+        from = found + 1;
+      } else {
+        from = -found - 1;
+      }
+    }
+    return Arrays.copyOf(result, n);
+  }
+
+  /**
+   * Merge two ascending posting lists that have no positions in common.
+   *
+   * @param a an ascending posting list
+   * @param b another ascending posting list, with none of the positions in `a`
+   * @return a new array with the positions in either list, in ascending order
+   */
+  public static int[] union(int[] a, int[] b) {
+    int[] result = new int[a.length + b.length];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+    while (i < a.length && j < b.length) {
+      result[n++] = a[i] < b[j] ? a[i++] : b[j++];
+    }
+    System.arraycopy(a, i, result, n, a.length - i);
+    System.arraycopy(b, j, result, n + a.length - i, b.length - j);
+    return result;
+  }
+}
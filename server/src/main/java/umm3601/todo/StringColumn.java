@@ -0,0 +1,256 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+
+/**
+ * An immutable column of strings stored end to end in a single shared
+ * "arena" string, with an array of offsets saying where each one starts.
+ * <p>
+ * Compared to an array of separate `String` objects this saves an object
+ * header, a backing array and a reference per value, and keeps all the
+ * characters next to each other in memory, which makes scanning through
+ * them (e.g., for a substring search) much more cache friendly. Strings
+ * are only copied out of the arena when `get` is called.
+ * <p>
+ * A value can be `null`, which takes no space in the arena and sorts
+ * before every string (including the empty one).
+ */
+public final class StringColumn {
+  private static final int INITIAL_CAPACITY = 16;
+  // The multiplier used by `String.hashCode`.
+  private static final int HASH_MULTIPLIER = 31;
+
+  private final String arena;
+  // Value `i` is `arena.substring(start(i), end(i))`. The offset where a
+  // value ends is stored as `~end` (which is negative) if it's `null`.
+  private final int[] offsets;
+
+  /**
+   * Construct a column from an arena and its offsets, e.g., as read back
+   * from a `TodoSnapshot`.
+   *
+   * @param arena all the values, end to end
+   * @param offsets where each value starts, followed by the arena's length
+   *   (each one after the first as `~offset` if the value before it is
+   *   `null`)
+   */
+  StringColumn(String arena, int[] offsets) {
+    this.arena = arena;
+    this.offsets = offsets;
+  }
+
+  String arena() {
+    return arena;
+  }
+
+  int[] offsets() {
+    return offsets;
+  }
+
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Get where a value starts in the arena.
+   *
+   * @param i the index of the value
+   * @return the offset of its first char
+   */
+  int start(int i) {
+    int offset = offsets[i];
+    return offset < 0 ? ~offset : offset;
+  }
+
+  /**
+   * Get where a value ends in the arena.
+   *
+   * @param i the index of the value
+   * @return the offset just after its last char (the same as `start(i)`
+   *   for an empty or `null` value)
+   */
+  int end(int i) {
+    int offset = offsets[i + 1];
+    return offset < 0 ? ~offset : offset;
+  }
+
+  public boolean isNull(int i) {
+    return offsets[i + 1] < 0;
+  }
+
+  /**
+   * Copy a value out of the arena.
+   *
+   * @param i the index of the value
+   * @return the value at that index, which may be `null`
+   */
+  public String get(int i) {
+    return isNull(i) ? null : arena.substring(start(i), end(i));
+  }
+
+  /**
+   * Compute the hash code that `get(i).hashCode()` would return, without
+   * copying the value out of the arena.
+   *
+   * @param i the index of the value
+   * @return the `String` hash code of that value (0 for `null`)
+   */
+  public int hashCodeAt(int i) {
+    int hash = 0;
+    for (int k = start(i), end = end(i); k < end; k++) {
+      hash = HASH_MULTIPLIER * hash + arena.charAt(k);
+    }
+    return hash;
+  }
+
+  /**
+   * Check whether a value is equal to a string.
+   *
+   * @param i the index of the value
+   * @param s the string to compare it to, which may be `null`
+   * @return whether `Objects.equals(get(i), s)`
+   */
+  public boolean equalsAt(int i, String s) {
+    if (isNull(i) || s == null) {
+      return isNull(i) && s == null;
+    }
+    int length = end(i) - start(i);
+    return length == s.length() && arena.regionMatches(start(i), s, 0, length);
+  }
+
+  /**
+   * Compare two values in the column, in the same order as `String.compareTo`
+   * (with `null` first).
+   *
+   * @param i the index of one value
+   * @param j the index of another value
+   * @return negative, zero or positive as `get(i)` is less than, equal to
+   *   or greater than `get(j)`
+   */
+  public int compare(int i, int j) {
+    if (isNull(i) || isNull(j)) {
+      return Boolean.compare(!isNull(i), !isNull(j));
+    }
+    int a = start(i);
+    int aEnd = end(i);
+    int b = start(j);
+    int bEnd = end(j);
+    while (a < aEnd && b < bEnd) {
+      char x = arena.charAt(a++);
+      char y = arena.charAt(b++);
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return (aEnd - start(i)) - (bEnd - start(j));
+  }
+
+  /**
+   * Compare a value in the column to a string, in the same order as
+   * `String.compareTo` (with `null` first).
+   *
+   * @param i the index of the value
+   * @param s the string to compare it to, which may be `null`
+   * @return negative, zero or positive as `get(i)` is less than, equal to
+   *   or greater than `s`
+   */
+  public int compareTo(int i, String s) {
+    if (isNull(i) || s == null) {
+      return Boolean.compare(!isNull(i), s != null);
+    }
+    int start = start(i);
+    int length = end(i) - start;
+    int common = Math.min(length, s.length());
+    for (int k = 0; k < common; k++) {
+      char x = arena.charAt(start + k);
+      char y = s.charAt(k);
+      if (x != y) {
+        return x - y;
+      }
+    }
+    return length - s.length();
+  }
+
+  /**
+   * Check whether a value contains a string, searching the arena in place.
+   *
+   * @param i the index of the value
+   * @param query the string to look for
+   * @param ignoreCase whether to ignore case when comparing characters
+   * @return whether `query` appears somewhere in `get(i)` (never, if it's
+   *   `null`)
+   */
+  public boolean contains(int i, String query, boolean ignoreCase) {
+    if (isNull(i)) {
+      return false;
+    }
+    int start = start(i);
+    int end = end(i);
+    if (!ignoreCase) {
+      return arena.indexOf(query, start, end) >= 0;
+    }
+    for (int k = start; k + query.length() <= end; k++) {
+      if (arena.regionMatches(true, k, query, 0, query.length())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Builds a `StringColumn` by appending one value at a time.
+   */
+  public static final class Builder {
+    private final StringBuilder arena = new StringBuilder();
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Append a value to the column being built.
+     *
+     * @param value the value to append, which may be `null`
+     */
+    public void add(String value) {
+      if (value != null) {
+        arena.append(value);
+      }
+      size++;
+      if (size == offsets.length) {
+        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+      }
+      offsets[size] = value == null ? ~arena.length() : arena.length();
+    }
+
+    /**
+     * Append a run of another column's values, copying their part of its
+     * arena in one go (without copying each value out as a `String`).
+     *
+     * @param column the other column
+     * @param from the index in it of the first value to append
+     * @param to the index in it just after the last value to append
+     */
+    public void addAll(StringColumn column, int from, int to) {
+      if (from >= to) {
+        return;
+      }
+      int shift = arena.length() - column.start(from);
+      arena.append(column.arena, column.start(from), column.end(to - 1));
+      if (size + (to - from) >= offsets.length) {
+        offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, size + (to - from) + 1));
+      }
+      for (int i = from; i < to; i++) {
+        int end = column.end(i) + shift;
+        offsets[++size] = column.isNull(i) ? ~end : end;
+      }
+    }
+
+    /**
+     * Finish building the column.
+     *
+     * @return a column holding all the values that were added, in order
+     */
+    public StringColumn build() {
+      return new StringColumn(arena.toString(), Arrays.copyOf(offsets, size + 1));
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package umm3601.todo;
 
+import java.util.Objects;
+
 @SuppressWarnings({"VisibilityModifier"})
 public class Todo {
   @SuppressWarnings({"MemberName"})
@@ -8,4 +10,25 @@ public class Todo {
   public boolean status;
   public String body;
   public String category;
+
+  // `TodoStore` puts together a new `Todo` each time one is asked for, so
+  // two todos are equal when all their fields are, not just when they're
+  // the same object.
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Todo)) {
+      return false;
+    }
+    Todo other = (Todo) o;
+    return Objects.equals(_id, other._id)
+      && Objects.equals(owner, other.owner)
+      && status == other.status
+      && Objects.equals(body, other.body)
+      && Objects.equals(category, other.category);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(_id, owner, status, body, category);
+  }
 }
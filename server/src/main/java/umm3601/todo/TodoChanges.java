@@ -0,0 +1,153 @@
+package umm3601.todo;
+
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A batch of changes to the todos in a `TodoStore`. Since a store can't be
+ * changed, the changes are collected here and then applied all at once by
+ * building a new store, which means a batch of many writes costs about the
+ * same as a single one.
+ * <p>
+ * Todos replaced in place keep their position in the store, so they stay
+ * where they were in unordered lists; new todos go at the end.
+ * <p>
+ * A `TodoChanges` isn't thread safe; `TodoDatabase` only lets one writer
+ * at a time use it.
+ */
+final class TodoChanges {
+  // Makes the new ids unique; starting at a random value makes it very
+  // unlikely that they'll clash with ids made by an earlier run.
+  private static final AtomicLong ID_COUNTER = new AtomicLong(new SecureRandom().nextLong());
+
+  private final TodoStore base;
+  // Replacements for todos in the base store, by `_id`, with `null` for
+  // deleted todos.
+  private final Map<String, Todo> replaced = new HashMap<>();
+  // New todos, by `_id`, in the order they were added.
+  private final Map<String, Todo> added = new LinkedHashMap<>();
+
+  TodoChanges(TodoStore base) {
+    this.base = base;
+  }
+
+  private static Todo copyOf(Todo todo) {
+    if (todo == null) {
+      return null;
+    }
+    Todo copy = new Todo();
+    copy._id = todo._id;
+    copy.owner = todo.owner;
+    copy.status = todo.status;
+    copy.body = todo.body;
+    copy.category = todo.category;
+    return copy;
+  }
+
+  /**
+   * Get a todo as it is with the changes so far.
+   *
+   * @param id the `_id` of the todo
+   * @return a copy of the todo (which the caller is free to change), or
+   *   `null` if there isn't one with that `_id`
+   */
+  Todo get(String id) {
+    if (added.containsKey(id)) {
+      return copyOf(added.get(id));
+    }
+    if (replaced.containsKey(id)) {
+      return copyOf(replaced.get(id));
+    }
+    return base.getTodo(id);
+  }
+
+  /**
+   * Add a new todo, giving it a new `_id`. New ids look like the existing
+   * (MongoDB style) ones: 24 hex digits, starting with the time in
+   * seconds.
+   *
+   * @param todo the todo to add; a copy is kept, so later changes to it
+   *   don't affect the batch
+   * @return a copy of the todo as it was added
+   */
+  Todo add(Todo todo) {
+    Todo copy = copyOf(todo);
+    do {
+      copy._id = String.format("%08x%016x", Instant.now().getEpochSecond(), ID_COUNTER.incrementAndGet());
+    } while (get(copy._id) != null);
+    added.put(copy._id, copy);
+    return copyOf(copy);
+  }
+
+  /**
+   * Add a todo, or replace the todo with the same `_id`.
+   *
+   * @param todo the todo; a copy is kept, so later changes to it don't
+   *   affect the batch
+   */
+  void put(Todo todo) {
+    // A todo deleted from the base store and then put back is new again,
+    // so it goes at the end, just as if the delete had been applied first.
+    if (added.containsKey(todo._id) || base.positionOf(todo._id) < 0 || isDeleted(todo._id)) {
+      added.put(todo._id, copyOf(todo));
+    } else {
+      replaced.put(todo._id, copyOf(todo));
+    }
+  }
+
+  /**
+   * Delete a todo.
+   *
+   * @param id the `_id` of the todo
+   * @return whether there was a todo with that `_id` to delete
+   */
+  boolean remove(String id) {
+    if (added.containsKey(id)) {
+      added.remove(id);
+      return true;
+    }
+    if (base.positionOf(id) < 0 || isDeleted(id)) {
+      return false;
+    }
+    replaced.put(id, null);
+    return true;
+  }
+
+  private boolean isDeleted(String id) {
+    return replaced.containsKey(id) && replaced.get(id) == null;
+  }
+
+  boolean isEmpty() {
+    return replaced.isEmpty() && added.isEmpty();
+  }
+
+  /**
+   * Go through the changes in an order that recreates them when they're
+   * replayed with `put` and `remove` (see `TodoLog`): the replaced and
+   * deleted todos of the base store, and then the new todos in the order
+   * they were added.
+   *
+   * @param action given the `_id` and the new todo (`null` for a deleted
+   *   todo) for each change; the todo mustn't be modified
+   */
+  void forEach(BiConsumer<String, Todo> action) {
+    replaced.forEach(action);
+    added.forEach(action);
+  }
+
+  /**
+   * Build a new store holding the base store's todos with these changes.
+   *
+   * @return the new store
+   */
+  TodoStore apply() {
+    Map<Integer, Todo> replacements = new HashMap<>();
+    replaced.forEach((id, todo) -> replacements.put(base.positionOf(id), todo));
+    return base.withChanges(replacements, added.values());
+  }
+}
@@ -1,34 +1,154 @@
 package umm3601.todo;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 
 import io.javalin.Javalin;
+import io.javalin.http.BadRequestResponse;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import umm3601.Controller;
+import umm3601.Cursor;
+import umm3601.ETags;
+import umm3601.JsonStreams;
+import umm3601.Metrics;
+import umm3601.ResponseCache;
+import umm3601.user.User;
+import umm3601.user.UserDatabase;
 
 public class TodoController implements Controller {
+  // Lists with more todos than this are streamed to the client one todo
+  // at a time instead of being serialized in one go.
+  public static final int STREAMING_THRESHOLD = 1000;
+  // Bulk imports are applied to the database this many todos at a time,
+  // so each batch costs one store build, and the whole import is never
+  // held in memory.
+  public static final int IMPORT_BATCH_SIZE = 5000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoController.class);
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+  private static final ObjectReader TODO_READER = OBJECT_MAPPER.readerFor(Todo.class);
+  private static final String RECORD_COUNT_HEADER = "X-Record-Count";
 
   private TodoDatabase todoDatabase;
+  private int streamingThreshold;
+  // Cache of serialized list responses, or `null` for no caching.
+  private ResponseCache responseCache;
+  // The users that todos can be joined to their owners with, or `null`
+  // if they can't be (see `setUserDatabase`).
+  private UserDatabase userDatabase;
 
   public TodoController(TodoDatabase todoDatabase) {
+    this(todoDatabase, STREAMING_THRESHOLD);
+  }
+
+  public TodoController(TodoDatabase todoDatabase, int streamingThreshold) {
+    this(todoDatabase, streamingThreshold, null);
+  }
+
+  /**
+   * Construct a controller for todos that caches list responses.
+   *
+   * @param todoDatabase the database of todos
+   * @param streamingThreshold the list size above which lists of todos are
+   *   streamed (streamed lists are never cached)
+   * @param responseCache the cache for list responses, or `null` for none
+   */
+  public TodoController(TodoDatabase todoDatabase, int streamingThreshold, ResponseCache responseCache) {
     this.todoDatabase = todoDatabase;
+    this.streamingThreshold = streamingThreshold;
+    this.responseCache = responseCache;
+  }
+
+  public TodoDatabase getTodoDatabase() {
+    return todoDatabase;
   }
 
   public static TodoController buildTodoController(String todoDataFile) throws IOException {
     TodoController todoController = null;
 
     TodoDatabase todoDatabase = new TodoDatabase(todoDataFile);
-    todoController = new TodoController(todoDatabase);
+    todoController = new TodoController(todoDatabase, STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
 
     return todoController;
   }
 
+  /**
+   * Build a controller whose todos are read from a binary snapshot of the
+   * data file when there's an up to date one (see `TodoSnapshot`).
+   *
+   * @param todoDataFile a classpath resource or filesystem path holding
+   *   the todos as JSON
+   * @param snapshotFile the snapshot of the data file
+   * @return the controller
+   * @throws IOException if the data file can't be read
+   */
+  public static TodoController buildTodoController(String todoDataFile, Path snapshotFile) throws IOException {
+    return new TodoController(new TodoDatabase(todoDataFile, snapshotFile), STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
+  }
+
+  /**
+   * Build a controller whose writes are logged, so they survive restarts
+   * (see `TodoLog`).
+   *
+   * @param todoDataFile a classpath resource or filesystem path holding
+   *   the todos as JSON
+   * @param snapshotFile the snapshot of the data file and logged writes
+   * @param logFile the log of writes since the snapshot
+   * @param syncInterval how often to sync the log to disk, or zero to sync
+   *   every batch of writes
+   * @param compactionBytes the size of log that's compacted into the
+   *   snapshot
+   * @return the controller
+   * @throws IOException if the data file or the log can't be read
+   */
+  public static TodoController buildTodoController(String todoDataFile, Path snapshotFile, Path logFile,
+      Duration syncInterval, long compactionBytes) throws IOException {
+    return new TodoController(new TodoDatabase(todoDataFile, snapshotFile, logFile, syncInterval, compactionBytes),
+      STREAMING_THRESHOLD, new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
+  }
+
+  /**
+   * Let todos be joined with the users who own them: `/api/todos` accepts
+   * `expand=owner`, and `/api/users/{id}/todos` lists a user's todos. This
+   * needs to be done before the routes are added.
+   *
+   * @param userDatabase the users
+   */
+  public void setUserDatabase(UserDatabase userDatabase) {
+    this.userDatabase = userDatabase;
+  }
+
   public void getTodo(Context ctx) {
     String id = ctx.pathParam("id");
     Todo todo = todoDatabase.getTodo(id);
     if (todo != null) {
+      String etag = ETags.forContent(todo._id, todo.owner, Boolean.toString(todo.status), todo.body, todo.category);
+      if (ETags.notModified(ctx, etag)) {
+        return;
+      }
       ctx.json(todo);
       ctx.status(HttpStatus.OK);
     } else {
@@ -36,13 +156,345 @@ public class TodoController implements Controller {
     }
   }
 
-  public void getTodos(Context ctx) {
-    Todo[] todos = todoDatabase.listTodos(ctx.queryParamMap());
-    ctx.json(todos);
+  public void getTodos(Context ctx) throws IOException {
+    // With `explain=true` the response describes how the query was run
+    // (see `TodoQueryPlan`) instead of listing the todos.
+    Map<String, List<String>> queryParams = ctx.queryParamMap();
+    if (queryParams.containsKey("explain") && Boolean.parseBoolean(queryParams.get("explain").get(0))) {
+      ctx.json(todoDatabase.explainTodos(queryParams));
+      ctx.status(HttpStatus.OK);
+      return;
+    }
+    if (queryParams.containsKey("expand")) {
+      String expand = queryParams.get("expand").get(0);
+      if (!expand.equals("owner") || userDatabase == null) {
+        throw new BadRequestResponse("Specified expand '" + expand + "' can't be expanded; only owner can");
+      }
+      writeTodosWithOwners(ctx, queryParams);
+      return;
+    }
+    // Read the version before running the query, so a response is never
+    // cached under a newer version than the data it came from.
+    long version = todoDatabase.version();
+    if (ETags.notModified(ctx, ETags.forQuery(version, ctx.queryParamMap()))) {
+      return;
+    }
+    if (responseCache != null) {
+      ResponseCache.Entry cached = responseCache.get(version, ctx.queryParamMap());
+      if (cached != null) {
+        cached.writeTo(ctx);
+        return;
+      }
+    }
+    TodoQueryResult todos = todoDatabase.queryTodos(ctx.queryParamMap());
+    if (todos.size() > streamingThreshold) {
+      Cursor.addNextLink(ctx, todos.nextCursor());
+      JsonStreams.writeJsonArray(ctx, todos.iterator());
+    } else if (responseCache != null) {
+      ResponseCache.Entry response = ResponseCache.Entry.of(todos.toArray(), todos.nextCursor());
+      responseCache.put(version, ctx.queryParamMap(), response);
+      response.writeTo(ctx);
+    } else {
+      Cursor.addNextLink(ctx, todos.nextCursor());
+      ctx.json(todos.toArray());
+    }
+  }
+
+  /**
+   * List the todos owned by the user given by the `id` parameter in the
+   * request, i.e., those whose `owner` is the user's name, joined with
+   * the user as for `expand=owner`. The rest of the query parameters are
+   * the same as for `getTodos`.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems writing the response
+   */
+  public void getUserTodos(Context ctx) throws IOException {
+    String id = ctx.pathParam("id");
+    User user = userDatabase.getUser(id);
+    if (user == null) {
+      throw new NotFoundResponse("No user with id " + id + " was found.");
+    }
+    Map<String, List<String>> queryParams = new HashMap<>(ctx.queryParamMap());
+    queryParams.put("owner", List.of(user.name));
+    writeTodosWithOwners(ctx, queryParams);
+  }
+
+  /**
+   * Write the todos matching a query, each joined with its owner through
+   * the users' `name` index. The joined todos are streamed, without being
+   * collected into an array, and each costs one hash lookup, so the join
+   * is linear in the number of todos written. The responses aren't cached,
+   * but they're tagged with the versions of both the todos and the users,
+   * so a client that has the current response gets a 304 Not Modified.
+   *
+   * @param ctx a Javalin HTTP context
+   * @param queryParams the query
+   * @throws IOException if there are problems writing the response
+   */
+  private void writeTodosWithOwners(Context ctx, Map<String, List<String>> queryParams) throws IOException {
+    String etag = ETags.forContent(ETags.forQuery(todoDatabase.version(), queryParams),
+      Long.toString(userDatabase.version()));
+    if (ETags.notModified(ctx, etag)) {
+      return;
+    }
+    TodoQueryResult todos = todoDatabase.queryTodos(queryParams);
+    // Join every todo with the same users, even if they're reloaded while
+    // the response is being written.
+    Function<String, User> owners = userDatabase.usersByName();
+    Cursor.addNextLink(ctx, todos.nextCursor());
+    Iterator<Todo> iterator = todos.iterator();
+    JsonStreams.writeJsonArray(ctx, new Iterator<TodoWithOwner>() {
+      @Override
+      public boolean hasNext() {
+        return iterator.hasNext();
+      }
+
+      @Override
+      public TodoWithOwner next() {
+        Todo todo = iterator.next();
+        return new TodoWithOwner(todo, owners.apply(todo.owner));
+      }
+    });
+  }
+
+  /**
+   * Add the todo in the request body, giving it a new `_id`, and respond
+   * with the todo as it was added.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void addNewTodo(Context ctx) {
+    Todo todo = ctx.bodyValidator(Todo.class).get();
+    checkTodo(todo);
+    Todo added = todoDatabase.addTodo(todo);
+    invalidateCache();
+    ctx.json(added);
+    ctx.status(HttpStatus.CREATED);
+  }
+
+  /**
+   * Replace the todo specified by the `id` parameter with the todo in the
+   * request body.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void replaceTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    Todo replacement = ctx.bodyValidator(Todo.class).get();
+    if (replacement._id != null && !replacement._id.equals(id)) {
+      throw new BadRequestResponse("The _id of a todo can't be changed");
+    }
+    replacement._id = id;
+    checkTodo(replacement);
+    respondWithUpdated(ctx, id, todoDatabase.updateTodo(id, todo -> replacement));
+  }
+
+  /**
+   * Change just the fields of the todo specified by the `id` parameter that
+   * are given in the request body.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void updateTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    JsonNode changes;
+    try {
+      changes = OBJECT_MAPPER.readTree(ctx.body());
+    } catch (IOException e) {
+      throw new BadRequestResponse("The request body is not valid JSON");
+    }
+    if (changes == null || !changes.isObject()) {
+      throw new BadRequestResponse("The request body must be a JSON object");
+    }
+    if (changes.has("_id") && !changes.get("_id").asText().equals(id)) {
+      throw new BadRequestResponse("The _id of a todo can't be changed");
+    }
+    // The changes are applied to the todo as it is when the write happens,
+    // so concurrent changes to different fields are all kept.
+    respondWithUpdated(ctx, id, todoDatabase.updateTodo(id, todo -> {
+      try {
+        OBJECT_MAPPER.updateValue(todo, changes);
+      } catch (JsonMappingException e) {
+        throw new BadRequestResponse("The changes are not valid for a todo: " + e.getOriginalMessage());
+      }
+      checkTodo(todo);
+      return todo;
+    }));
+  }
+
+  private void respondWithUpdated(Context ctx, String id, Todo updated) {
+    if (updated == null) {
+      throw new NotFoundResponse("No todo with id " + id + " was found.");
+    }
+    invalidateCache();
+    ctx.json(updated);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Delete the todo specified by the `id` parameter.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void deleteTodo(Context ctx) {
+    String id = ctx.pathParam("id");
+    if (!todoDatabase.deleteTodo(id)) {
+      throw new NotFoundResponse("No todo with id " + id + " was found.");
+    }
+    invalidateCache();
+    ctx.status(HttpStatus.NO_CONTENT);
+  }
+
+  /**
+   * Respond with counts of the todos matching the filters in the query
+   * params, grouped by the `groupBy` param (see `TodoDatabase.todoStats`).
+   * A dashboard can refresh its summaries from this without downloading
+   * any todos.
+   *
+   * @param ctx a Javalin HTTP context
+   */
+  public void getTodoStats(Context ctx) {
+    ctx.json(todoDatabase.todoStats(ctx.queryParamMap()));
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Import the todos in a request body of newline-delimited JSON (one todo
+   * per line). The body is parsed as it arrives, and the todos are applied
+   * in batches of `IMPORT_BATCH_SIZE`. Todos with an `_id` replace the todo
+   * with that `_id` (so an export can be imported again), and the others
+   * are added with new ids.
+   * <p>
+   * The response says how many todos were imported, and how fast. If a
+   * line isn't a valid todo, the response is a 400 Bad Request, but the
+   * todos before it have already been imported.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if the request body can't be read
+   */
+  public void importTodos(Context ctx) throws IOException {
+    long start = System.nanoTime();
+    List<Todo> batch = new ArrayList<>();
+    int imported = 0;
+    int added = 0;
+    try (MappingIterator<Todo> records = TODO_READER.readValues(ctx.bodyInputStream())) {
+      while (records.hasNextValue()) {
+        Todo todo = records.nextValue();
+        if (todo == null) {
+          throw new BadRequestResponse("A todo can't be null");
+        }
+        checkTodo(todo);
+        batch.add(todo);
+        if (batch.size() == IMPORT_BATCH_SIZE) {
+          added += todoDatabase.importTodos(batch);
+          imported += batch.size();
+          batch.clear();
+        }
+      }
+    } catch (JsonProcessingException | BadRequestResponse e) {
+      String problem = e instanceof JsonProcessingException json ? json.getOriginalMessage() : e.getMessage();
+      imported += batch.size();
+      todoDatabase.importTodos(batch);
+      invalidateCache();
+      throw new BadRequestResponse("Todo " + (imported + 1) + " in the request is not valid (" + problem
+        + "); the " + imported + " todos before it were imported");
+    }
+    added += todoDatabase.importTodos(batch);
+    imported += batch.size();
+    invalidateCache();
+
+    long nanos = System.nanoTime() - start;
+    Map<String, Object> report = new LinkedHashMap<>();
+    report.put("imported", imported);
+    report.put("added", added);
+    report.put("replaced", imported - added);
+    report.put("millis", TimeUnit.NANOSECONDS.toMillis(nanos));
+    report.put("recordsPerSecond", recordsPerSecond(imported, nanos));
+    LOGGER.info("Imported {} todos at {} records/s", imported, report.get("recordsPerSecond"));
+    ctx.json(report);
+    ctx.status(HttpStatus.OK);
+  }
+
+  /**
+   * Export the todos (filtered and ordered as for `getTodos`) as
+   * newline-delimited JSON, streamed straight from the store one todo at
+   * a time. The number of todos is sent up front in the `X-Record-Count`
+   * header, and the export's speed is logged once it's done.
+   *
+   * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems writing the response
+   */
+  public void exportTodos(Context ctx) throws IOException {
+    long start = System.nanoTime();
+    TodoQueryResult todos = todoDatabase.queryTodos(ctx.queryParamMap());
+    ctx.header(RECORD_COUNT_HEADER, Integer.toString(todos.size()));
+    long exported = JsonStreams.writeNdjson(ctx, todos.iterator());
+    LOGGER.info("Exported {} todos at {} records/s", exported, recordsPerSecond(exported, System.nanoTime() - start));
+  }
+
+  private static long recordsPerSecond(long records, long nanos) {
+    return nanos == 0 ? 0 : records * TimeUnit.SECONDS.toNanos(1) / nanos;
+  }
+
+  /**
+   * Check that a todo has all the fields it needs.
+   *
+   * @param todo the todo to check
+   * @throws BadRequestResponse if it doesn't
+   */
+  private static void checkTodo(Todo todo) {
+    if (todo.owner == null || todo.owner.isBlank()) {
+      throw new BadRequestResponse("A todo must have a non-empty owner");
+    }
+    if (todo.category == null || todo.category.isBlank()) {
+      throw new BadRequestResponse("A todo must have a non-empty category");
+    }
+    if (todo.body == null) {
+      throw new BadRequestResponse("A todo must have a body");
+    }
+  }
+
+  // Cached responses would be invalidated anyway the next time a response
+  // is cached, but this frees their memory straight away.
+  private void invalidateCache() {
+    if (responseCache != null) {
+      responseCache.invalidate();
+    }
   }
 
   public void addRoutes(Javalin server) {
+    // These routes go first, so `export` and `stats` aren't taken for an
+    // `{id}`.
+    server.get("/api/todos/export", this::exportTodos);
+    server.get("/api/todos/stats", this::getTodoStats);
+    server.post("/api/todos/bulk", this::importTodos);
     server.get("/api/todos/{id}", this::getTodo);
     server.get("/api/todos", this::getTodos);
+    server.post("/api/todos", this::addNewTodo);
+    server.put("/api/todos/{id}", this::replaceTodo);
+    server.patch("/api/todos/{id}", this::updateTodo);
+    server.delete("/api/todos/{id}", this::deleteTodo);
+    if (userDatabase != null) {
+      server.get("/api/users/{id}/todos", this::getUserTodos);
+    }
+  }
+
+  /**
+   * Add how many todos queries have scanned and returned, and how the
+   * response cache is doing, to the server's metrics.
+   *
+   * @param metrics the server's metrics
+   */
+  @Override
+  public void addMetrics(Metrics metrics) {
+    Map<String, String> labels = Map.of("collection", "todos");
+    metrics.counter("rows_scanned_total", "Rows that queries checked one at a time against their filters.", labels,
+      todoDatabase::rowsScanned);
+    metrics.counter("rows_returned_total", "Rows that queries returned.", labels, todoDatabase::rowsReturned);
+    todoDatabase.reloads().addMetrics(metrics, "todos");
+    if (responseCache != null) {
+      responseCache.addMetrics(metrics, "todos");
+    }
   }
 }
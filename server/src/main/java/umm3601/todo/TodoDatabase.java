@@ -1,121 +1,648 @@
 package umm3601.todo;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.javalin.http.BadRequestResponse;
+import umm3601.Cursor;
+import umm3601.JsonLoader;
+import umm3601.Reloads;
 
-public class TodoDatabase {
-  private Todo[] allTodos;
+public class TodoDatabase implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoDatabase.class);
+
+  // Cursors for todos hold the `orderBy` field (empty for the original
+  // order), that field's value and the `_id` of the last todo on a page.
+  private static final int CURSOR_PARTS = 3;
+  // The query params that filter the todos, and the fields todos can be
+  // grouped by for stats.
+  private static final List<String> FILTERS = List.of("owner", "category", "status", "contains");
+  private static final List<String> STATS_GROUPS = List.of("owner", "category", "status");
+
+  // The current todos and their indexes. A `TodoStore` is never modified
+  // once it's built; writes build a new store and swap it in. Each read
+  // uses whichever store is current when it starts, all the way through,
+  // so readers never lock and never see a write half done.
+  private volatile TodoStore current;
+
+  // Writes waiting to be applied, and the lock that only the writer
+  // applying them holds (see `write`).
+  private final Queue<PendingWrite<?>> pendingWrites = new ConcurrentLinkedQueue<>();
+  private final Object writeLock = new Object();
+
+  // The log that writes are appended to, and what's needed to compact it
+  // into a snapshot, or `null`s if writes aren't logged.
+  private final TodoLog log;
+  private final Path snapshotFile;
+  private final long sourceChecksum;
+  private final long compactionBytes;
+  private final ExecutorService compactor;
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  // The sequence number of the last write in the latest snapshot.
+  private volatile long compactedSequence = -1;
+
+  // How many todos queries have checked one at a time against a filter
+  // (rather than finding them through an index), and how many they've
+  // returned; see `rowsScanned`.
+  private final LongAdder rowsScanned = new LongAdder();
+  private final LongAdder rowsReturned = new LongAdder();
+  private final Reloads reloads = new Reloads();
+
+  // Checks todos against the filters that can't use an index, splitting
+  // big scans over several threads.
+  private ParallelScan parallelScan = ParallelScan.shared();
 
   public TodoDatabase(String todoDataFile) throws IOException {
-    InputStream resourceAsStream = getClass().getResourceAsStream(todoDataFile);
-    if (resourceAsStream == null) {
-      throw new IOException("Could not find " + todoDataFile);
+    current = loadStore(todoDataFile, JsonLoader.mapFiles());
+    log = null;
+    snapshotFile = null;
+    sourceChecksum = 0;
+    compactionBytes = 0;
+    compactor = null;
+  }
+
+  /**
+   * Construct a database from a binary snapshot of the todos in a data
+   * file if there's an up to date one, and otherwise from the data file
+   * itself (in which case a new snapshot is written for next time).
+   *
+   * @param todoDataFile a classpath resource or filesystem path holding
+   *   the todos as JSON
+   * @param snapshotFile the snapshot of the data file
+   * @throws IOException if the data file can't be read
+   */
+  public TodoDatabase(String todoDataFile, Path snapshotFile) throws IOException {
+    log = null;
+    this.snapshotFile = snapshotFile;
+    sourceChecksum = TodoSnapshot.checksum(todoDataFile);
+    compactionBytes = 0;
+    compactor = null;
+    TodoStore snapshot = TodoSnapshot.read(snapshotFile, sourceChecksum);
+    if (snapshot != null) {
+      current = snapshot;
+      return;
+    }
+    current = loadStore(todoDataFile, JsonLoader.mapFiles());
+    try {
+      TodoSnapshot.write(current, snapshotFile, sourceChecksum);
+    } catch (IOException e) {
+      // The server works fine without a snapshot, it just starts slower.
+      LOGGER.warn("Could not write snapshot " + snapshotFile, e);
+    }
+  }
+
+  /**
+   * Construct a database whose writes are durable: they're appended to a
+   * write-ahead log (see `TodoLog`), which is replayed on top of the
+   * snapshot (or if there isn't one, the data file) when the database is
+   * next constructed. Whenever the log grows past a size, it's compacted
+   * in the background by writing a new snapshot that includes its writes
+   * and then dropping them from the log, so replaying it never takes
+   * long.
+   * <p>
+   * The snapshot and log belong to the data file: if the data file
+   * changes, they're both discarded and the todos start over from it.
+   *
+   * @param todoDataFile a classpath resource or filesystem path holding
+   *   the todos as JSON
+   * @param snapshotFile the snapshot of the data file and logged writes
+   * @param logFile the log of writes since the snapshot
+   * @param syncInterval how often to sync the log to disk, or zero to sync
+   *   every batch of writes before they're acknowledged
+   * @param compactionBytes the size of log that's compacted
+   * @throws IOException if the data file or the log can't be read
+   */
+  public TodoDatabase(String todoDataFile, Path snapshotFile, Path logFile, Duration syncInterval,
+      long compactionBytes) throws IOException {
+    this.snapshotFile = snapshotFile;
+    this.compactionBytes = compactionBytes;
+    sourceChecksum = TodoSnapshot.checksum(todoDataFile);
+    TodoSnapshot.Contents snapshot = TodoSnapshot.readContents(snapshotFile, sourceChecksum);
+    TodoStore base = snapshot == null ? loadStore(todoDataFile, JsonLoader.mapFiles()) : snapshot.store();
+    long baseSequence = snapshot == null ? 0 : snapshot.logSequence();
+    log = TodoLog.open(logFile, sourceChecksum, syncInterval);
+    try {
+      current = log.replay(base, baseSequence);
+    } catch (IOException | RuntimeException e) {
+      log.close();
+      throw e;
+    }
+    compactor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "todo-log-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (snapshot == null) {
+      try {
+        compact();
+      } catch (IOException e) {
+        // The server works fine without a snapshot, it just starts slower.
+        LOGGER.warn("Could not write snapshot " + snapshotFile, e);
+      }
+    } else {
+      compactIfNeeded();
+    }
+  }
+
+  private static TodoStore loadStore(String todoDataFile, boolean mapFile) throws IOException {
+    // Build the store (and its indexes) as the todos are read in, rather
+    // than reading them all into an array first.
+    TodoStore.Builder builder = new TodoStore.Builder();
+    try {
+      JsonLoader.load(todoDataFile, Todo.class, builder::add, mapFile);
+      return builder.build();
+    } catch (IllegalArgumentException e) {
+      // Two todos with the same `_id` would make one of them unreachable
+      // through `getTodo`, so we refuse to load the file.
+      throw new IOException(e.getMessage() + " in " + todoDataFile, e);
     }
-    InputStreamReader reader = new InputStreamReader(resourceAsStream);
-    ObjectMapper objectMapper = new ObjectMapper();
-    allTodos = objectMapper.readValue(reader, Todo[].class);
   }
 
   public int size() {
-    return allTodos.length;
+    return current.size();
   }
 
-  public Todo getTodo(String id) {
-    return Arrays.stream(allTodos).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+  /**
+   * Get the version of the todos. This changes whenever the todos do.
+   *
+   * @return the version of the store the todos are in
+   */
+  public long version() {
+    return current.version();
   }
 
-  public Todo[] listTodos(Map<String, List<String>> queryParams) {
-    Todo[] filteredTodos = allTodos;
-      if (queryParams.containsKey("owner")) {
-        String targetOwner = queryParams.get("owner").get(0);
-        filteredTodos = filteredTodosByOwner(filteredTodos, targetOwner);
-    }
-      if (queryParams.containsKey("contains")) {
-        String targetBody = queryParams.get("contains").get(0);
-        filteredTodos = filteredTodosByBody(filteredTodos, targetBody);
-    }
-   if (queryParams.containsKey("category")) {
-      String targetCategory = queryParams.get("category").get(0);
-      filteredTodos = filteredTodosByCategory(filteredTodos, targetCategory);
-  }
-    if (queryParams.containsKey("status")) {
-      boolean b;
-        String targetStatus = queryParams.get("status").get(0);
-        if (targetStatus.equals("complete")) {
-          b = true;
-        } else {
-          b = false;
-        }
-        filteredTodos = filteredTodosByStatus(filteredTodos, b);
+  /**
+   * Reload the todos from their data file (or another), and once the new
+   * store and its indexes are built, swap it in for the old one. Queries
+   * that are already running carry on with the old store. The data file
+   * replaces the todos, so any writes made since they were last loaded
+   * are lost. If the data file can't be read, the old todos are kept.
+   * <p>
+   * This can't be used when writes are logged, since the log holds writes
+   * that aren't in the data file.
+   *
+   * @param todoDataFile a classpath resource or filesystem path holding
+   *   the todos as JSON
+   * @throws IOException if the data file can't be read
+   * @throws IllegalStateException if writes are logged
+   */
+  public void reload(String todoDataFile) throws IOException {
+    if (log != null) {
+      throw new IllegalStateException("Todos whose writes are logged can't be reloaded from " + todoDataFile);
+    }
+    long start = System.nanoTime();
+    TodoStore next;
+    try {
+      // A reloaded file is never mapped, since it may change again while
+      // it's read.
+      next = loadStore(todoDataFile, false);
+    } catch (IOException | RuntimeException e) {
+      reloads.recordFailure();
+      throw e;
     }
-    if (queryParams.containsKey("orderBy")) {
-      String orderBy = queryParams.get("orderBy").get(0);
-      filteredTodos = filteredTodosByOrder(filteredTodos, orderBy);
+    long built = System.nanoTime();
+    // Wait for any batch of writes being applied, so it isn't swapped in
+    // on top of the new todos.
+    synchronized (writeLock) {
+      current = next;
     }
+    reloads.record(todoDataFile, next.size(), built - start, System.nanoTime() - built);
+  }
+
+  /**
+   * Get how many times the todos have been reloaded, and how long that
+   * took.
+   *
+   * @return the reload statistics
+   */
+  public Reloads reloads() {
+    return reloads;
+  }
+
+  public Todo getTodo(String id) {
+    return current.getTodo(id);
+  }
+
+  /**
+   * Get an array of all the todos satisfying the queries in the params.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return a new array of all the todos matching the given criteria
+   */
+  public Todo[] listTodos(Map<String, List<String>> queryParams) {
+    return queryTodos(queryParams).toArray();
+  }
+
+  /**
+   * Find all the todos satisfying the queries in the params.
+   * <p>
+   * The filters only ever narrow down an array of positions in the store
+   * (which is never modified), and no todos are copied out of the store
+   * until the caller asks the result for them, so concurrent calls can't
+   * interfere with each other. Sorting uses the store's precomputed sort
+   * orders, so ties are always broken by `_id`. How the filters and the
+   * ordering are carried out is up to a `TodoQueryPlan`.
+   * <p>
+   * Any problems with the query parameters are reported (by throwing a
+   * `BadRequestResponse`) here, before anything is returned.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the todos matching the given criteria
+   */
+  public TodoQueryResult queryTodos(Map<String, List<String>> queryParams) {
+    TodoStore store = current;
+    return runQuery(store, TodoQueryPlan.plan(store, queryParams), queryParams);
+  }
+
+  /**
+   * Run a query as `queryTodos` does, and describe how it was done: how
+   * many todos each of its filters was estimated to leave, in the order
+   * they were applied and how, and how the todos were put in order.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the plan the query was run with
+   */
+  public TodoQueryPlan explainTodos(Map<String, List<String>> queryParams) {
+    TodoStore store = current;
+    TodoQueryPlan plan = TodoQueryPlan.plan(store, queryParams);
+    runQuery(store, plan, queryParams);
+    return plan;
+  }
+
+  private TodoQueryResult runQuery(TodoStore store, TodoQueryPlan plan, Map<String, List<String>> queryParams) {
+    int[] positions = plan.filter(rowsScanned, parallelScan);
     // Limiting output
+    int targetLimit = Integer.MAX_VALUE;
     if (queryParams.containsKey("limit")) {
       String limitParam = queryParams.get("limit").get(0);
       try {
-        int targetLimit = Integer.parseInt(limitParam);
-        if (filteredTodos.length > targetLimit) {
-          filteredTodos = Arrays.copyOfRange(filteredTodos, 0, targetLimit);
-        }
+        targetLimit = Integer.parseInt(limitParam);
       } catch (NumberFormatException e) {
         throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
       }
+      if (targetLimit < 0) {
+        throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be negative");
+      }
+    }
+    String orderBy = queryParams.containsKey("orderBy") ? queryParams.get("orderBy").get(0) : "";
+    if (store.sortOrder(orderBy) == null) {
+      // Unknown orderings leave the todos in their original order.
+      orderBy = "";
+    }
+    String[] after = null;
+    if (queryParams.containsKey("after")) {
+      String cursor = queryParams.get("after").get(0);
+      after = Cursor.decode(cursor, CURSOR_PARTS);
+      if (!orderBy.equals(after[0])) {
+        throw new BadRequestResponse("Specified cursor '" + cursor + "' is for a different orderBy");
+      }
     }
-    return filteredTodos;
-  }
 
-  private Todo[] filteredTodosByOrder(Todo[] todos, String orderBy) {
-    if (orderBy.equals("owner")) {
-      Arrays.sort(todos, new SortByOwner());
+    int from = 0;
+    if (orderBy.isEmpty()) {
+      if (after != null) {
+        from = indexAfter(store, positions, after);
+      }
+    } else {
+      // Ask for one more than we need, so we know whether there's a next page.
+      int wanted = targetLimit == Integer.MAX_VALUE ? targetLimit : targetLimit + 1;
+      int fromRank = after == null ? 0 : store.rankAfter(orderBy, after[1], after[2]);
+      positions = plan.order(positions, orderBy, fromRank, wanted);
     }
-    if (orderBy.equals("category")) {
-      Arrays.sort(todos, new SortByCategory());
+
+    int size = Math.min(positions.length - from, targetLimit);
+    String nextCursor = null;
+    if (size > 0 && positions.length - from > size) {
+      int last = positions[from + size - 1];
+      String key = orderBy.isEmpty() ? "" : store.sortKey(orderBy, last);
+      nextCursor = Cursor.encode(orderBy, key, store.todoAt(last)._id);
     }
-    if (orderBy.equals("body")) {
-      Arrays.sort(todos, new SortByBody());
+    rowsReturned.add(size);
+    return new TodoQueryResult(store, positions, from, size, nextCursor);
+  }
+
+  /**
+   * Use a different `ParallelScan` from the shared one, to check todos
+   * against filters that can't use an index. This should be done before
+   * the database is queried.
+   *
+   * @param parallelScan the scan to use
+   */
+  void setParallelScan(ParallelScan parallelScan) {
+    this.parallelScan = parallelScan;
+  }
+
+  /**
+   * Count the todos that queries (and stats) have checked one at a time
+   * against a filter, rather than found through an index (see
+   * `TodoQueryPlan`). Compared with `rowsReturned`, it shows how much
+   * work the indexes aren't saving.
+   *
+   * @return the number of todos checked so far
+   */
+  public long rowsScanned() {
+    return rowsScanned.sum();
+  }
+
+  /**
+   * Count the todos that queries have returned (on their pages, for
+   * queries with a `limit`).
+   *
+   * @return the number of todos returned so far
+   */
+  public long rowsReturned() {
+    return rowsReturned.sum();
+  }
+
+  /**
+   * Count the todos satisfying the filters in the params (`owner`,
+   * `category`, `status` and `contains`, as for `queryTodos`), grouped by
+   * the field given by the `groupBy` param, if any.
+   * <p>
+   * Without any filters the counts come straight from the store's indexes
+   * (see `TodoStore.stats`), so they cost the same however many todos
+   * there are; with filters, just the todos that pass them are counted.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the counts
+   */
+  public TodoStats todoStats(Map<String, List<String>> queryParams) {
+    String groupBy = queryParams.containsKey("groupBy") ? queryParams.get("groupBy").get(0) : null;
+    if (groupBy != null && !STATS_GROUPS.contains(groupBy)) {
+      throw new BadRequestResponse("Specified groupBy '" + groupBy + "' must be one of " + STATS_GROUPS);
     }
-    if (orderBy.equals("status")) {
-      Arrays.sort(todos, new SortByStatus());
+    TodoStore store = current;
+    boolean filtered = FILTERS.stream().anyMatch(queryParams::containsKey);
+    int[] positions = filtered ? TodoQueryPlan.plan(store, queryParams).filter(rowsScanned, parallelScan) : null;
+    return store.stats(groupBy, positions);
+  }
+
+  /**
+   * Find where to resume an unordered list of todos after a cursor, using
+   * the position of the cursor's todo to binary search the positions.
+   *
+   * @param store the store being queried
+   * @param positions the (ascending) positions in the list
+   * @param after the decoded cursor
+   * @return the index in `positions` of the first todo after the cursor
+   */
+  private static int indexAfter(TodoStore store, int[] positions, String[] after) {
+    int position = store.positionOf(after[2]);
+    if (position < 0) {
+      throw new BadRequestResponse("Specified cursor is no longer valid: there is no todo with id " + after[2]);
+    }
+    int index = Arrays.binarySearch(positions, position);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  /**
+   * Add a new todo, with a newly generated `_id`.
+   *
+   * @param todo the todo to add (its `_id` is ignored)
+   * @return the todo as it was added
+   */
+  public Todo addTodo(Todo todo) {
+    return write(changes -> changes.add(todo));
+  }
+
+  /**
+   * Change a todo. The change is made to the todo as it is when the
+   * write is applied, so concurrent changes to the same todo (such as two
+   * `PATCH`es of different fields) don't undo each other.
+   *
+   * @param id the `_id` of the todo
+   * @param update makes the change, given a copy of the todo that it's
+   *   free to modify, and returns the changed todo; this is run while
+   *   other writes wait, so should be quick. Anything it throws is thrown
+   *   from here, and the todo is left as it was.
+   * @return the changed todo, or `null` if there isn't one with that `_id`
+   * @throws IllegalArgumentException if the update changes the `_id`
+   */
+  public Todo updateTodo(String id, UnaryOperator<Todo> update) {
+    return write(changes -> {
+      Todo todo = changes.get(id);
+      if (todo == null) {
+        return null;
+      }
+      Todo updated = update.apply(todo);
+      if (!id.equals(updated._id)) {
+        throw new IllegalArgumentException("Can't change the _id of todo " + id);
+      }
+      changes.put(updated);
+      return changes.get(id);
+    });
+  }
+
+  /**
+   * Add or replace a batch of todos in a single write, so the whole batch
+   * costs one store build. Todos without an `_id` are added with a new
+   * one; the others replace the todo with the same `_id`, or are added
+   * with that `_id` if there isn't one.
+   *
+   * @param todos the todos; they aren't checked, so they should be
+   *   complete todos
+   * @return how many of the todos were new (rather than replacements)
+   */
+  public int importTodos(List<Todo> todos) {
+    return write(changes -> {
+      int added = 0;
+      for (Todo todo : todos) {
+        if (todo._id == null) {
+          changes.add(todo);
+          added++;
+        } else {
+          if (changes.get(todo._id) == null) {
+            added++;
+          }
+          changes.put(todo);
+        }
+      }
+      return added;
+    });
+  }
+
+  /**
+   * Delete a todo.
+   *
+   * @param id the `_id` of the todo
+   * @return whether there was a todo with that `_id` to delete
+   */
+  public boolean deleteTodo(String id) {
+    return write(changes -> changes.remove(id));
+  }
+
+  /**
+   * Make a change to the todos, and wait until it's been made.
+   * <p>
+   * Writes are applied one batch at a time by whichever writer holds the
+   * write lock: it takes every write waiting at that point (not just its
+   * own), applies them all to one `TodoChanges`, builds a single new store
+   * and swaps it in. The writers that were waiting then find their writes
+   * already done. So the more writes arrive at once, the more of them
+   * share the cost of building a store. Readers never wait for any of
+   * this; they just carry on with the previous store until the new one is
+   * swapped in.
+   *
+   * @param change makes the change and returns the result for the caller
+   * @return the result of the change
+   */
+  private <T> T write(Function<TodoChanges, T> change) {
+    PendingWrite<T> write = new PendingWrite<>(change);
+    pendingWrites.add(write);
+    synchronized (writeLock) {
+      if (!write.done) {
+        applyPendingWrites();
+      }
     }
-    return todos;
+    return write.result();
   }
 
-  private Todo[] filteredTodosByCategory(Todo[] todos, String targetCategory) {
-    return Arrays.stream(todos).filter(x -> x.category.equals(targetCategory)).toArray(Todo[]::new);
+  private void applyPendingWrites() {
+    TodoChanges changes = new TodoChanges(current);
+    List<PendingWrite<?>> batch = new ArrayList<>();
+    PendingWrite<?> write = pendingWrites.poll();
+    while (write != null) {
+      write.applyTo(changes);
+      batch.add(write);
+      write = pendingWrites.poll();
+    }
+    try {
+      if (!changes.isEmpty()) {
+        TodoStore next = changes.apply();
+        if (log != null) {
+          // The writes must be in the log before anyone can see them.
+          log.append(changes);
+        }
+        current = next;
+      }
+    } catch (IOException e) {
+      UncheckedIOException failure = new UncheckedIOException("Could not log writes to the todos", e);
+      batch.forEach(failed -> failed.failure = failure);
+    } catch (RuntimeException e) {
+      // None of the writes in the batch were made.
+      batch.forEach(failed -> failed.failure = e);
+    }
+    batch.forEach(finished -> finished.done = true);
+    compactIfNeeded();
   }
 
-  private Todo[] filteredTodosByStatus(Todo[] todos, boolean targetStatus) {
-    return Arrays.stream(todos).filter(x -> x.status == targetStatus).toArray(Todo[]::new);
+  private void compactIfNeeded() {
+    if (log != null && log.size() > compactionBytes && log.sequence() > compactedSequence) {
+      compactInBackground();
+    }
   }
 
-  private Todo[] filteredTodosByBody(Todo[] todos, String targetBody) {
-    int n = 0;
-    String trimTargetBody = targetBody.trim();
-    if (trimTargetBody == "") {
-      throw new BadRequestResponse("Specified String '" + targetBody + "' is not a valid input");
+  private void compactInBackground() {
+    if (!compacting.compareAndSet(false, true)) {
+      return;
     }
-    for (int i = 0; i < todos.length; i++) {
-      if (todos[i].body.indexOf(trimTargetBody) != -1) {
-        todos[n++] = todos[i];
+    compactor.execute(() -> {
+      try {
+        compact();
+      } catch (IOException | RuntimeException e) {
+        // The log just keeps growing until the next try.
+        LOGGER.warn("Could not compact the todo log", e);
+      } finally {
+        compacting.set(false);
       }
+      // Catch up with any writes made while compacting.
+      compactIfNeeded();
+    });
+  }
+
+  /**
+   * Compact the log: write a snapshot of the current todos, and then drop
+   * the writes it includes from the log. Writes carry on while the
+   * snapshot is written; they're just left in the log.
+   *
+   * @throws IOException if the snapshot can't be written or the log can't
+   *   be rewritten
+   */
+  void compact() throws IOException {
+    TodoStore store;
+    long sequence;
+    synchronized (writeLock) {
+      store = current;
+      sequence = log.sequence();
     }
-    Todo[] filteredTodos = Arrays.copyOfRange(todos, 0, n);
-    return filteredTodos;
+    long start = System.nanoTime();
+    TodoSnapshot.write(store, snapshotFile, sourceChecksum, sequence);
+    TodoLog.syncDirectory(snapshotFile);
+    log.dropThrough(sequence);
+    compactedSequence = sequence;
+    LOGGER.info("Compacted the todo log through write batch {} in {} ms; {} bytes are left in it", sequence,
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), log.size());
   }
 
-  private Todo[] filteredTodosByOwner(Todo[] todos, String targetOwner) {
-    return Arrays.stream(todos).filter(x -> x.owner.equals(targetOwner)).toArray(Todo[]::new);
+  /**
+   * Stop logging writes: wait for any compaction to finish, and sync and
+   * close the log. Any later writes fail.
+   *
+   * @throws IOException if the log can't be synced
+   */
+  @Override
+  public void close() throws IOException {
+    if (log == null) {
+      return;
+    }
+    compactor.shutdown();
+    try {
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (writeLock) {
+      log.close();
+    }
   }
 
+  /**
+   * A write waiting to be applied by `write`. Its fields are only used
+   * while holding the write lock, apart from reading the result after
+   * it's done.
+   */
+  private static final class PendingWrite<T> {
+    private final Function<TodoChanges, T> change;
+    private T result;
+    private RuntimeException failure;
+    private boolean done = false;
+
+    PendingWrite(Function<TodoChanges, T> change) {
+      this.change = change;
+    }
+
+    void applyTo(TodoChanges changes) {
+      try {
+        result = change.apply(changes);
+      } catch (RuntimeException e) {
+        failure = e;
+      }
+    }
+
+    T result() {
+      if (failure != null) {
+        throw failure;
+      }
+      return result;
+    }
+  }
 }
@@ -0,0 +1,471 @@
+package umm3601.todo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only write-ahead log of the changes made to the todos, so
+ * they survive a restart.
+ * <p>
+ * Each batch of writes that `TodoDatabase` applies is appended to the log
+ * as one record before the batch's new store is swapped in, so a write is
+ * never visible (or acknowledged) before it's in the log. Since writers
+ * that arrive while a batch is being applied wait and then go in the next
+ * batch together, one append (and one sync) covers every write in a batch:
+ * the busier the server, the more writes share each sync.
+ * <p>
+ * How often the log is synced to disk is a trade-off between latency and
+ * durability, set by the sync interval:
+ * <ul>
+ *   <li>with an interval of zero every batch is synced before its writes
+ *   are acknowledged, so an acknowledged write is never lost;</li>
+ *   <li>with a longer interval batches are just handed to the operating
+ *   system, and a background thread syncs the log that often, so writes
+ *   are faster but those acknowledged in the last interval can be lost if
+ *   the machine (not just the server) crashes.</li>
+ * </ul>
+ * <p>
+ * The log starts with a header holding its magic number, format version
+ * and the checksum of the data file the todos were first loaded from (see
+ * `TodoSnapshot.checksum`), so a log of another data file is never
+ * replayed. Then come the records, each of which is:
+ * <ul>
+ *   <li>the length and CRC32 checksum of its payload, so a record that
+ *   was only partly written when the server crashed is recognized, and it
+ *   and anything after it ignored,</li>
+ *   <li>the record's sequence number (1 for the first record ever written,
+ *   counting on from there even after compaction),</li>
+ *   <li>the number of changes and then the changes themselves, each a
+ *   whole todo to put or the `_id` of a todo to delete.</li>
+ * </ul>
+ * Replaying the log puts and deletes the todos of all the records into one
+ * `TodoChanges`, so recovering costs one store build however long the log
+ * is. Keeping that bounded is what compaction is for: `TodoDatabase`
+ * writes a snapshot that includes the log's writes, and then drops them
+ * from the log with `dropThrough`.
+ * <p>
+ * If appending to the log ever fails, every later append fails too, so no
+ * write is acknowledged that might not be replayed.
+ */
+public final class TodoLog implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoLog.class);
+
+  // "TLOG" in ASCII.
+  private static final int MAGIC = 0x544C4F47;
+  // Bump this whenever the layout of the records changes.
+  private static final int VERSION = 1;
+  // The magic number and version, then the source checksum.
+  private static final int HEADER_BYTES = 2 * Integer.BYTES + Long.BYTES;
+  // The length and checksum of a record's payload.
+  private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+
+  private final Path file;
+  private final long sourceChecksum;
+  // The thread that syncs the log every sync interval, or `null` if every
+  // append is synced.
+  private final ScheduledExecutorService syncer;
+  // Replaced by `dropThrough`; read without the lock by the syncer.
+  private volatile FileChannel channel;
+  // Whether there are appends the syncer hasn't synced yet.
+  private volatile boolean dirty = false;
+  // The end of the last complete record, where the next one goes.
+  private long size;
+  // The sequence number of the last record.
+  private long sequence = 0;
+  private IOException failure;
+
+  private TodoLog(Path file, long sourceChecksum, FileChannel channel, Duration syncInterval) throws IOException {
+    this.file = file;
+    this.sourceChecksum = sourceChecksum;
+    this.channel = channel;
+    this.size = channel.size();
+    if (syncInterval.isZero()) {
+      syncer = null;
+    } else {
+      syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "todo-log-sync");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long millis = Math.max(1, syncInterval.toMillis());
+      syncer.scheduleWithFixedDelay(this::syncIfDirty, millis, millis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Open a log for appending, creating it if it doesn't exist. A log of
+   * another data file (or in another format) is moved out of the way to
+   * `<file>.discarded`, and a new log started.
+   *
+   * @param file the log
+   * @param sourceChecksum the `checksum` of the data file the todos were
+   *   first loaded from
+   * @param syncInterval how often to sync the log, or zero to sync every
+   *   append
+   * @return the open log; `replay` it before appending to it
+   * @throws IOException if the log can't be opened or created
+   */
+  public static TodoLog open(Path file, long sourceChecksum, Duration syncInterval) throws IOException {
+    if (Files.exists(file) && !hasHeader(file, sourceChecksum)) {
+      Path discarded = file.resolveSibling(file.getFileName() + ".discarded");
+      LOGGER.warn("Log {} isn't a log of the current data file; moving it to {}", file, discarded);
+      Files.move(file, discarded, StandardCopyOption.REPLACE_EXISTING);
+    }
+    if (!Files.exists(file)) {
+      createLog(file, sourceChecksum);
+    }
+    return new TodoLog(file, sourceChecksum, FileChannel.open(file, StandardOpenOption.READ,
+      StandardOpenOption.WRITE), syncInterval);
+  }
+
+  private static boolean hasHeader(Path file, long sourceChecksum) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      readFully(channel, header, 0);
+      header.flip();
+      return header.remaining() == HEADER_BYTES && header.getInt() == MAGIC && header.getInt() == VERSION
+        && header.getLong() == sourceChecksum;
+    }
+  }
+
+  // Write a log with just a header (and maybe some records), safely: it's
+  // written to a temporary file and synced, then moved into place.
+  private static void createLog(Path file, long sourceChecksum, ByteBuffer... records) throws IOException {
+    Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION).putLong(sourceChecksum);
+        writeFully(channel, header.flip(), 0);
+        long position = HEADER_BYTES;
+        for (ByteBuffer record : records) {
+          position += writeFully(channel, record, position);
+        }
+        channel.force(true);
+      }
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      syncDirectory(file);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  // Read from a position until the buffer is full or the file ends.
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    long next = position;
+    while (buffer.hasRemaining()) {
+      int count = channel.read(buffer, next);
+      if (count < 0) {
+        return;
+      }
+      next += count;
+    }
+  }
+
+  private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    int length = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + length - buffer.remaining());
+    }
+    return length;
+  }
+
+  /**
+   * Make a file's creation or renaming durable, by syncing the directory
+   * it's in. Not every platform can do this, so it's only attempted.
+   *
+   * @param file the file
+   */
+  static void syncDirectory(Path file) {
+    try (FileChannel directory = FileChannel.open(file.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+      directory.force(true);
+    } catch (IOException e) {
+      LOGGER.debug("Could not sync the directory of " + file, e);
+    }
+  }
+
+  /**
+   * Apply the writes in the log to a store. Records that were only partly
+   * written are cut off the end of the log, so new records follow on from
+   * the last complete one.
+   *
+   * @param base the todos as they were before the writes (from a snapshot,
+   *   or the data file)
+   * @param baseSequence the sequence number of the last write the base
+   *   already includes (0 for none); the records up to it are skipped
+   * @return a new store holding the todos with the writes applied, or the
+   *   base if there aren't any to apply
+   * @throws IOException if the log can't be read, or the base is missing
+   *   writes that are no longer in the log
+   */
+  public synchronized TodoStore replay(TodoStore base, long baseSequence) throws IOException {
+    long start = System.nanoTime();
+    ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size - HEADER_BYTES));
+    readFully(channel, buffer, HEADER_BYTES);
+    buffer.flip();
+
+    TodoChanges changes = new TodoChanges(base);
+    long lastSequence = baseSequence;
+    int replayed = 0;
+    long end = HEADER_BYTES;
+    while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+      int length = buffer.getInt();
+      int checksum = buffer.getInt();
+      if (length < Long.BYTES + Integer.BYTES || length > buffer.remaining()) {
+        break;
+      }
+      ByteBuffer payload = buffer.slice(buffer.position(), length);
+      CRC32 crc = new CRC32();
+      crc.update(payload.duplicate());
+      if ((int) crc.getValue() != checksum) {
+        break;
+      }
+      buffer.position(buffer.position() + length);
+      end += RECORD_HEADER_BYTES + length;
+
+      long recordSequence = payload.getLong();
+      if (recordSequence <= baseSequence) {
+        // The base (a snapshot written by compaction) already has this one.
+        continue;
+      }
+      if (recordSequence != lastSequence + 1) {
+        throw new IOException("Log " + file + " skips from write " + lastSequence + " to write " + recordSequence
+          + "; its snapshot is missing or out of date");
+      }
+      readChanges(payload, changes);
+      lastSequence = recordSequence;
+      replayed++;
+    }
+    if (end < size) {
+      LOGGER.warn("Ignoring the last {} bytes of log {}, which weren't completely written", size - end, file);
+      channel.truncate(end);
+      channel.force(true);
+      size = end;
+    }
+    sequence = lastSequence;
+    TodoStore store = changes.isEmpty() ? base : changes.apply();
+    LOGGER.info("Replayed {} logged write batches from {} in {} ms", replayed, file,
+      TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return store;
+  }
+
+  /**
+   * Append a batch of changes to the log, and sync it (unless the log is
+   * synced periodically instead).
+   *
+   * @param changes the changes
+   * @throws IOException if the changes can't be appended, or an earlier
+   *   append failed
+   */
+  public synchronized void append(TodoChanges changes) throws IOException {
+    if (failure != null) {
+      throw new IOException("Log " + file + " can't be written", failure);
+    }
+    ByteBuffer record = encode(sequence + 1, changes);
+    try {
+      int length = writeFully(channel, record, size);
+      if (syncer == null) {
+        channel.force(false);
+      } else {
+        dirty = true;
+      }
+      size += length;
+      sequence++;
+    } catch (IOException e) {
+      failure = e;
+      try {
+        // Don't leave a record behind that might be replayed even though
+        // its writes failed.
+        channel.truncate(size);
+      } catch (IOException truncateFailure) {
+        e.addSuppressed(truncateFailure);
+      }
+      throw e;
+    }
+  }
+
+  private void syncIfDirty() {
+    if (!dirty) {
+      return;
+    }
+    dirty = false;
+    try {
+      channel.force(false);
+    } catch (ClosedChannelException e) {
+      // The log was replaced by `dropThrough` (which syncs the new one) or
+      // closed (which syncs it first).
+    } catch (IOException e) {
+      LOGGER.error("Could not sync log " + file, e);
+      synchronized (this) {
+        failure = e;
+      }
+    }
+  }
+
+  /**
+   * Get the sequence number of the last record in the log.
+   *
+   * @return the sequence number, or 0 if nothing has ever been logged
+   */
+  public synchronized long sequence() {
+    return sequence;
+  }
+
+  /**
+   * Get the size of the log.
+   *
+   * @return its size in bytes
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Drop the records up to a sequence number from the start of the log,
+   * once they're safely in a snapshot. The records after it are copied to
+   * a new log which then replaces this one, so the log is never missing
+   * any records even if the server crashes part way through.
+   *
+   * @param lastSequence the sequence number of the last record to drop
+   * @throws IOException if the new log can't be written
+   */
+  public synchronized void dropThrough(long lastSequence) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES + Long.BYTES);
+    long keepFrom = HEADER_BYTES;
+    while (keepFrom < size) {
+      header.clear();
+      readFully(channel, header, keepFrom);
+      if (header.getLong(RECORD_HEADER_BYTES) > lastSequence) {
+        break;
+      }
+      keepFrom += RECORD_HEADER_BYTES + header.getInt(0);
+    }
+    ByteBuffer kept = ByteBuffer.allocate(Math.toIntExact(size - keepFrom));
+    readFully(channel, kept, keepFrom);
+    createLog(file, sourceChecksum, kept.flip());
+    FileChannel previous = channel;
+    channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    size = channel.size();
+    previous.close();
+  }
+
+  /**
+   * Sync and close the log.
+   *
+   * @throws IOException if the log can't be synced
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (syncer != null) {
+      syncer.shutdownNow();
+    }
+    try {
+      if (channel.isOpen() && failure == null) {
+        channel.force(false);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static ByteBuffer encode(long sequence, TodoChanges changes) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    payload.writeLong(sequence);
+    payload.writeInt(0);
+    int[] count = {0};
+    try {
+      changes.forEach((id, todo) -> {
+        try {
+          if (todo == null) {
+            payload.writeByte(DELETE);
+            writeString(payload, id);
+          } else {
+            payload.writeByte(PUT);
+            writeString(payload, id);
+            writeString(payload, todo.owner);
+            payload.writeBoolean(todo.status);
+            writeString(payload, todo.body);
+            writeString(payload, todo.category);
+          }
+          count[0]++;
+        } catch (IOException e) {
+          // Writing to a byte array can't actually fail.
+          throw new IllegalStateException(e);
+        }
+      });
+    } finally {
+      payload.flush();
+    }
+    byte[] payloadBytes = bytes.toByteArray();
+    ByteBuffer.wrap(payloadBytes).putInt(Long.BYTES, count[0]);
+    CRC32 crc = new CRC32();
+    crc.update(payloadBytes);
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + payloadBytes.length);
+    record.putInt(payloadBytes.length).putInt((int) crc.getValue()).put(payloadBytes);
+    return record.flip();
+  }
+
+  private static void readChanges(ByteBuffer payload, TodoChanges changes) throws IOException {
+    int count = payload.getInt();
+    for (int i = 0; i < count; i++) {
+      byte type = payload.get();
+      String id = readString(payload);
+      if (type == DELETE) {
+        changes.remove(id);
+      } else if (type == PUT) {
+        Todo todo = new Todo();
+        todo._id = id;
+        todo.owner = readString(payload);
+        todo.status = payload.get() != 0;
+        todo.body = readString(payload);
+        todo.category = readString(payload);
+        changes.put(todo);
+      } else {
+        throw new IOException("Unknown change type " + type + " in log");
+      }
+    }
+  }
+
+  // Strings are written as their length in bytes (-1 for `null`) then
+  // their UTF-8 bytes.
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+      StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+}
@@ -0,0 +1,487 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+import io.javalin.http.BadRequestResponse;
+
+/**
+ * How a query on a `TodoStore` is carried out: in what order its filters
+ * are applied, and how the matching todos are put in order. The plan is
+ * chosen from estimates of how many todos each filter matches, which come
+ * from the sizes of the posting lists and the status bit set, so planning
+ * doesn't look at any todos.
+ * <p>
+ * The filters (`owner`, `category`, `status` and `contains`, which must
+ * all match) are applied in two parts. The filter with an index that
+ * matches the fewest todos drives the query: the todos come from its
+ * posting list (or, for `contains`, the trigram index's candidates), or
+ * from the whole store if no filter has an index. The rest are then
+ * checked one todo at a time, cheapest and most selective first, so the
+ * expensive body search only sees the todos that got past the cheap
+ * filters. A `contains` filter that isn't driving the query only uses the
+ * trigram index to narrow those todos down first if that's estimated to
+ * be cheaper than just searching their bodies, which it isn't when the
+ * query's trigrams are common.
+ * <p>
+ * The ordering is chosen once the number of matching todos is known: a
+ * slice of the store's sort order when everything matches, a bounded
+ * heap of the best ranks when only a page of the todos is wanted, sorting
+ * the matching todos' ranks, or walking the sort order until enough
+ * matching todos have been seen, whichever is estimated to be cheapest.
+ * <p>
+ * A plan is also what `/api/todos?explain=true` responds with, so its
+ * public fields describe what was done.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public final class TodoQueryPlan {
+  // Rough costs, relative to checking a todo's owner, category or status
+  // (an array lookup), of searching a todo's body for a string and of one
+  // step of a binary search of a posting list.
+  private static final double BODY_SEARCH_COST = 25;
+  private static final double LOOKUP_COST = 1;
+
+  // The steps that filter the todos, in the order they're applied.
+  public List<Step> filters = new ArrayList<>();
+  // The estimated number of todos matching all the filters, and the actual
+  // number (once the filters have been applied).
+  public long estimatedRows;
+  public Integer rows;
+  // The field the todos are ordered by (or `null` for their original
+  // order), and how they're put in that order (once they have been).
+  public String orderBy;
+  public String order;
+
+  private final TodoStore store;
+  // The fields with filters on their values (`owner`, `category` and
+  // `status`).
+  private final Set<String> filteredFields = new HashSet<>();
+  // What the `filters` steps do (apart from a `scan`, since the todos start
+  // out as all of them).
+  private final List<Operation> operations = new ArrayList<>();
+
+  /**
+   * One step of filtering the todos.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  public static final class Step {
+    // The filter, like `owner = Fry`.
+    public String filter;
+    // How it's applied: from an `index`, by narrowing the todos down with
+    // the `trigram index`, by a `check` of each todo, or by a `scan` of
+    // every todo.
+    public String access;
+    // The estimated number of todos left after this step.
+    public long estimatedRows;
+    // Whether a `check` was split over several threads (see
+    // `ParallelScan`), once it's been done.
+    public boolean parallel;
+
+    Step(String filter, String access, double estimatedRows) {
+      this.filter = filter;
+      this.access = access;
+      this.estimatedRows = Math.round(estimatedRows);
+    }
+  }
+
+  private interface Operation {
+    int[] apply(int[] positions, LongAdder scanned, ParallelScan scan);
+  }
+
+  /**
+   * A filter, with what the planner needs to know about it.
+   */
+  private static final class Filter {
+    private final String description;
+    // The estimated number of todos it matches.
+    private final double matches;
+    // The cost of checking one todo against it.
+    private final double checkCost;
+    private final IntPredicate check;
+    // The filter's posting list, if it's an owner or category filter.
+    private final int[] posting;
+    // For a `contains` filter, the string searched for, and the sizes of
+    // its trigrams' posting lists (`null` if it has no trigrams).
+    private final String query;
+    private final int[] trigramSizes;
+    // For a `status` filter, the status.
+    private Boolean status;
+
+    private Filter(String description, double matches, double checkCost, IntPredicate check, int[] posting,
+        String query, int[] trigramSizes) {
+      this.description = description;
+      this.matches = matches;
+      this.checkCost = checkCost;
+      this.check = check;
+      this.posting = posting;
+      this.query = query;
+      this.trigramSizes = trigramSizes;
+    }
+
+    private boolean isIndexed() {
+      return posting != null || trigramSizes != null;
+    }
+  }
+
+  private TodoQueryPlan(TodoStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Plan the filters in a query.
+   *
+   * @param store the store being queried
+   * @param queryParams map of key-value pairs for the query
+   * @return the plan
+   * @throws BadRequestResponse if the `contains` filter is blank
+   */
+  static TodoQueryPlan plan(TodoStore store, Map<String, List<String>> queryParams) {
+    TodoQueryPlan plan = new TodoQueryPlan(store);
+    plan.planFilters(parseFilters(store, queryParams));
+    for (String field : List.of("owner", "category", "status")) {
+      if (queryParams.containsKey(field)) {
+        plan.filteredFields.add(field);
+      }
+    }
+    return plan;
+  }
+
+  private static List<Filter> parseFilters(TodoStore store, Map<String, List<String>> queryParams) {
+    List<Filter> filters = new ArrayList<>();
+    if (queryParams.containsKey("owner")) {
+      filters.add(valueFilter("owner", queryParams.get("owner").get(0), store.owners()));
+    }
+    if (queryParams.containsKey("category")) {
+      filters.add(valueFilter("category", queryParams.get("category").get(0), store.categories()));
+    }
+    if (queryParams.containsKey("status")) {
+      boolean targetStatus = queryParams.get("status").get(0).equals("complete");
+      Filter filter = new Filter("status = " + (targetStatus ? "complete" : "incomplete"),
+        store.countWithStatus(targetStatus), 1, position -> store.hasStatus(position, targetStatus), null, null,
+        null);
+      filter.status = targetStatus;
+      filters.add(filter);
+    }
+    if (queryParams.containsKey("contains")) {
+      String targetBody = queryParams.get("contains").get(0);
+      String trimTargetBody = targetBody.trim();
+      if (trimTargetBody.isEmpty()) {
+        throw new BadRequestResponse("Specified String '" + targetBody + "' is not a valid input");
+      }
+      boolean ignoreCase = queryParams.containsKey("ignoreCase")
+        && Boolean.parseBoolean(queryParams.get("ignoreCase").get(0));
+      int[] trigramSizes = store.bodyIndex().postingSizes(trimTargetBody);
+      // Every todo containing the string is in the smallest posting list.
+      double matches = trigramSizes == null ? store.size() : Arrays.stream(trigramSizes).min().getAsInt();
+      filters.add(new Filter("body contains '" + trimTargetBody + "'" + (ignoreCase ? " (ignoring case)" : ""),
+        matches, BODY_SEARCH_COST, position -> store.bodyContains(position, trimTargetBody, ignoreCase), null,
+        trimTargetBody, trigramSizes));
+    }
+    return filters;
+  }
+
+  private static Filter valueFilter(String field, String value, DictionaryColumn column) {
+    int[] posting = column.positionsWith(value);
+    int code = column.codeOf(value);
+    int[] codes = column.codes();
+    return new Filter(field + " = " + value, posting.length, 1, position -> codes[position] == code, posting,
+      null, null);
+  }
+
+  private void planFilters(List<Filter> parsed) {
+    double size = store.size();
+    double rowsLeft = size;
+    // Drive the query from the index that matches the fewest todos.
+    Filter driver = null;
+    for (Filter filter : parsed) {
+      if (filter.isIndexed() && (driver == null || filter.matches < driver.matches)) {
+        driver = filter;
+      }
+    }
+    List<Filter> remaining = new ArrayList<>(parsed);
+    if (driver != null) {
+      rowsLeft = driver.matches;
+      addDriver(driver);
+      // The trigram index's candidates still need their bodies searching;
+      // posting lists are exact.
+      if (driver.posting != null) {
+        remaining.remove(driver);
+      }
+    } else if (!remaining.isEmpty()) {
+      filters.add(new Step("every todo", "scan", size));
+    }
+
+    // Then check the rest, each time picking the filter that's cheapest
+    // for the todos it removes.
+    while (!remaining.isEmpty()) {
+      Filter next = null;
+      double nextRank = Double.MAX_VALUE;
+      for (Filter filter : remaining) {
+        double selectivity = selectivity(filter, driver);
+        double rank = selectivity >= 1 ? Double.MAX_VALUE : costPerTodo(filter, driver, rowsLeft) / (1 - selectivity);
+        if (next == null || rank < nextRank) {
+          next = filter;
+          nextRank = rank;
+        }
+      }
+      remaining.remove(next);
+      boolean narrow = useTrigramIndex(next, driver, rowsLeft);
+      rowsLeft *= selectivity(next, driver);
+      addCheck(next, narrow, rowsLeft);
+    }
+    estimatedRows = Math.round(rowsLeft);
+  }
+
+  /**
+   * Estimate the fraction of todos a filter lets through. The candidates
+   * from the trigram index are all the planner knows about a `contains`
+   * filter, so once it has driven the query it's assumed that they all
+   * match.
+   */
+  private double selectivity(Filter filter, Filter driver) {
+    if (filter == driver || store.size() == 0) {
+      return 1;
+    }
+    return Math.min(1, filter.matches / store.size());
+  }
+
+  private void addDriver(Filter driver) {
+    if (driver.posting != null) {
+      int[] posting = driver.posting;
+      filters.add(new Step(driver.description, "index", posting.length));
+      operations.add((positions, scanned, scan) -> posting);
+    } else {
+      String query = driver.query;
+      filters.add(new Step(driver.description, "trigram index", driver.matches));
+      operations.add((positions, scanned, scan) -> store.bodyCandidates(query));
+    }
+  }
+
+  /**
+   * The cost per todo of applying a filter that isn't driving the query:
+   * checking each todo, or for `contains`, possibly narrowing them down
+   * with the trigram index first.
+   */
+  private double costPerTodo(Filter filter, Filter driver, double rowsLeft) {
+    if (!useTrigramIndex(filter, driver, rowsLeft)) {
+      return filter.checkCost;
+    }
+    return trigramCost(filter, rowsLeft) / rowsLeft;
+  }
+
+  private boolean useTrigramIndex(Filter filter, Filter driver, double rowsLeft) {
+    if (filter.trigramSizes == null || filter == driver || rowsLeft < 1) {
+      return false;
+    }
+    return trigramCost(filter, rowsLeft) < rowsLeft * filter.checkCost;
+  }
+
+  /**
+   * Estimate the cost of narrowing the todos down with the trigram index
+   * and then searching the candidates' bodies: intersecting the trigrams'
+   * posting lists (smallest first), then the todos with the candidates,
+   * then the searches.
+   */
+  private double trigramCost(Filter filter, double rowsLeft) {
+    double candidates = filter.matches;
+    double cost = 0;
+    for (int trigramSize : filter.trigramSizes) {
+      cost += candidates * log2(trigramSize) * LOOKUP_COST;
+    }
+    cost += Math.min(rowsLeft, candidates) * log2(Math.max(rowsLeft, candidates)) * LOOKUP_COST;
+    return cost + rowsLeft * Math.min(1, candidates / store.size()) * filter.checkCost;
+  }
+
+  private void addCheck(Filter filter, boolean narrow, double rowsLeft) {
+    if (narrow) {
+      String query = filter.query;
+      filters.add(new Step(filter.description, "trigram index", rowsLeft));
+      operations.add((positions, scanned, scan) -> PostingLists.intersect(positions, store.bodyCandidates(query)));
+    }
+    IntPredicate check = filter.check;
+    Boolean status = filter.status;
+    Step step = new Step(filter.description, "check", rowsLeft);
+    filters.add(step);
+    operations.add((positions, scanned, scan) -> {
+      scanned.add(positions.length);
+      if (status != null && positions == store.allPositions()) {
+        // Every todo is being checked, so just read off the status bits.
+        return positionsWithStatus(status);
+      }
+      step.parallel = scan.splits(positions.length);
+      // The matches are collected into a new array; `positions` may belong
+      // to the store.
+      return scan.filter(positions, check);
+    });
+  }
+
+  private int[] positionsWithStatus(boolean status) {
+    BitSet complete = store.completeTodos();
+    int[] positions = new int[store.countWithStatus(status)];
+    int position = -1;
+    for (int i = 0; i < positions.length; i++) {
+      position = status ? complete.nextSetBit(position + 1) : complete.nextClearBit(position + 1);
+      positions[i] = position;
+    }
+    return positions;
+  }
+
+  // The base 2 logarithm, but at least 1.
+  private static double log2(double x) {
+    return Math.log(Math.max(x, 2)) / Math.log(2);
+  }
+
+  /**
+   * Apply the filters.
+   *
+   * @param scanned counts the todos checked one at a time
+   * @param scan checks the todos that can't be found through an index
+   * @return the (ascending) positions of the todos matching the filters;
+   *   this may be shared with the store, so mustn't be modified
+   */
+  int[] filter(LongAdder scanned, ParallelScan scan) {
+    int[] positions = store.allPositions();
+    for (Operation operation : operations) {
+      positions = operation.apply(positions, scanned, scan);
+    }
+    rows = positions.length;
+    return positions;
+  }
+
+  /**
+   * Put the given positions into the order given by the store's
+   * precomputed sort order for a field, instead of sorting the todos,
+   * choosing the cheapest way for the number of them (see above).
+   *
+   * @param positions the (ascending) selected positions
+   * @param field the field to order by
+   * @param fromRank the rank in the sort order to start from (when
+   *   resuming after a cursor)
+   * @param wanted the most positions the caller will use
+   * @return the selected positions with at least the given rank, in sorted
+   *   order (only the first `wanted` of them)
+   */
+  int[] order(int[] positions, String field, int fromRank, int wanted) {
+    orderBy = field;
+    int[] sortOrder = store.sortOrder(field);
+    int size = store.size();
+    if (positions.length == size) {
+      // Everything is selected, so the sort order is the answer.
+      order = "sort order";
+      return Arrays.copyOfRange(sortOrder, fromRank, (int) Math.min(size, (long) fromRank + wanted));
+    }
+    int selected = positions.length;
+    int k = Math.min(wanted, selected);
+    double sortCost = selected * log2(selected);
+    double heapCost = k < selected ? selected * log2(k) + k * log2(k) : Double.MAX_VALUE;
+    // Walking the sort order means clearing a bit set the size of the
+    // store, and then (assuming the selected todos are spread evenly
+    // through the sort order) walking until enough have been seen. If
+    // they're filtered on the field they're ordered by they all have the
+    // same value, so they could be anywhere, and the whole walk is counted.
+    double walkLength = filteredFields.contains(field)
+      ? size - fromRank
+      : Math.min(size - fromRank, k * ((double) size / Math.max(selected, 1)));
+    double walkCost = selected + size / (double) Long.SIZE + walkLength;
+
+    int[] ranks;
+    if (heapCost <= sortCost && heapCost <= walkCost) {
+      order = "top " + k + " heap";
+      ranks = smallestRanks(positions, store.sortRanks(field), fromRank, k);
+    } else if (sortCost <= walkCost) {
+      order = "sorted ranks";
+      ranks = sortedRanks(positions, store.sortRanks(field), fromRank, wanted);
+    } else {
+      order = "sort order walk";
+      return walkSortOrder(positions, sortOrder, fromRank, k);
+    }
+    int[] ordered = new int[ranks.length];
+    for (int i = 0; i < ranks.length; i++) {
+      ordered[i] = sortOrder[ranks[i]];
+    }
+    return ordered;
+  }
+
+  /**
+   * Sort all the selected positions' ranks (primitive ints, O(n log n)).
+   */
+  private static int[] sortedRanks(int[] positions, int[] ranks, int fromRank, int wanted) {
+    int[] selectedRanks = new int[positions.length];
+    for (int i = 0; i < positions.length; i++) {
+      selectedRanks[i] = ranks[positions[i]];
+    }
+    Arrays.sort(selectedRanks);
+    int start = Arrays.binarySearch(selectedRanks, fromRank);
+    start = start >= 0 ? start : -start - 1;
+    return Arrays.copyOfRange(selectedRanks, start, (int) Math.min(selectedRanks.length, (long) start + wanted));
+  }
+
+  /**
+   * Find the `k` smallest ranks (at least `fromRank`) of the selected
+   * positions with a bounded max-heap, which is O(n log k) rather than
+   * sorting all of them.
+   */
+  private static int[] smallestRanks(int[] positions, int[] ranks, int fromRank, int k) {
+    int[] heap = new int[k];
+    int size = 0;
+    for (int position : positions) {
+      int rank = ranks[position];
+      if (rank < fromRank) {
+        continue;
+      }
+      if (size < k) {
+        // Sift the new rank up from the bottom.
+        int i = size++;
+        while (i > 0 && heap[(i - 1) / 2] < rank) {
+          heap[i] = heap[(i - 1) / 2];
+          i = (i - 1) / 2;
+        }
+        heap[i] = rank;
+      } else if (rank < heap[0]) {
+        // Replace the biggest rank, sifting the new one down from the top.
+        int i = 0;
+        while (2 * i + 1 < size) {
+          int child = 2 * i + 1;
+          if (child + 1 < size && heap[child + 1] > heap[child]) {
+            child++;
+          }
+          if (heap[child] <= rank) {
+            break;
+          }
+          heap[i] = heap[child];
+          i = child;
+        }
+        heap[i] = rank;
+      }
+    }
+    int[] smallest = Arrays.copyOf(heap, size);
+    Arrays.sort(smallest);
+    return smallest;
+  }
+
+  /**
+   * Walk the sort order picking out the selected positions, which is O(N)
+   * at worst but stops as soon as `k` of them have been found.
+   */
+  private static int[] walkSortOrder(int[] positions, int[] sortOrder, int fromRank, int k) {
+    BitSet selected = new BitSet(sortOrder.length);
+    for (int position : positions) {
+      selected.set(position);
+    }
+    int[] ordered = new int[k];
+    int n = 0;
+    for (int r = fromRank; r < sortOrder.length && n < ordered.length; r++) {
+      if (selected.get(sortOrder[r])) {
+        ordered[n++] = sortOrder[r];
+      }
+    }
+    return Arrays.copyOf(ordered, n);
+  }
+}
@@ -0,0 +1,87 @@
+package umm3601.todo;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The todos matching a query against a `TodoStore`.
+ * <p>
+ * A result just holds the positions of the matching todos in the store
+ * they came from; nothing is copied out of the store until the todos are
+ * actually asked for. That lets a large result be written out one todo at
+ * a time (see `iterator()`) without ever building an array of them.
+ */
+public final class TodoQueryResult implements Iterable<Todo> {
+  private final TodoStore store;
+  private final int[] positions;
+  private final int from;
+  private final int size;
+  private final String nextCursor;
+
+  /**
+   * Construct a result from `size` of the given positions, starting with
+   * the one at index `from`.
+   *
+   * @param store the store the positions refer to
+   * @param positions positions in the store, in result order; this may be
+   *   shared with the store, and is never modified
+   * @param from the index in `positions` of the first todo in the result
+   * @param size how many of the positions are in the result
+   * @param nextCursor the cursor for the next page of results, or `null`
+   *   if there are no more results
+   */
+  TodoQueryResult(TodoStore store, int[] positions, int from, int size, String nextCursor) {
+    this.store = store;
+    this.positions = positions;
+    this.from = from;
+    this.size = size;
+    this.nextCursor = nextCursor;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the cursor for the next page of results, to be passed back as
+   * the `after` parameter.
+   *
+   * @return the cursor, or `null` if this result ends the list
+   */
+  public String nextCursor() {
+    return nextCursor;
+  }
+
+  /**
+   * Copy the todos in this result into a new array.
+   *
+   * @return a new array of the todos in this result, in order
+   */
+  public Todo[] toArray() {
+    Todo[] todos = new Todo[size];
+    for (int i = 0; i < size; i++) {
+      todos[i] = store.todoAt(positions[from + i]);
+    }
+    return todos;
+  }
+
+  @Override
+  public Iterator<Todo> iterator() {
+    return new Iterator<Todo>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < size;
+      }
+
+      @Override
+      public Todo next() {
+        if (next >= size) {
+          throw new NoSuchElementException();
+        }
+        return store.todoAt(positions[from + next++]);
+      }
+    };
+  }
+}
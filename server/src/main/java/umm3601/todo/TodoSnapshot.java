@@ -0,0 +1,309 @@
+package umm3601.todo;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import umm3601.JsonLoader;
+
+/**
+ * Reads and writes binary snapshots of a `TodoStore`, so a server can start
+ * without parsing the JSON data file or rebuilding the expensive indexes.
+ * <p>
+ * A snapshot is a fixed header followed by a payload:
+ * <ul>
+ *   <li>the magic number and format version,</li>
+ *   <li>a CRC32 checksum of the JSON data file the store was loaded from,
+ *   so a snapshot of an older data file is recognized as stale,</li>
+ *   <li>the sequence number of the last write in the `TodoLog` that the
+ *   store includes (0 for none), so replaying the log starts after it,</li>
+ *   <li>a CRC32 checksum and the length of the payload, so a truncated or
+ *   corrupted snapshot is never used,</li>
+ * </ul>
+ * and then the columns of the store, its sort orders and its trigram index,
+ * as big-endian `int`s, `long`s and `char`s. Snapshots are memory-mapped
+ * when they're read, so the payload is copied straight from the page cache
+ * into the store's arrays.
+ * <p>
+ * Reading a snapshot never fails: anything wrong with it (missing, stale,
+ * corrupt or from another format version) just means `read` returns `null`
+ * and the caller falls back to the JSON data file.
+ */
+public final class TodoSnapshot {
+  private static final Logger LOGGER = LoggerFactory.getLogger(TodoSnapshot.class);
+
+  // "TODO" in ASCII.
+  private static final int MAGIC = 0x544F444F;
+  // Bump this whenever the layout of the payload changes.
+  private static final int VERSION = 2;
+  // The magic number and version, then the source checksum, the log
+  // sequence number, the payload checksum and the payload length.
+  private static final int HEADER_BYTES = 2 * Integer.BYTES + 4 * Long.BYTES;
+  // The sort orders are written in this order.
+  private static final String[] SORT_FIELDS = {"owner", "category", "body", "status"};
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private TodoSnapshot() {
+  }
+
+  /**
+   * What's read from a snapshot.
+   *
+   * @param store the todos
+   * @param logSequence the sequence number of the last logged write that
+   *   the todos include
+   */
+  public record Contents(TodoStore store, long logSequence) {
+  }
+
+  /**
+   * Compute the checksum of a data file that's recorded in (and checked
+   * against) a snapshot.
+   *
+   * @param dataFile a classpath resource or filesystem path
+   * @return the CRC32 checksum of the contents of the data file
+   * @throws IOException if the data file can't be found or read
+   */
+  public static long checksum(String dataFile) throws IOException {
+    CRC32 crc = new CRC32();
+    try (InputStream input = JsonLoader.open(dataFile)) {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int count = input.read(buffer);
+      while (count >= 0) {
+        crc.update(buffer, 0, count);
+        count = input.read(buffer);
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Write a snapshot of a store. The snapshot is written to a temporary
+   * file which is then moved into place, so a reader never sees a partly
+   * written snapshot.
+   *
+   * @param store the store to write
+   * @param snapshotFile where to write the snapshot
+   * @param sourceChecksum the `checksum` of the data file the store was
+   *   loaded from
+   * @throws IOException if the snapshot can't be written
+   */
+  public static void write(TodoStore store, Path snapshotFile, long sourceChecksum) throws IOException {
+    write(store, snapshotFile, sourceChecksum, 0);
+  }
+
+  /**
+   * Write a snapshot of a store that includes writes from a `TodoLog`.
+   *
+   * @param store the store to write
+   * @param snapshotFile where to write the snapshot
+   * @param sourceChecksum the `checksum` of the data file the store was
+   *   first loaded from
+   * @param logSequence the sequence number of the last logged write that
+   *   the store includes
+   * @throws IOException if the snapshot can't be written
+   */
+  public static void write(TodoStore store, Path snapshotFile, long sourceChecksum, long logSequence)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream payload = new DataOutputStream(bytes);
+    writeStringColumn(payload, store.ids());
+    writeDictionaryColumn(payload, store.owners());
+    writeDictionaryColumn(payload, store.categories());
+    writeStringColumn(payload, store.bodies());
+    long[] statusWords = store.completeTodos().toLongArray();
+    payload.writeInt(statusWords.length);
+    for (long word : statusWords) {
+      payload.writeLong(word);
+    }
+    for (String field : SORT_FIELDS) {
+      writeInts(payload, store.sortOrder(field));
+    }
+    Map<Long, int[]> postings = store.bodyIndex().postings();
+    payload.writeInt(postings.size());
+    for (Map.Entry<Long, int[]> posting : postings.entrySet()) {
+      payload.writeLong(posting.getKey());
+      writeInts(payload, posting.getValue());
+    }
+    payload.flush();
+    CRC32 crc = new CRC32();
+    crc.update(bytes.toByteArray());
+
+    Path directory = snapshotFile.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(directory, snapshotFile.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(sourceChecksum);
+        out.writeLong(logSequence);
+        out.writeLong(crc.getValue());
+        out.writeLong(bytes.size());
+        bytes.writeTo(out);
+      }
+      // Make sure the snapshot is on disk before it replaces the old one,
+      // since the log it includes may be truncated as soon as it's written.
+      try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+    LOGGER.info("Wrote snapshot of {} todos to {}", store.size(), snapshotFile);
+  }
+
+  /**
+   * Read a snapshot written by `write`.
+   *
+   * @param snapshotFile the snapshot to read
+   * @param sourceChecksum the `checksum` of the current data file
+   * @return the store in the snapshot, or `null` if there's no usable
+   *   snapshot of that data file
+   */
+  public static TodoStore read(Path snapshotFile, long sourceChecksum) {
+    Contents contents = readContents(snapshotFile, sourceChecksum);
+    return contents == null ? null : contents.store();
+  }
+
+  /**
+   * Read a snapshot written by `write`, along with the sequence number of
+   * the last logged write it includes.
+   *
+   * @param snapshotFile the snapshot to read
+   * @param sourceChecksum the `checksum` of the current data file
+   * @return the contents of the snapshot, or `null` if there's no usable
+   *   snapshot of that data file
+   */
+  public static Contents readContents(Path snapshotFile, long sourceChecksum) {
+    if (!Files.isRegularFile(snapshotFile)) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        LOGGER.warn("Ignoring snapshot {}: not a version {} todo snapshot", snapshotFile, VERSION);
+        return null;
+      }
+      if (buffer.getLong() != sourceChecksum) {
+        LOGGER.info("Ignoring snapshot {}: the data file has changed", snapshotFile);
+        return null;
+      }
+      long logSequence = buffer.getLong();
+      long payloadChecksum = buffer.getLong();
+      long payloadLength = buffer.getLong();
+      CRC32 crc = new CRC32();
+      crc.update(buffer.duplicate());
+      if (payloadLength != buffer.remaining() || crc.getValue() != payloadChecksum) {
+        LOGGER.warn("Ignoring snapshot {}: it is corrupt", snapshotFile);
+        return null;
+      }
+      TodoStore store = readStore(buffer);
+      LOGGER.info("Read snapshot of {} todos from {}", store.size(), snapshotFile);
+      return new Contents(store, logSequence);
+    } catch (IOException | RuntimeException e) {
+      // A checksum can't catch a snapshot written by a buggy writer, so
+      // anything that goes wrong reading the payload also means falling
+      // back to the data file rather than failing to start.
+      LOGGER.warn("Ignoring snapshot " + snapshotFile + ": " + e, e);
+      return null;
+    }
+  }
+
+  private static TodoStore readStore(ByteBuffer buffer) {
+    StringColumn ids = readStringColumn(buffer);
+    DictionaryColumn owners = readDictionaryColumn(buffer);
+    DictionaryColumn categories = readDictionaryColumn(buffer);
+    StringColumn bodies = readStringColumn(buffer);
+    long[] statusWords = new long[buffer.getInt()];
+    buffer.asLongBuffer().get(statusWords);
+    buffer.position(buffer.position() + statusWords.length * Long.BYTES);
+    BitSet completeTodos = BitSet.valueOf(statusWords);
+    Map<String, int[]> sortOrders = new HashMap<>();
+    for (String field : SORT_FIELDS) {
+      sortOrders.put(field, readInts(buffer));
+    }
+    int trigramCount = buffer.getInt();
+    Map<Long, int[]> postings = new HashMap<>(trigramCount * 2);
+    for (int i = 0; i < trigramCount; i++) {
+      long trigram = buffer.getLong();
+      postings.put(trigram, readInts(buffer));
+    }
+    return new TodoStore(ids, owners, categories, bodies, completeTodos, new TrigramIndex(postings), sortOrders);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+    out.writeInt(values.length);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+  }
+
+  private static int[] readInts(ByteBuffer buffer) {
+    int[] values = new int[buffer.getInt()];
+    buffer.asIntBuffer().get(values);
+    buffer.position(buffer.position() + values.length * Integer.BYTES);
+    return values;
+  }
+
+  // Strings are written as their length (-1 for `null`) then their chars.
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(value.length());
+    out.writeChars(value);
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    String value = buffer.asCharBuffer().limit(length).toString();
+    buffer.position(buffer.position() + length * Character.BYTES);
+    return value;
+  }
+
+  private static void writeStringColumn(DataOutputStream out, StringColumn column) throws IOException {
+    writeString(out, column.arena());
+    writeInts(out, column.offsets());
+  }
+
+  private static StringColumn readStringColumn(ByteBuffer buffer) {
+    return new StringColumn(readString(buffer), readInts(buffer));
+  }
+
+  private static void writeDictionaryColumn(DataOutputStream out, DictionaryColumn column) throws IOException {
+    out.writeInt(column.values().length);
+    for (String value : column.values()) {
+      writeString(out, value);
+    }
+    writeInts(out, column.codes());
+  }
+
+  private static DictionaryColumn readDictionaryColumn(ByteBuffer buffer) {
+    String[] values = new String[buffer.getInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readString(buffer);
+    }
+    return new DictionaryColumn(Arrays.asList(values), readInts(buffer));
+  }
+}
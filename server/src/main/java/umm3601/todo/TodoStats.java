@@ -0,0 +1,74 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A summary of some todos: how many there are and how many are complete,
+ * in total and for each value of the field they're grouped by. This is
+ * what `/api/todos/stats` responds with, so a client can show summaries
+ * without downloading every todo.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoStats {
+  // The field the todos are grouped by, or `null` if they aren't grouped.
+  public String groupBy;
+  public int count;
+  public int complete;
+  public double completionRate;
+  // One group for each value of the field (that any todo has), ordered
+  // by value.
+  public List<Group> groups = new ArrayList<>();
+
+  /**
+   * The todos with one value of the field they're grouped by.
+   */
+  @SuppressWarnings({"VisibilityModifier"})
+  public static class Group {
+    public String key;
+    public int count;
+    public int complete;
+    public double completionRate;
+  }
+
+  TodoStats(String groupBy) {
+    this.groupBy = groupBy;
+  }
+
+  /**
+   * Add a group (or for ungrouped stats, just its counts to the totals).
+   *
+   * @param key the value of the grouped by field
+   * @param groupCount how many todos have that value
+   * @param groupComplete how many of them are complete
+   */
+  void add(String key, int groupCount, int groupComplete) {
+    if (groupCount == 0) {
+      return;
+    }
+    count += groupCount;
+    complete += groupComplete;
+    completionRate = rate(complete, count);
+    if (groupBy == null) {
+      return;
+    }
+    Group group = new Group();
+    group.key = key;
+    group.count = groupCount;
+    group.complete = groupComplete;
+    group.completionRate = rate(groupComplete, groupCount);
+    groups.add(group);
+  }
+
+  /**
+   * Put the groups in order of their keys, once they've all been added.
+   */
+  void sortGroups() {
+    groups.sort(Comparator.comparing(g -> g.key, Comparator.nullsFirst(Comparator.naturalOrder())));
+  }
+
+  private static double rate(int part, int whole) {
+    return whole == 0 ? 0 : (double) part / whole;
+  }
+}
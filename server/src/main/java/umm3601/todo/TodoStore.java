@@ -0,0 +1,701 @@
+package umm3601.todo;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntBinaryOperator;
+import java.util.stream.IntStream;
+
+import umm3601.IntSort;
+
+/**
+ * An immutable snapshot of all the todos together with the indexes built
+ * over them.
+ * <p>
+ * Everything in a `TodoStore` is built in the constructor and never
+ * changed afterwards, so any number of request threads can read from the
+ * same store at once without locking. Todos are referred to by their
+ * _position_ in the store (0 up to `size() - 1`); queries work on arrays
+ * of positions and only turn them into `Todo` objects at the very end.
+ * <p>
+ * The todos aren't kept as `Todo` objects, but column by column: the ids
+ * and bodies each live in a single `StringColumn` arena, owners and
+ * categories (which only have a few distinct values) are dictionary
+ * encoded, and the statuses are bits in a `BitSet`. A `Todo` is only put
+ * together when `todoAt` is called, typically just as it's serialized.
+ * <p>
+ * Arrays returned from this class are shared with the store, and must
+ * never be modified by the caller.
+ */
+public final class TodoStore {
+  private static final AtomicLong VERSIONS = new AtomicLong();
+
+  // Every store gets a new, higher version than any store before it, so
+  // anything computed from a store (like a cached response) can tell
+  // whether it's out of date.
+  private final long version = VERSIONS.incrementAndGet();
+  private final int size;
+  private final StringColumn ids;
+  private final DictionaryColumn owners;
+  private final DictionaryColumn categories;
+  private final StringColumn bodies;
+  // Bit `i` is set if the todo at position `i` is complete. This is both
+  // the status column and the index for the `status` filter. (The owner
+  // and category columns provide their own posting lists.)
+  private final BitSet completeTodos;
+  // How many of the todos with each owner and category (by dictionary
+  // code) are complete, so stats never need to look at the todos.
+  private final int[] completeByOwner;
+  private final int[] completeByCategory;
+
+  // Every position, in order, for queries that don't filter anything out.
+  private final int[] allPositions;
+  // Primary key index: an open-addressing hash table holding (position + 1)
+  // of each todo, keyed by `_id`, with 0 marking an empty slot. Ids are
+  // compared against the `ids` column, so no `String` keys are kept.
+  private final int[] idTable;
+  // Trigram index over the bodies, for the `contains` filter.
+  private final TrigramIndex bodyIndex;
+  // Precomputed sort orders for each field we can `orderBy`. The order
+  // for a field lists every position sorted by that field (ties broken by
+  // `_id`, so the order is fully deterministic), and the rank array is its
+  // inverse: `ranks[order[r]] == r`.
+  private final Map<String, int[]> sortOrders;
+  private final Map<String, int[]> sortRanks;
+
+  /**
+   * Build a store (and all its indexes) over the given todos.
+   *
+   * @param todos the todos to store; nothing in the array is kept, so later
+   *   changes to it don't affect the store
+   * @throws IllegalArgumentException if two todos have the same `_id`
+   */
+  public TodoStore(Todo[] todos) {
+    this(builderFor(todos));
+  }
+
+  private static Builder builderFor(Todo[] todos) {
+    Builder builder = new Builder();
+    for (Todo todo : todos) {
+      builder.add(todo);
+    }
+    return builder;
+  }
+
+  private TodoStore(Builder builder) {
+    this(builder.ids.build(), builder.owners.build(), builder.categories.build(), builder.bodies.build(),
+      builder.completeTodos, null, null);
+  }
+
+  /**
+   * Construct a store from its columns and the indexes that are expensive
+   * to build, either updated from a previous store's or read back from a
+   * `TodoSnapshot`, or `null` to build them from the columns. The cheap
+   * indexes are (re)built here.
+   *
+   * @throws IllegalArgumentException if two todos have the same `_id`
+   */
+  TodoStore(StringColumn ids, DictionaryColumn owners, DictionaryColumn categories, StringColumn bodies,
+      BitSet completeTodos, TrigramIndex bodyIndex, Map<String, int[]> sortOrders) {
+    this.size = ids.size();
+    this.ids = ids;
+    this.owners = owners;
+    this.categories = categories;
+    this.bodies = bodies;
+    this.completeTodos = completeTodos;
+    this.completeByOwner = completeCounts(owners, completeTodos);
+    this.completeByCategory = completeCounts(categories, completeTodos);
+    this.idTable = buildIdTable(ids);
+    this.bodyIndex = bodyIndex != null ? bodyIndex : new TrigramIndex(bodies);
+    this.sortOrders = sortOrders != null ? sortOrders : buildSortOrders(ids, owners, categories, bodies, completeTodos);
+
+    allPositions = IntStream.range(0, size).toArray();
+    sortRanks = new HashMap<>();
+    this.sortOrders.forEach((field, order) -> {
+      int[] ranks = new int[order.length];
+      for (int r = 0; r < order.length; r++) {
+        ranks[order[r]] = r;
+      }
+      sortRanks.put(field, ranks);
+    });
+  }
+
+  /**
+   * Builds a `TodoStore` one todo at a time, so a store can be built while
+   * its todos are still being read in. Each todo is split into its columns
+   * as it's added (the `Todo` object itself isn't kept); the indexes are
+   * built from the columns by `build()`.
+   */
+  public static final class Builder {
+    private final StringColumn.Builder ids = new StringColumn.Builder();
+    private final DictionaryColumn.Builder owners;
+    private final DictionaryColumn.Builder categories;
+    private final StringColumn.Builder bodies = new StringColumn.Builder();
+    private final BitSet completeTodos = new BitSet();
+    // The store whose rows can be copied across by `addRows`, or `null`.
+    private final TodoStore previous;
+    private int size = 0;
+
+    public Builder() {
+      owners = new DictionaryColumn.Builder();
+      categories = new DictionaryColumn.Builder();
+      previous = null;
+    }
+
+    // A builder that starts with a previous store's dictionaries, so its
+    // rows can be copied across column by column (see `addRows`).
+    private Builder(TodoStore previous) {
+      owners = new DictionaryColumn.Builder(previous.owners);
+      categories = new DictionaryColumn.Builder(previous.categories);
+      this.previous = previous;
+    }
+
+    /**
+     * Add a todo to the store being built.
+     *
+     * @param todo the todo to add
+     */
+    public void add(Todo todo) {
+      ids.add(todo._id);
+      owners.add(todo.owner);
+      categories.add(todo.category);
+      bodies.add(todo.body);
+      completeTodos.set(size, todo.status);
+      size++;
+    }
+
+    /**
+     * Add a run of the previous store's todos, copying their ids and
+     * bodies out of its arenas, their owner and category codes, and their
+     * status bits, without putting any of them together as a `Todo`.
+     *
+     * @param from the position of the first todo to add
+     * @param to the position just after the last todo to add
+     */
+    private void addRows(int from, int to) {
+      ids.addAll(previous.ids, from, to);
+      owners.addRows(from, to);
+      categories.addRows(from, to);
+      bodies.addAll(previous.bodies, from, to);
+      for (int position = previous.completeTodos.nextSetBit(from); position >= 0 && position < to;
+          position = previous.completeTodos.nextSetBit(position + 1)) {
+        completeTodos.set(size + position - from);
+      }
+      size += to - from;
+    }
+
+    /**
+     * Finish building the store. The builder shouldn't be used afterwards.
+     *
+     * @return a store holding all the todos that were added
+     * @throws IllegalArgumentException if two todos have the same `_id`
+     */
+    public TodoStore build() {
+      return new TodoStore(this);
+    }
+
+    /**
+     * Finish building a store that holds the previous store's todos with
+     * some changes (see `withChanges`), by updating the previous store's
+     * expensive indexes rather than building them again.
+     *
+     * @param oldToNew the position in this store of each todo in the
+     *   previous store, or -1 for deleted todos
+     * @param dropped the positions in the previous store of the deleted
+     *   and replaced todos
+     * @param changed the (ascending) positions in this store of the
+     *   replacement and new todos
+     * @return the new store
+     */
+    private TodoStore buildFrom(int[] oldToNew, BitSet dropped, int[] changed) {
+      StringColumn idColumn = ids.build();
+      DictionaryColumn ownerColumn = owners.build();
+      DictionaryColumn categoryColumn = categories.build();
+      StringColumn bodyColumn = bodies.build();
+      Map<String, int[]> sortOrders = new HashMap<>();
+      sortComparisons(idColumn, ownerColumn, categoryColumn, bodyColumn, completeTodos)
+        .forEach((field, comparison) -> sortOrders.put(field,
+          mergeSortOrder(previous.sortOrders.get(field), oldToNew, dropped, changed, comparison)));
+      TrigramIndex bodyIndex = previous.bodyIndex.withChanges(previous.bodies, oldToNew, dropped, bodyColumn, changed);
+      return new TodoStore(idColumn, ownerColumn, categoryColumn, bodyColumn, completeTodos, bodyIndex, sortOrders);
+    }
+  }
+
+  /**
+   * Build a new store holding this store's todos with some of them
+   * replaced or deleted, and some new ones added at the end. Replacements
+   * keep the position of the todo they replace.
+   * <p>
+   * The new store's sort orders are merged from this store's (leaving out
+   * the changed todos) and the sorted changed todos, and only the posting
+   * lists of the trigram index that the changes affect are rebuilt (unless
+   * todos are deleted, which moves every todo after them). For a small
+   * number of changes this is much quicker than building a store from
+   * scratch, which has to sort every todo and index every body.
+   *
+   * @param replacements the todo to put at each changed position in this
+   *   store, or `null` to delete the todo at that position
+   * @param additions the todos to add
+   * @return the new store
+   * @throws IllegalArgumentException if two todos would have the same `_id`
+   */
+  TodoStore withChanges(Map<Integer, Todo> replacements, Collection<Todo> additions) {
+    // Only the replacement and new todos are added as `Todo`s; the runs of
+    // unchanged todos between them are copied across column by column.
+    Builder builder = new Builder(this);
+    int[] oldToNew = new int[size];
+    BitSet dropped = new BitSet(size);
+    int[] changed = new int[replacements.size() + additions.size()];
+    int changedCount = 0;
+    int from = 0;
+    for (int position : replacements.keySet().stream().mapToInt(Integer::intValue).sorted().toArray()) {
+      for (int unchanged = from; unchanged < position; unchanged++) {
+        oldToNew[unchanged] = builder.size + unchanged - from;
+      }
+      builder.addRows(from, position);
+      from = position + 1;
+      dropped.set(position);
+      Todo replacement = replacements.get(position);
+      if (replacement == null) {
+        oldToNew[position] = -1;
+      } else {
+        oldToNew[position] = builder.size;
+        changed[changedCount++] = builder.size;
+        builder.add(replacement);
+      }
+    }
+    for (int unchanged = from; unchanged < size; unchanged++) {
+      oldToNew[unchanged] = builder.size + unchanged - from;
+    }
+    builder.addRows(from, size);
+    for (Todo todo : additions) {
+      changed[changedCount++] = builder.size;
+      builder.add(todo);
+    }
+    return builder.buildFrom(oldToNew, dropped, Arrays.copyOf(changed, changedCount));
+  }
+
+  private static int[] completeCounts(DictionaryColumn column, BitSet completeTodos) {
+    int[] counts = new int[column.values().length];
+    int[] codes = column.codes();
+    for (int position = completeTodos.nextSetBit(0); position >= 0; position = completeTodos.nextSetBit(position + 1)) {
+      counts[codes[position]]++;
+    }
+    return counts;
+  }
+
+  /**
+   * Build the hash table for the `_id` index, using linear probing and
+   * keeping the table at most half full. Todos without an `_id` can't be
+   * looked up, so they're left out.
+   *
+   * @param ids the ids of all the todos
+   * @return the hash table
+   * @throws IllegalArgumentException if the same `_id` appears twice
+   */
+  private static int[] buildIdTable(StringColumn ids) {
+    int[] table = new int[Integer.highestOneBit(Math.max(1, ids.size())) << 2];
+    int mask = table.length - 1;
+    for (int position = 0; position < ids.size(); position++) {
+      if (ids.isNull(position)) {
+        continue;
+      }
+      int slot = spread(ids.hashCodeAt(position)) & mask;
+      while (table[slot] != 0) {
+        if (ids.compare(table[slot] - 1, position) == 0) {
+          throw new IllegalArgumentException("Duplicate todo id " + ids.get(position));
+        }
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = position + 1;
+    }
+    return table;
+  }
+
+  // Mix the high bits of a hash code into the low bits used to pick a slot.
+  private static int spread(int hash) {
+    return hash ^ (hash >>> (Integer.SIZE / 2));
+  }
+
+  /**
+   * How each sortable field orders the positions in a store, with ties
+   * broken by `_id`.
+   */
+  private static Map<String, IntBinaryOperator> sortComparisons(StringColumn ids, DictionaryColumn owners,
+      DictionaryColumn categories, StringColumn bodies, BitSet completeTodos) {
+    Map<String, IntBinaryOperator> byField = Map.of(
+      "owner", (a, b) -> Integer.compare(owners.rank(a), owners.rank(b)),
+      "category", (a, b) -> Integer.compare(categories.rank(a), categories.rank(b)),
+      "body", bodies::compare,
+      "status", (a, b) -> Boolean.compare(completeTodos.get(a), completeTodos.get(b)));
+    Map<String, IntBinaryOperator> comparisons = new HashMap<>();
+    byField.forEach((field, comparison) -> comparisons.put(field, (a, b) -> {
+      int c = comparison.applyAsInt(a, b);
+      return c != 0 ? c : ids.compare(a, b);
+    }));
+    return comparisons;
+  }
+
+  private static Map<String, int[]> buildSortOrders(StringColumn ids, DictionaryColumn owners,
+      DictionaryColumn categories, StringColumn bodies, BitSet completeTodos) {
+    Map<String, int[]> sortOrders = new HashMap<>();
+    sortComparisons(ids, owners, categories, bodies, completeTodos)
+      .forEach((field, comparison) -> sortOrders.put(field, buildSortOrder(ids.size(), comparison)));
+    return sortOrders;
+  }
+
+  /**
+   * Sort all the positions using the given comparison.
+   *
+   * @param size the number of todos
+   * @param comparison compares the todos at two positions
+   * @return every position, in sorted order
+   */
+  private static int[] buildSortOrder(int size, IntBinaryOperator comparison) {
+    int[] order = IntStream.range(0, size).toArray();
+    IntSort.sort(order, comparison);
+    return order;
+  }
+
+  /**
+   * Update a previous store's sort order for a new store (see
+   * `withChanges`). The todos that didn't change are still in the same
+   * order relative to each other, so each changed todo just needs to be
+   * put in the right place among them, which a binary search finds.
+   *
+   * @param previousOrder the previous store's sort order
+   * @param oldToNew the new position of each previous position
+   * @param dropped the previous positions of the deleted and replaced todos
+   * @param changed the new positions of the replacement and new todos
+   * @param comparison compares the todos at two positions in the new store
+   * @return the new sort order
+   */
+  private static int[] mergeSortOrder(int[] previousOrder, int[] oldToNew, BitSet dropped, int[] changed,
+      IntBinaryOperator comparison) {
+    int[] kept = new int[previousOrder.length - dropped.cardinality()];
+    int n = 0;
+    for (int position : previousOrder) {
+      if (!dropped.get(position)) {
+        kept[n++] = oldToNew[position];
+      }
+    }
+    int[] order = new int[kept.length + changed.length];
+    n = 0;
+    int from = 0;
+    int[] sortedChanged = changed.clone();
+    IntSort.sort(sortedChanged, comparison);
+    for (int position : sortedChanged) {
+      // Find the first kept todo after this one.
+      int low = from;
+      int high = kept.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (comparison.applyAsInt(kept[mid], position) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      System.arraycopy(kept, from, order, n, low - from);
+      n += low - from;
+      from = low;
+      order[n++] = position;
+    }
+    System.arraycopy(kept, from, order, n, kept.length - from);
+    return order;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long version() {
+    return version;
+  }
+
+  // The raw columns and indexes, for writing a `TodoSnapshot`.
+
+  StringColumn ids() {
+    return ids;
+  }
+
+  DictionaryColumn owners() {
+    return owners;
+  }
+
+  DictionaryColumn categories() {
+    return categories;
+  }
+
+  StringColumn bodies() {
+    return bodies;
+  }
+
+  BitSet completeTodos() {
+    return completeTodos;
+  }
+
+  TrigramIndex bodyIndex() {
+    return bodyIndex;
+  }
+
+  /**
+   * Put together the todo at a position from the columns. Each call makes
+   * a new `Todo`.
+   *
+   * @param position a position between 0 and `size() - 1`
+   * @return the todo at that position
+   */
+  public Todo todoAt(int position) {
+    Todo todo = new Todo();
+    todo._id = ids.get(position);
+    todo.owner = owners.get(position);
+    todo.status = completeTodos.get(position);
+    todo.body = bodies.get(position);
+    todo.category = categories.get(position);
+    return todo;
+  }
+
+  /**
+   * Get the todo with the given `_id`, or `null` if there isn't one.
+   *
+   * @param id the id of the desired todo
+   * @return the todo with that id, or `null`
+   */
+  public Todo getTodo(String id) {
+    int position = positionOf(id);
+    return position < 0 ? null : todoAt(position);
+  }
+
+  /**
+   * Get the position of the todo with the given `_id`.
+   *
+   * @param id the id of the desired todo
+   * @return the position of the todo with that id, or -1 if there isn't one
+   */
+  public int positionOf(String id) {
+    if (id == null) {
+      return -1;
+    }
+    int mask = idTable.length - 1;
+    for (int slot = spread(id.hashCode()) & mask; idTable[slot] != 0; slot = (slot + 1) & mask) {
+      if (ids.equalsAt(idTable[slot] - 1, id)) {
+        return idTable[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Get every position in the store.
+   *
+   * @return all the positions, in ascending order
+   */
+  public int[] allPositions() {
+    return allPositions;
+  }
+
+  /**
+   * Look up the posting list for an owner.
+   *
+   * @param owner the owner to look up
+   * @return the (ascending) positions of all the todos with that owner
+   */
+  public int[] positionsWithOwner(String owner) {
+    return owners.positionsWith(owner);
+  }
+
+  /**
+   * Look up the posting list for a category.
+   *
+   * @param category the category to look up
+   * @return the (ascending) positions of all the todos in that category
+   */
+  public int[] positionsInCategory(String category) {
+    return categories.positionsWith(category);
+  }
+
+  /**
+   * Check the status of the todo at a position using the status bit set.
+   *
+   * @param position a position in the store
+   * @param status the status to check for
+   * @return whether the todo at that position has the given status
+   */
+  public boolean hasStatus(int position, boolean status) {
+    return completeTodos.get(position) == status;
+  }
+
+  /**
+   * Find the todos whose bodies might contain a string, using the trigram
+   * index. Every todo whose body really does contain `query` (whether or
+   * not case is ignored) is a candidate, but not every candidate matches.
+   *
+   * @param query the string being searched for
+   * @return the ascending positions of the candidates, or `null` if the
+   *   query is too short to narrow things down
+   */
+  public int[] bodyCandidates(String query) {
+    return bodyIndex.candidates(query);
+  }
+
+  /**
+   * Check whether the body of the todo at a position contains a string,
+   * searching the body column in place.
+   *
+   * @param position a position in the store
+   * @param query the string to look for
+   * @param ignoreCase whether to ignore case
+   * @return whether that todo's body contains `query`
+   */
+  public boolean bodyContains(int position, String query, boolean ignoreCase) {
+    return bodies.contains(position, query, ignoreCase);
+  }
+
+  /**
+   * Get the precomputed sort order for a field.
+   *
+   * @param field the field to sort by (`owner`, `category`, `body` or `status`)
+   * @return every position in the store sorted by that field (then by `_id`),
+   *   or `null` if the field isn't one we can sort by
+   */
+  public int[] sortOrder(String field) {
+    return sortOrders.get(field);
+  }
+
+  /**
+   * Get the rank of every position in the sort order for a field, i.e.,
+   * the inverse of `sortOrder(field)`.
+   *
+   * @param field the field to sort by
+   * @return an array mapping each position to its index in the sort order,
+   *   or `null` if the field isn't one we can sort by
+   */
+  public int[] sortRanks(String field) {
+    return sortRanks.get(field);
+  }
+
+  /**
+   * Get the value of a sortable field of a todo as a string. Comparing
+   * these strings gives the same order as the precomputed sort orders
+   * (for `status`, "false" sorts before "true").
+   *
+   * @param field the field (`owner`, `category`, `body` or `status`)
+   * @param position the position of the todo
+   * @return the value of that field for that todo, which may be `null`
+   *   (sorting before any string)
+   */
+  public String sortKey(String field, int position) {
+    switch (field) {
+      case "owner":
+        return owners.get(position);
+      case "category":
+        return categories.get(position);
+      case "body":
+        return bodies.get(position);
+      default:
+        return String.valueOf(completeTodos.get(position));
+    }
+  }
+
+  /**
+   * Find where to resume the sort order for a field after the todo with
+   * the given sort key and `_id`, using a binary search. The todo itself
+   * doesn't need to still be in the store.
+   *
+   * @param field the field the order is sorted by
+   * @param key the value of that field for the last todo already seen,
+   *   which may be `null`
+   * @param id the `_id` of the last todo already seen, which may be `null`
+   * @return the rank of the first todo that sorts after (key, id)
+   */
+  public int rankAfter(String field, String key, String id) {
+    int[] order = sortOrders.get(field);
+    int low = 0;
+    int high = order.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int c = Objects.compare(sortKey(field, order[mid]), key, Comparator.nullsFirst(Comparator.naturalOrder()));
+      if (c == 0) {
+        c = ids.compareTo(order[mid], id);
+      }
+      if (c <= 0) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Count the todos with a status without looking at any of them.
+   *
+   * @param status the status to count
+   * @return how many todos have that status
+   */
+  public int countWithStatus(boolean status) {
+    return status ? completeTodos.cardinality() : size - completeTodos.cardinality();
+  }
+
+  /**
+   * Count todos, and how many of them are complete, grouped by a field.
+   * <p>
+   * For all the todos, nothing is scanned: the counts come from the sizes
+   * of the owner and category posting lists and of the status bit set,
+   * and the counts of complete todos kept for each owner and category.
+   * For some of the todos (the result of filters), just those todos are
+   * looked at.
+   *
+   * @param groupBy `owner`, `category` or `status`, or `null` for just
+   *   the totals
+   * @param positions the positions of the todos to count, or `null` for
+   *   every todo
+   * @return the counts
+   */
+  public TodoStats stats(String groupBy, int[] positions) {
+    TodoStats stats = new TodoStats(groupBy);
+    if ("owner".equals(groupBy) || "category".equals(groupBy)) {
+      DictionaryColumn column = groupBy.equals("owner") ? owners : categories;
+      int[] counts = column.counts();
+      int[] complete = groupBy.equals("owner") ? completeByOwner : completeByCategory;
+      if (positions != null) {
+        counts = new int[counts.length];
+        complete = new int[counts.length];
+        int[] codes = column.codes();
+        for (int position : positions) {
+          counts[codes[position]]++;
+          if (completeTodos.get(position)) {
+            complete[codes[position]]++;
+          }
+        }
+      }
+      for (int code = 0; code < counts.length; code++) {
+        stats.add(column.values()[code], counts[code], complete[code]);
+      }
+    } else {
+      int total = positions == null ? size : positions.length;
+      int complete = positions == null ? completeTodos.cardinality() : 0;
+      if (positions != null) {
+        for (int position : positions) {
+          if (completeTodos.get(position)) {
+            complete++;
+          }
+        }
+      }
+      if (groupBy == null) {
+        stats.add(null, total, complete);
+      } else {
+        stats.add("complete", complete, complete);
+        stats.add("incomplete", total - complete, 0);
+      }
+    }
+    stats.sortGroups();
+    return stats;
+  }
+}
@@ -0,0 +1,23 @@
+package umm3601.todo;
+
+import com.fasterxml.jackson.annotation.JsonUnwrapped;
+
+import umm3601.user.User;
+
+/**
+ * A todo joined with the user who owns it (the user whose `name` is the
+ * todo's `owner`), which is what `/api/todos?expand=owner` lists. It's
+ * written out as the todo's own fields plus an `ownerUser` field holding
+ * the user, or `null` if there's no user with that name.
+ */
+@SuppressWarnings({"VisibilityModifier"})
+public class TodoWithOwner {
+  @JsonUnwrapped
+  public Todo todo;
+  public User ownerUser;
+
+  TodoWithOwner(Todo todo, User ownerUser) {
+    this.todo = todo;
+    this.ownerUser = ownerUser;
+  }
+}
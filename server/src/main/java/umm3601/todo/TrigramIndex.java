@@ -0,0 +1,322 @@
+package umm3601.todo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the three-character substrings ("trigrams") of a collection
+ * of strings, used to find which todos' bodies might contain a string
+ * without searching every body.
+ * <p>
+ * Any string of at least three characters that appears in a body must have
+ * all of its trigrams in that body, so intersecting the posting lists of
+ * the query's trigrams gives a (usually small) set of candidates that then
+ * only need to be checked with a real substring search. Trigrams are
+ * indexed case-insensitively, so the same candidates work for both
+ * case-sensitive and case-insensitive searches.
+ */
+public final class TrigramIndex {
+  private static final int GRAM_LENGTH = 3;
+  private static final int CHAR_BITS = 16;
+  private static final long TRIGRAM_MASK = (1L << (GRAM_LENGTH * CHAR_BITS)) - 1;
+  private static final int INITIAL_CAPACITY = 1024;
+  // An odd multiplier (from the golden ratio) that mixes all the bits of a
+  // trigram into the low bits used to pick a hash table slot.
+  private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  // Posting list (ascending positions) for each trigram, with the three
+  // characters of the trigram packed into a `long`.
+  private final Map<Long, int[]> postings;
+
+  /**
+   * Build the index over the given strings; position `i` in a posting
+   * list refers to `texts.get(i)`.
+   *
+   * @param texts the strings to index
+   */
+  public TrigramIndex(StringColumn texts) {
+    // First number the distinct trigrams and count how many strings
+    // contain each one, so each posting list can be allocated at exactly
+    // the right size, then fill them in. The trigrams are read straight
+    // from the column's arena and numbered with a primitive hash table,
+    // since boxing (or even copying out) every trigram of every string
+    // would be most of the cost of building the index.
+    String arena = texts.arena();
+    TrigramNumbers numbers = new TrigramNumbers();
+    int[] counts = new int[INITIAL_CAPACITY];
+    // The last string each trigram was seen in, so that a trigram that
+    // appears in a string more than once is only counted once.
+    int[] lastSeen = new int[INITIAL_CAPACITY];
+    for (int i = 0; i < texts.size(); i++) {
+      long trigram = 0;
+      int start = texts.start(i);
+      for (int k = start, end = texts.end(i); k < end; k++) {
+        trigram = ((trigram << CHAR_BITS) | normalize(arena.charAt(k))) & TRIGRAM_MASK;
+        if (k - start < GRAM_LENGTH - 1) {
+          continue;
+        }
+        int number = numbers.numberOf(trigram);
+        if (number == counts.length) {
+          counts = Arrays.copyOf(counts, counts.length * 2);
+          lastSeen = Arrays.copyOf(lastSeen, lastSeen.length * 2);
+        }
+        if (counts[number] == 0 || lastSeen[number] != i) {
+          counts[number]++;
+          lastSeen[number] = i;
+        }
+      }
+    }
+    int[][] lists = new int[numbers.size()][];
+    for (int number = 0; number < lists.length; number++) {
+      lists[number] = new int[counts[number]];
+    }
+    int[] filled = new int[lists.length];
+    for (int i = 0; i < texts.size(); i++) {
+      long trigram = 0;
+      int start = texts.start(i);
+      for (int k = start, end = texts.end(i); k < end; k++) {
+        trigram = ((trigram << CHAR_BITS) | normalize(arena.charAt(k))) & TRIGRAM_MASK;
+        if (k - start < GRAM_LENGTH - 1) {
+          continue;
+        }
+        int number = numbers.numberOf(trigram);
+        // Posting lists are filled in order, so a trigram already seen in
+        // this string has `i` as the last entry of its list.
+        if (filled[number] == 0 || lists[number][filled[number] - 1] != i) {
+          lists[number][filled[number]++] = i;
+        }
+      }
+    }
+    postings = new HashMap<>(lists.length * 2);
+    for (int number = 0; number < lists.length; number++) {
+      postings.put(numbers.trigram(number), lists[number]);
+    }
+  }
+
+  /**
+   * Numbers trigrams 0, 1, 2, ... in the order they're first seen, using
+   * an open-addressing hash table of primitive `long`s.
+   */
+  private static final class TrigramNumbers {
+    private long[] trigrams = new long[INITIAL_CAPACITY];
+    // (number + 1) of the trigram in each slot, with 0 for an empty slot.
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+    private int size = 0;
+
+    int numberOf(long trigram) {
+      int mask = slots.length - 1;
+      int slot = Long.hashCode(trigram * HASH_MULTIPLIER) & mask;
+      while (slots[slot] != 0) {
+        if (trigrams[slots[slot] - 1] == trigram) {
+          return slots[slot] - 1;
+        }
+        slot = (slot + 1) & mask;
+      }
+      if (size == trigrams.length) {
+        trigrams = Arrays.copyOf(trigrams, size * 2);
+        rehash(slots.length * 2);
+        return numberOf(trigram);
+      }
+      trigrams[size] = trigram;
+      slots[slot] = ++size;
+      return size - 1;
+    }
+
+    private void rehash(int capacity) {
+      slots = new int[capacity];
+      int mask = capacity - 1;
+      for (int number = 0; number < size; number++) {
+        int slot = Long.hashCode(trigrams[number] * HASH_MULTIPLIER) & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        slots[slot] = number + 1;
+      }
+    }
+
+    long trigram(int number) {
+      return trigrams[number];
+    }
+
+    int size() {
+      return size;
+    }
+  }
+
+  /**
+   * Construct an index from its posting lists, e.g., as read back from a
+   * `TodoSnapshot`.
+   *
+   * @param postings the posting list for each (packed) trigram
+   */
+  TrigramIndex(Map<Long, int[]> postings) {
+    this.postings = postings;
+  }
+
+  Map<Long, int[]> postings() {
+    return postings;
+  }
+
+  /**
+   * Build the index for a changed collection of strings from this index,
+   * rather than from scratch. Only the posting lists of the trigrams in
+   * the strings that were deleted, replaced or added are rebuilt, unless
+   * deleting strings has moved the others (in which case every list has to
+   * be renumbered, which is still much quicker than building the index).
+   *
+   * @param oldTexts the strings this index is over
+   * @param oldToNew the new position of each old string, or -1 for deleted
+   *   strings
+   * @param dropped the old positions of the deleted and replaced strings
+   * @param newTexts the changed strings
+   * @param changed the (ascending) new positions of the replacement and
+   *   added strings
+   * @return an index over `newTexts`
+   */
+  TrigramIndex withChanges(StringColumn oldTexts, int[] oldToNew, BitSet dropped, StringColumn newTexts,
+      int[] changed) {
+    boolean moved = false;
+    Set<Long> removed = new HashSet<>();
+    for (int i = dropped.nextSetBit(0); i >= 0; i = dropped.nextSetBit(i + 1)) {
+      moved |= oldToNew[i] < 0;
+      for (long trigram : trigrams(oldTexts.get(i))) {
+        removed.add(trigram);
+      }
+    }
+    Map<Long, List<Integer>> additions = new HashMap<>();
+    for (int position : changed) {
+      for (long trigram : trigrams(newTexts.get(position))) {
+        additions.computeIfAbsent(trigram, k -> new ArrayList<>()).add(position);
+      }
+    }
+
+    Map<Long, int[]> updated = new HashMap<>(postings.size() * 2);
+    for (Map.Entry<Long, int[]> entry : postings.entrySet()) {
+      int[] list = entry.getValue();
+      if (moved || removed.contains(entry.getKey())) {
+        list = renumber(list, oldToNew, dropped);
+      }
+      List<Integer> added = additions.remove(entry.getKey());
+      if (added != null) {
+        list = PostingLists.union(list, toArray(added));
+      }
+      if (list.length > 0) {
+        updated.put(entry.getKey(), list);
+      }
+    }
+    additions.forEach((trigram, added) -> updated.put(trigram, toArray(added)));
+    return new TrigramIndex(updated);
+  }
+
+  // Renumber a posting list with the new positions, leaving out the
+  // dropped ones.
+  private static int[] renumber(int[] list, int[] oldToNew, BitSet dropped) {
+    int[] renumbered = new int[list.length];
+    int n = 0;
+    for (int position : list) {
+      if (!dropped.get(position)) {
+        renumbered[n++] = oldToNew[position];
+      }
+    }
+    return Arrays.copyOf(renumbered, n);
+  }
+
+  private static int[] toArray(List<Integer> positions) {
+    return positions.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * Normalize a character the same way `String.regionMatches` does when
+   * ignoring case, so that anything it considers equal gets indexed as the
+   * same trigram.
+   */
+  private static char normalize(char c) {
+    return Character.toLowerCase(Character.toUpperCase(c));
+  }
+
+  /**
+   * The distinct (normalized) trigrams of a string, in ascending order
+   * (none for `null`).
+   */
+  private static long[] trigrams(String text) {
+    if (text == null) {
+      return new long[0];
+    }
+    int count = Math.max(0, text.length() - GRAM_LENGTH + 1);
+    long[] trigrams = new long[count];
+    for (int i = 0; i < count; i++) {
+      long trigram = 0;
+      for (int j = 0; j < GRAM_LENGTH; j++) {
+        trigram = (trigram << CHAR_BITS) | normalize(text.charAt(i + j));
+      }
+      trigrams[i] = trigram;
+    }
+    Arrays.sort(trigrams);
+    int distinct = 0;
+    for (int i = 0; i < count; i++) {
+      if (distinct == 0 || trigrams[i] != trigrams[distinct - 1]) {
+        trigrams[distinct++] = trigrams[i];
+      }
+    }
+    return Arrays.copyOf(trigrams, distinct);
+  }
+
+  /**
+   * Get the sizes of the posting lists of the query's trigrams, without
+   * intersecting them. The smallest is an upper bound on the number of
+   * candidates, and they tell how much work `candidates` would be.
+   *
+   * @param query the string being searched for
+   * @return the size of each of the query's (distinct) trigrams' posting
+   *   lists, with 0 for trigrams that aren't in any string, or `null` if
+   *   the query is too short to have any trigrams
+   */
+  public int[] postingSizes(String query) {
+    long[] queryTrigrams = trigrams(query);
+    if (queryTrigrams.length == 0) {
+      return null;
+    }
+    int[] sizes = new int[queryTrigrams.length];
+    for (int i = 0; i < queryTrigrams.length; i++) {
+      int[] list = postings.get(queryTrigrams[i]);
+      sizes[i] = list == null ? 0 : list.length;
+    }
+    return sizes;
+  }
+
+  /**
+   * Find the positions of the strings that might contain `query`.
+   *
+   * @param query the string being searched for
+   * @return the ascending positions of every string containing all of the
+   *   query's trigrams, or `null` if the query is too short to have any
+   *   trigrams (in which case every string is a candidate)
+   */
+  public int[] candidates(String query) {
+    long[] queryTrigrams = trigrams(query);
+    if (queryTrigrams.length == 0) {
+      return null;
+    }
+    List<int[]> lists = new ArrayList<>();
+    for (long trigram : queryTrigrams) {
+      int[] list = postings.get(trigram);
+      if (list == null) {
+        return PostingLists.EMPTY;
+      }
+      lists.add(list);
+    }
+    lists.sort(Comparator.comparingInt(list -> list.length));
+    int[] result = lists.get(0);
+    for (int i = 1; i < lists.size() && result.length > 0; i++) {
+      result = PostingLists.intersect(result, lists.get(i));
+    }
+    return result;
+  }
+}
@@ -0,0 +1,196 @@
+package umm3601.user;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import umm3601.IntSort;
+
+/**
+ * The positions of the users in a `UserDatabase`, sorted by one of their
+ * fields (then by position, so ties are always in the same order), along
+ * with each position's rank in that order.
+ * <p>
+ * The users matching a range of values (like `ageMin` to `ageMax`) or a
+ * prefix of a string (like a name starting with "Con") are next to each
+ * other in the sorted order, so they're found with two binary searches,
+ * as a range of ranks, in O(log N) time however many users there are. The
+ * same order answers `orderBy` for the field without any sorting.
+ */
+final class SortedIndex {
+  // The positions in sorted order, and the rank of each position (the
+  // inverse of `order`).
+  private final int[] order;
+  private final int[] ranks;
+  // The key of each position, in sorted order: the values of an int
+  // field, or of a string field (lower case, if case is ignored).
+  private final int[] intKeys;
+  private final String[] stringKeys;
+  private final boolean ignoreCase;
+
+  private SortedIndex(int[] order, int[] intKeys, String[] stringKeys, boolean ignoreCase) {
+    this.order = order;
+    this.intKeys = intKeys;
+    this.stringKeys = stringKeys;
+    this.ignoreCase = ignoreCase;
+    ranks = new int[order.length];
+    for (int rank = 0; rank < order.length; rank++) {
+      ranks[order[rank]] = rank;
+    }
+  }
+
+  /**
+   * Index an int field.
+   *
+   * @param values the value of the field for each position
+   * @return the index
+   */
+  static SortedIndex ofInts(int[] values) {
+    // Pack each value (in the high bits) with its position (in the low
+    // bits, which are never negative) into a long, so sorting the longs
+    // sorts by value then position, without boxing anything.
+    long[] packed = new long[values.length];
+    for (int position = 0; position < values.length; position++) {
+      packed[position] = (long) values[position] << Integer.SIZE | position;
+    }
+    Arrays.sort(packed);
+    int[] order = new int[packed.length];
+    int[] keys = new int[packed.length];
+    for (int rank = 0; rank < packed.length; rank++) {
+      order[rank] = (int) packed[rank];
+      keys[rank] = (int) (packed[rank] >> Integer.SIZE);
+    }
+    return new SortedIndex(order, keys, null, false);
+  }
+
+  /**
+   * Index a string field.
+   *
+   * @param values the value of the field for each position (`null` is
+   *   indexed as the empty string)
+   * @param ignoreCase whether to sort, and match prefixes, ignoring case
+   * @return the index
+   */
+  static SortedIndex ofStrings(String[] values, boolean ignoreCase) {
+    String[] keys = Arrays.stream(values).map(value -> key(value, ignoreCase)).toArray(String[]::new);
+    // The sort is stable, so users with the same key stay in position
+    // order.
+    int[] order = IntStream.range(0, values.length).toArray();
+    IntSort.sort(order, (a, b) -> keys[a].compareTo(keys[b]));
+    String[] sortedKeys = new String[order.length];
+    for (int rank = 0; rank < order.length; rank++) {
+      sortedKeys[rank] = keys[order[rank]];
+    }
+    return new SortedIndex(order, null, sortedKeys, ignoreCase);
+  }
+
+  private static String key(String value, boolean ignoreCase) {
+    if (value == null) {
+      return "";
+    }
+    return ignoreCase ? value.toLowerCase(Locale.ROOT) : value;
+  }
+
+  int positionAt(int rank) {
+    return order[rank];
+  }
+
+  int rankOf(int position) {
+    return ranks[position];
+  }
+
+  /**
+   * Find the users whose (int) value is in a range.
+   *
+   * @param min the smallest value
+   * @param max the biggest value
+   * @return the first rank with a value of at least `min`, and the first
+   *   rank after it with a value of more than `max`
+   */
+  int[] between(int min, int max) {
+    int from = firstRank(rank -> intKeys[rank] >= min);
+    int to = Math.max(from, firstRank(rank -> intKeys[rank] > max));
+    return new int[] {from, to};
+  }
+
+  /**
+   * Make a check of whether a user's (int) value is in a range, as
+   * `between` would find it, without searching the index.
+   *
+   * @param min the smallest value
+   * @param max the biggest value
+   * @return the check, given a user's position
+   */
+  IntPredicate isBetween(int min, int max) {
+    return position -> intKeys[ranks[position]] >= min && intKeys[ranks[position]] <= max;
+  }
+
+  /**
+   * Find the users whose (string) value is exactly the given one.
+   *
+   * @param value the value
+   * @return the range of ranks with that value, as for `between`
+   */
+  int[] equalTo(String value) {
+    String target = key(value, ignoreCase);
+    int from = firstRank(rank -> stringKeys[rank].compareTo(target) >= 0);
+    int to = firstRank(rank -> stringKeys[rank].compareTo(target) > 0);
+    return new int[] {from, to};
+  }
+
+  /**
+   * Make a check of whether a user's (string) value is exactly the given
+   * one, as `equalTo` would find it.
+   *
+   * @param value the value
+   * @return the check, given a user's position
+   */
+  IntPredicate isEqualTo(String value) {
+    String target = key(value, ignoreCase);
+    return position -> stringKeys[ranks[position]].equals(target);
+  }
+
+  /**
+   * Find the users whose (string) value starts with a prefix.
+   *
+   * @param prefix the prefix
+   * @return the range of ranks with that prefix, as for `between`
+   */
+  int[] withPrefix(String prefix) {
+    String target = key(prefix, ignoreCase);
+    int from = firstRank(rank -> stringKeys[rank].compareTo(target) >= 0);
+    // The keys with the prefix all come straight after `from`.
+    int to = firstRank(rank -> stringKeys[rank].compareTo(target) >= 0 && !stringKeys[rank].startsWith(target));
+    return new int[] {from, to};
+  }
+
+  /**
+   * Make a check of whether a user's (string) value starts with a prefix,
+   * as `withPrefix` would find it, without searching the index.
+   *
+   * @param prefix the prefix
+   * @return the check, given a user's position
+   */
+  IntPredicate startsWith(String prefix) {
+    String target = key(prefix, ignoreCase);
+    return position -> stringKeys[ranks[position]].startsWith(target);
+  }
+
+  // Binary search for the first rank satisfying a condition that's false
+  // for every rank before it and true for every rank after it (or the
+  // number of ranks if it's never true).
+  private int firstRank(IntPredicate condition) {
+    int low = 0;
+    int high = order.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (condition.test(middle)) {
+        high = middle;
+      } else {
+        low = middle + 1;
+      }
+    }
+    return low;
+  }
+}
@@ -1,19 +1,31 @@
 package umm3601.user;
 
 import java.io.IOException;
+import java.util.Map;
 
 import io.javalin.Javalin;
 import io.javalin.http.Context;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
 import umm3601.Controller;
+import umm3601.Cursor;
+import umm3601.ETags;
+import umm3601.JsonStreams;
+import umm3601.Metrics;
+import umm3601.ResponseCache;
 
 /**
  * Controller that manages requests for info about users.
  */
 public class UserController implements Controller {
+  // Lists of more users than this are streamed to the client one user at
+  // a time instead of being serialized in one go.
+  public static final int STREAMING_THRESHOLD = 1000;
 
   private UserDatabase userDatabase;
+  private int streamingThreshold;
+  // Cache of serialized list responses, or `null` for no caching.
+  private ResponseCache responseCache;
 
   /**
    * Construct a controller for users.
@@ -25,7 +37,37 @@ public class UserController implements Controller {
    * @param database the `Database` containing user data
    */
   public UserController(UserDatabase userDatabase) {
+    this(userDatabase, STREAMING_THRESHOLD);
+  }
+
+  /**
+   * Construct a controller for users that streams lists of more than the
+   * given number of users.
+   *
+   * @param userDatabase the `Database` containing user data
+   * @param streamingThreshold the list size above which lists of users are
+   *   streamed
+   */
+  public UserController(UserDatabase userDatabase, int streamingThreshold) {
+    this(userDatabase, streamingThreshold, null);
+  }
+
+  /**
+   * Construct a controller for users that caches list responses.
+   *
+   * @param userDatabase the `Database` containing user data
+   * @param streamingThreshold the list size above which lists of users are
+   *   streamed (streamed lists are never cached)
+   * @param responseCache the cache for list responses, or `null` for none
+   */
+  public UserController(UserDatabase userDatabase, int streamingThreshold, ResponseCache responseCache) {
     this.userDatabase = userDatabase;
+    this.streamingThreshold = streamingThreshold;
+    this.responseCache = responseCache;
+  }
+
+  public UserDatabase getUserDatabase() {
+    return userDatabase;
   }
 
   /***
@@ -42,7 +84,8 @@ public class UserController implements Controller {
     UserController userController = null;
 
     UserDatabase userDatabase = new UserDatabase(userDataFile);
-    userController = new UserController(userDatabase);
+    userController = new UserController(userDatabase, STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
 
     return userController;
   }
@@ -56,6 +99,10 @@ public class UserController implements Controller {
     String id = ctx.pathParam("id");
     User user = userDatabase.getUser(id);
     if (user != null) {
+      String etag = ETags.forContent(user._id, user.name, Integer.toString(user.age), user.company, user.email);
+      if (ETags.notModified(ctx, etag)) {
+        return;
+      }
       ctx.json(user);
       ctx.status(HttpStatus.OK);
     } else {
@@ -65,21 +112,58 @@ public class UserController implements Controller {
 
   /**
    * Get a JSON response with a list of all the users in the "database".
+   * <p>
+   * The users are filtered lazily, so we don't know how many will match
+   * until we've seen them. We take just enough of them to tell whether the
+   * list is big; if it is we stream it, writing each user out as the
+   * filters produce it. Otherwise the serialized list is cached (if the
+   * controller has a cache), so repeats of the same query are answered
+   * straight from the cache. Clients that already have the current list
+   * (see `ETags`) get a 304 Not Modified without the query being run.
    *
    * @param ctx a Javalin HTTP context
+   * @throws IOException if there are problems writing a streamed response
    */
-  public void getUsers(Context ctx) {
-    User[] users = userDatabase.listUsers(ctx.queryParamMap());
-    ctx.json(users);
+  public void getUsers(Context ctx) throws IOException {
+    // Read the version before running the query, so a response is never
+    // cached under a newer version than the data it came from.
+    long version = userDatabase.version();
+    if (ETags.notModified(ctx, ETags.forQuery(version, ctx.queryParamMap()))) {
+      return;
+    }
+    if (responseCache != null) {
+      ResponseCache.Entry cached = responseCache.get(version, ctx.queryParamMap());
+      if (cached != null) {
+        cached.writeTo(ctx);
+        return;
+      }
+    }
+    UserQueryResult users = userDatabase.queryUsers(ctx.queryParamMap());
+    if (users.hasMoreThan(streamingThreshold)) {
+      Cursor.addNextLink(ctx, users.nextCursor());
+      JsonStreams.writeJsonArray(ctx, users.stream().iterator());
+    } else if (responseCache != null) {
+      ResponseCache.Entry response = ResponseCache.Entry.of(users.toArray(), users.nextCursor());
+      responseCache.put(version, ctx.queryParamMap(), response);
+      response.writeTo(ctx);
+    } else {
+      Cursor.addNextLink(ctx, users.nextCursor());
+      ctx.json(users.toArray());
+    }
   }
 
+
   /**
    * Setup routes for the `user` collection endpoints.
    *
    * These endpoints are:
-   * - `GET /api/users?age=NUMBER&company=STRING&name=STRING`
+   * - `GET /api/users?age=NUMBER&ageMin=NUMBER&ageMax=NUMBER&company=STRING&name=PREFIX&email=PREFIX`
+   *   `&orderBy=FIELD&limit=NUMBER&after=CURSOR`
    * - List users, filtered using query parameters
-   * - `age`, `company`, and `name` are optional query parameters
+   * - all the query parameters are optional; `ageMin` and `ageMax` are
+   *   inclusive, `name` and `email` match prefixes ignoring case, and
+   *   `orderBy` is one of `name`, `email`, `age` or `company`
+   * - a page cut short by `limit` has a `Link` header for the next page
    * - `GET /api/users/:id`
    * - Get the specified user
    *
@@ -100,4 +184,22 @@ public class UserController implements Controller {
     // List users, filtered using query parameters
     server.get("/api/users", this::getUsers);
   }
+
+  /**
+   * Add how many users queries have scanned and returned, and how the
+   * response cache is doing, to the server's metrics.
+   *
+   * @param metrics the server's metrics
+   */
+  @Override
+  public void addMetrics(Metrics metrics) {
+    Map<String, String> labels = Map.of("collection", "users");
+    metrics.counter("rows_scanned_total", "Rows that queries checked one at a time against their filters.", labels,
+      userDatabase::rowsScanned);
+    metrics.counter("rows_returned_total", "Rows that queries returned.", labels, userDatabase::rowsReturned);
+    userDatabase.reloads().addMetrics(metrics, "users");
+    if (responseCache != null) {
+      responseCache.addMetrics(metrics, "users");
+    }
+  }
 }
@@ -1,15 +1,20 @@
 package umm3601.user;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import io.javalin.http.BadRequestResponse;
+import umm3601.Cursor;
+import umm3601.JsonLoader;
+import umm3601.Reloads;
 
 /**
  * A fake "database" of user info
@@ -20,28 +25,99 @@ import io.javalin.http.BadRequestResponse;
  * "query" the "database".
  */
 public class UserDatabase {
+  // Cursors for users hold the `orderBy` field (empty for the original
+  // order) and the `_id` of the last user on a page.
+  private static final int CURSOR_PARTS = 2;
+  // The filters that match a prefix of a field.
+  private static final List<String> PREFIX_FILTERS = List.of("name", "email");
 
-  private User[] allUsers;
+  // The current users and their indexes. A `UserStore` is never modified
+  // once it's built; reloading the data file builds a new store and swaps
+  // it in. Each read uses whichever store is current when it starts, all
+  // the way through, so a query that's running when the data file is
+  // reloaded finishes with the users it started with.
+  private volatile UserStore current;
+  // How many users queries have checked against their filters, and how
+  // many they've returned; see `rowsScanned`.
+  private final LongAdder rowsScanned = new LongAdder();
+  private final LongAdder rowsReturned = new LongAdder();
+  private final Reloads reloads = new Reloads();
 
   public UserDatabase(String userDataFile) throws IOException {
-    // The `.getResourceAsStream` method searches for the given resource in
-    // the classpath, and returns `null` if it isn't found. We want to throw
-    // an IOException if the data file isn't found, so we need to check for
-    // `null` ourselves, and throw an IOException if necessary.
-    InputStream resourceAsStream = getClass().getResourceAsStream(userDataFile);
-    if (resourceAsStream == null) {
-      throw new IOException("Could not find " + userDataFile);
-    }
-    InputStreamReader reader = new InputStreamReader(resourceAsStream);
-    // A Jackson JSON mapper knows how to parse JSON into sensible 'User'
-    // objects.
-    ObjectMapper objectMapper = new ObjectMapper();
-    // Read our user data file into an array of User objects.
-    allUsers = objectMapper.readValue(reader, User[].class);
+    current = UserStore.load(userDataFile, JsonLoader.mapFiles());
   }
 
   public int size() {
-    return allUsers.length;
+    return current.size();
+  }
+
+  /**
+   * Get the version of the users. This changes whenever the data file is
+   * reloaded.
+   *
+   * @return the version of the store the users are in
+   */
+  public long version() {
+    return current.version();
+  }
+
+  /**
+   * Reload the users from their data file (or another), and once the new
+   * users and their indexes are built, swap them in for the old ones.
+   * Queries that are already running carry on with the old users. If the
+   * data file can't be read, the old users are kept.
+   *
+   * @param userDataFile a classpath resource or filesystem path holding
+   *   the users as JSON
+   * @throws IOException if the data file can't be read
+   */
+  public void reload(String userDataFile) throws IOException {
+    long start = System.nanoTime();
+    UserStore next;
+    try {
+      // A reloaded file is never mapped, since it may change again while
+      // it's read.
+      next = UserStore.load(userDataFile, false);
+    } catch (IOException | RuntimeException e) {
+      reloads.recordFailure();
+      throw e;
+    }
+    long built = System.nanoTime();
+    current = next;
+    reloads.record(userDataFile, next.size(), built - start, System.nanoTime() - built);
+  }
+
+  /**
+   * Get how many times the users have been reloaded, and how long that
+   * took.
+   *
+   * @return the reload statistics
+   */
+  public Reloads reloads() {
+    return reloads;
+  }
+
+  /**
+   * Count the users that queries have checked one at a time against a
+   * filter, rather than found through an index: those in the range of the
+   * filter driving a query that are checked against its other filters
+   * (which, for a lazy result, is only once it's consumed). Compared with
+   * `rowsReturned`, it shows how much of the checking was wasted.
+   *
+   * @return the number of users checked so far
+   */
+  public long rowsScanned() {
+    return rowsScanned.sum();
+  }
+
+  /**
+   * Count the users that queries have returned (on their pages, for
+   * queries with a `limit`).
+   *
+   * @return the number of users returned so far
+   */
+  public long rowsReturned() {
+    return rowsReturned.sum();
   }
 
   /**
@@ -52,7 +128,33 @@ public class UserDatabase {
    * @return the user with the given ID, or null if there is no user with that ID
    */
   public User getUser(String id) {
-    return Arrays.stream(allUsers).filter(x -> x._id.equals(id)).findFirst().orElse(null);
+    UserStore store = current;
+    Integer position = store.positionOf(id);
+    return position == null ? null : store.userAt(position);
+  }
+
+  /**
+   * Get the user with the given name, which is how todos refer to their
+   * owners. If several users share the name, it's the first of them in
+   * the data file.
+   *
+   * @param name the name of the desired user
+   * @return the user with that name, or `null` if there isn't one
+   */
+  public User getUserByName(String name) {
+    return current.getUserByName(name);
+  }
+
+  /**
+   * Get a lookup of users by name (as for `getUserByName`) that keeps
+   * using the current users even if the data file is reloaded, so that
+   * joining a list of todos to their owners uses the same users all the
+   * way through.
+   *
+   * @return the lookup
+   */
+  public Function<String, User> usersByName() {
+    return current::getUserByName;
   }
 
   /**
@@ -62,50 +164,222 @@ public class UserDatabase {
    * @return an array of all the users matching the given criteria
    */
   public User[] listUsers(Map<String, List<String>> queryParams) {
-    User[] filteredUsers = allUsers;
-
-    // Filter age if defined
-    if (queryParams.containsKey("age")) {
-      String ageParam = queryParams.get("age").get(0);
-      try {
-        int targetAge = Integer.parseInt(ageParam);
-        filteredUsers = filterUsersByAge(filteredUsers, targetAge);
-      } catch (NumberFormatException e) {
-        throw new BadRequestResponse("Specified age '" + ageParam + "' can't be parsed to an integer");
+    return queryUsers(queryParams).toArray();
+  }
+
+  /**
+   * Find all the users satisfying the queries in the params.
+   * <p>
+   * The filters are `age` (exact), `ageMin` and `ageMax` (inclusive),
+   * `company` (exact), and `name` and `email` (prefixes, ignoring case).
+   * Each is answered by a `SortedIndex` as a range of the users in order of
+   * that field, found with binary searches. The narrowest range drives the
+   * query, and only the users in it are checked against the other filters,
+   * so a query costs O(log N + k) for the k users in that range rather
+   * than O(N). Without any filters every user is in the range.
+   * <p>
+   * `orderBy` (`name`, `email`, `age` or `company`) puts the users in order
+   * of that field, then of their position in the data file (unknown
+   * orderings leave them in that original order). The index for the field
+   * gives the order, so the users only need sorting when a different
+   * field's range drives the query.
+   * <p>
+   * Unless the users need sorting, the result is a lazy stream: users are
+   * only checked against the filters as the stream is consumed, so nothing
+   * needs to be collected into an array first. With a `limit` just that
+   * page of users is collected, along with a cursor for the next page.
+   * Passing that cursor back as `after` resumes just after the last user
+   * on the page (found with the `_id` index and its rank in the ordering),
+   * rather than filtering all the earlier pages again.
+   * <p>
+   * Any problems with the query parameters are reported (by throwing a
+   * `BadRequestResponse`) when this is called, before anything is returned.
+   *
+   * @param queryParams map of key-value pairs for the query
+   * @return the users matching the given criteria
+   */
+  public UserQueryResult queryUsers(Map<String, List<String>> queryParams) {
+    UserStore store = current;
+    SortedIndex ageIndex = store.ageIndex();
+    SortedIndex companyIndex = store.companyIndex();
+    List<IndexRange> filters = new ArrayList<>();
+
+    // Filter age if defined, as a range from the larger of `age` and
+    // `ageMin` to the smaller of `age` and `ageMax`
+    if (queryParams.containsKey("age") || queryParams.containsKey("ageMin") || queryParams.containsKey("ageMax")) {
+      int min = Integer.MIN_VALUE;
+      int max = Integer.MAX_VALUE;
+      if (queryParams.containsKey("age")) {
+        min = intParam(queryParams, "age");
+        max = min;
+      }
+      if (queryParams.containsKey("ageMin")) {
+        min = Math.max(min, intParam(queryParams, "ageMin"));
       }
+      if (queryParams.containsKey("ageMax")) {
+        max = Math.min(max, intParam(queryParams, "ageMax"));
+      }
+      filters.add(new IndexRange(ageIndex, ageIndex.between(min, max), ageIndex.isBetween(min, max)));
     }
     // Filter company if defined
     if (queryParams.containsKey("company")) {
       String targetCompany = queryParams.get("company").get(0);
-      filteredUsers = filterUsersByCompany(filteredUsers, targetCompany);
+      filters.add(new IndexRange(companyIndex, companyIndex.equalTo(targetCompany),
+        companyIndex.isEqualTo(targetCompany)));
+    }
+    // Filter name and email by prefix if defined
+    for (String field : PREFIX_FILTERS) {
+      if (queryParams.containsKey(field)) {
+        SortedIndex index = store.index(field);
+        String prefix = queryParams.get(field).get(0);
+        filters.add(new IndexRange(index, index.withPrefix(prefix), index.startsWith(prefix)));
+      }
+    }
+
+    String orderBy = queryParams.containsKey("orderBy") ? queryParams.get("orderBy").get(0) : "";
+    SortedIndex order = store.index(orderBy);
+    if (order == null) {
+      // Unknown orderings leave the users in their original order.
+      orderBy = "";
+    }
+    // Start just after the user in the `after` cursor, if there is one
+    int afterPosition = -1;
+    if (queryParams.containsKey("after")) {
+      String cursor = queryParams.get("after").get(0);
+      String[] after = Cursor.decode(cursor, CURSOR_PARTS);
+      if (!after[0].equals(orderBy)) {
+        throw new BadRequestResponse("Specified cursor '" + cursor + "' is for a different orderBy");
+      }
+      Integer position = store.positionOf(after[1]);
+      if (position == null) {
+        throw new BadRequestResponse("Specified cursor is no longer valid: there is no user with id " + after[1]);
+      }
+      afterPosition = position;
     }
-    // Process other query parameters here...
 
-    return filteredUsers;
+    Stream<User> filteredUsers = filterUsers(store, filters, order, afterPosition);
+
+    if (!queryParams.containsKey("limit")) {
+      return new UserQueryResult(filteredUsers.peek(user -> rowsReturned.increment()), null);
+    }
+    String limitParam = queryParams.get("limit").get(0);
+    int targetLimit;
+    try {
+      targetLimit = Integer.parseInt(limitParam);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be parsed to an integer");
+    }
+    if (targetLimit < 0) {
+      throw new BadRequestResponse("Specified limit '" + limitParam + "' can't be negative");
+    }
+    // Take one more user than we need, so we know whether there's a next page.
+    List<User> page = filteredUsers.limit(targetLimit + 1L).toList();
+    String nextCursor = null;
+    if (page.size() > targetLimit) {
+      page = page.subList(0, targetLimit);
+      nextCursor = targetLimit == 0 ? null : Cursor.encode(orderBy, page.get(targetLimit - 1)._id);
+    }
+    rowsReturned.add(page.size());
+    return new UserQueryResult(page.stream(), nextCursor);
   }
 
   /**
-   * Get an array of all the users having the target age.
+   * Find the users in the narrowest of the filters' ranges that pass the
+   * other filters' checks, in the given order, after a position.
    *
-   * @param users     the list of users to filter by age
-   * @param targetAge the target age to look for
-   * @return an array of all the users from the given list that have the target
-   *         age
+   * @param store the users
+   * @param filters the filters
+   * @param order the ordering, or `null` for the original order
+   * @param afterPosition the position of the user to start after, or -1
+   *   to start at the beginning
+   * @return the users
    */
-  public User[] filterUsersByAge(User[] users, int targetAge) {
-    return Arrays.stream(users).filter(x -> x.age == targetAge).toArray(User[]::new);
+  private Stream<User> filterUsers(UserStore store, List<IndexRange> filters, SortedIndex order,
+      int afterPosition) {
+    IndexRange driver = null;
+    for (IndexRange filter : filters) {
+      if (driver == null || filter.size() < driver.size()) {
+        driver = filter;
+      }
+    }
+    // The other filters' checks, or `null` if there aren't any.
+    IntPredicate check = null;
+    for (IndexRange filter : filters) {
+      if (filter != driver) {
+        check = check == null ? filter.check() : check.and(filter.check());
+      }
+    }
+    IntStream candidates;
+    if (driver == null) {
+      candidates = order == null
+        ? IntStream.range(afterPosition + 1, store.size())
+        : IntStream.range(afterPosition < 0 ? 0 : order.rankOf(afterPosition) + 1, store.size())
+          .map(order::positionAt);
+    } else if (order == driver.index()) {
+      // The range is already in order.
+      int from = afterPosition < 0 ? driver.from() : Math.max(driver.from(), order.rankOf(afterPosition) + 1);
+      candidates = IntStream.range(from, driver.to()).map(order::positionAt);
+    } else {
+      // The range is in the wrong order, so check its users now and sort
+      // the ones that pass.
+      IntStream inRange = driver.positions();
+      candidates = sort((check == null ? inRange : inRange.filter(countedCheck(check))).toArray(), order,
+        afterPosition);
+      check = null;
+    }
+    if (check != null) {
+      candidates = candidates.filter(countedCheck(check));
+    }
+    return candidates.mapToObj(store::userAt);
+  }
+
+  private IntPredicate countedCheck(IntPredicate check) {
+    return position -> {
+      rowsScanned.increment();
+      return check.test(position);
+    };
   }
 
   /**
-   * Get an array of all the users having the target company.
-   *
-   * @param users         the list of users to filter by company
-   * @param targetCompany the target company to look for
-   * @return an array of all the users from the given list that have the target
-   *         company
+   * Sort some positions into an order, leaving out those that don't come
+   * after a position in it.
    */
-  public User[] filterUsersByCompany(User[] users, String targetCompany) {
-    return Arrays.stream(users).filter(x -> x.company.equals(targetCompany)).toArray(User[]::new);
+  private static IntStream sort(int[] positions, SortedIndex order, int afterPosition) {
+    if (order == null) {
+      Arrays.sort(positions);
+      return Arrays.stream(positions).filter(position -> position > afterPosition);
+    }
+    int afterRank = afterPosition < 0 ? -1 : order.rankOf(afterPosition);
+    int[] ranks = Arrays.stream(positions).map(order::rankOf).filter(rank -> rank > afterRank).toArray();
+    Arrays.sort(ranks);
+    return Arrays.stream(ranks).map(order::positionAt);
   }
 
+  private static int intParam(Map<String, List<String>> queryParams, String name) {
+    String param = queryParams.get(name).get(0);
+    try {
+      return Integer.parseInt(param);
+    } catch (NumberFormatException e) {
+      throw new BadRequestResponse("Specified " + name + " '" + param + "' can't be parsed to an integer");
+    }
+  }
+
+  /**
+   * The users a filter matches, as a range of ranks in an index, and a
+   * check of whether a user matches it (for when another filter's range
+   * drives the query).
+   */
+  private record IndexRange(SortedIndex index, int from, int to, IntPredicate check) {
+    IndexRange(SortedIndex index, int[] range, IntPredicate check) {
+      this(index, range[0], range[1], check);
+    }
+
+    int size() {
+      return to - from;
+    }
+
+    IntStream positions() {
+      return IntStream.range(from, to).map(index::positionAt);
+    }
+  }
 }
@@ -0,0 +1,78 @@
+package umm3601.user;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The users matching a query against a `UserDatabase`, along with the
+ * cursor for the next page (if the query asked for a limited page and
+ * there are more users after it).
+ * <p>
+ * The users are held as a (single-use) stream, so an unlimited query can
+ * be written out as the filters produce each user, without ever being
+ * collected into an array.
+ */
+public final class UserQueryResult {
+  private Stream<User> users;
+  private final String nextCursor;
+
+  UserQueryResult(Stream<User> users, String nextCursor) {
+    this.users = users;
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * Find out whether this result has more than a given number of users,
+   * by taking at most one more than that many from the stream (they're
+   * put back in front of the rest, so `stream()` and `toArray()` still
+   * see every user).
+   *
+   * @param count the number of users
+   * @return whether there are more than `count` users
+   */
+  public boolean hasMoreThan(int count) {
+    Iterator<User> rest = users.iterator();
+    List<User> first = new ArrayList<>();
+    while (first.size() <= count && rest.hasNext()) {
+      first.add(rest.next());
+    }
+    users = Stream.concat(first.stream(),
+      StreamSupport.stream(Spliterators.spliteratorUnknownSize(rest, Spliterator.ORDERED), false));
+    return first.size() > count;
+  }
+
+  /**
+   * Get the users in this result as a stream. This can only be called
+   * once, and can't be combined with `toArray()`.
+   *
+   * @return a stream of the users in this result
+   */
+  public Stream<User> stream() {
+    return users;
+  }
+
+  /**
+   * Collect the users in this result into an array. This can only be
+   * called once, and can't be combined with `stream()`.
+   *
+   * @return an array of the users in this result
+   */
+  public User[] toArray() {
+    return users.toArray(User[]::new);
+  }
+
+  /**
+   * Get the cursor for the next page of users, to be passed back as the
+   * `after` parameter.
+   *
+   * @return the cursor, or `null` if there are no more users
+   */
+  public String nextCursor() {
+    return nextCursor;
+  }
+}
@@ -0,0 +1,126 @@
+package umm3601.user;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import umm3601.JsonLoader;
+
+/**
+ * The users read from a data file, and their indexes. A `UserStore` is
+ * never modified once it's built; reloading the data file builds a new
+ * one, which `UserDatabase` swaps in.
+ */
+final class UserStore {
+  private static final AtomicLong VERSIONS = new AtomicLong();
+
+  // Every store gets a new, higher version than any before it, so
+  // anything computed from one (like a cached response) can tell whether
+  // it's out of date.
+  private final long version = VERSIONS.incrementAndGet();
+  private final User[] allUsers;
+  // Index from `_id` to the user's position in `allUsers`, so looking up
+  // a single user doesn't require a scan of `allUsers`.
+  private final Map<String, Integer> positionsById;
+  // Index from `name` to the (first) user with that name, for joining
+  // todos to their owners.
+  private final Map<String, User> usersByName = new HashMap<>();
+  // An index of the users in order of each field that can be filtered
+  // or ordered by.
+  private final SortedIndex ageIndex;
+  private final SortedIndex companyIndex;
+  private final Map<String, SortedIndex> indexes;
+
+  private UserStore(List<User> users, Map<String, Integer> positionsById) {
+    this.allUsers = users.toArray(new User[0]);
+    this.positionsById = positionsById;
+    for (User user : allUsers) {
+      usersByName.putIfAbsent(user.name, user);
+    }
+    ageIndex = SortedIndex.ofInts(users.stream().mapToInt(user -> user.age).toArray());
+    companyIndex = SortedIndex.ofStrings(users.stream().map(user -> user.company).toArray(String[]::new), false);
+    indexes = Map.of("age", ageIndex, "company", companyIndex,
+      "name", SortedIndex.ofStrings(users.stream().map(user -> user.name).toArray(String[]::new), true),
+      "email", SortedIndex.ofStrings(users.stream().map(user -> user.email).toArray(String[]::new), true));
+  }
+
+  /**
+   * Read the users in a data file and index them.
+   *
+   * @param userDataFile a classpath resource or filesystem path holding
+   *   the users as JSON
+   * @param mapFile whether to memory-map the data file (see
+   *   `JsonLoader.load`)
+   * @return the store
+   * @throws IOException if the data file can't be read, or two of its
+   *   users have the same `_id`
+   */
+  static UserStore load(String userDataFile, boolean mapFile) throws IOException {
+    // Read the users one at a time (the `JsonLoader` looks for the data
+    // file in the classpath, then in the filesystem), building the `_id`
+    // index as we go, so `getUser` is a constant-time lookup instead of
+    // a linear scan.
+    List<User> users = new ArrayList<>();
+    Map<String, Integer> positionsById = new HashMap<>();
+    try {
+      JsonLoader.load(userDataFile, User.class, user -> {
+        // If two users in the data file share an `_id` we refuse to load
+        // it, since `getUser` could only ever return one of them.
+        if (positionsById.putIfAbsent(user._id, users.size()) != null) {
+          throw new IllegalArgumentException("Duplicate user id " + user._id);
+        }
+        users.add(user);
+      }, mapFile);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage() + " in " + userDataFile, e);
+    }
+    return new UserStore(users, positionsById);
+  }
+
+  long version() {
+    return version;
+  }
+
+  int size() {
+    return allUsers.length;
+  }
+
+  User userAt(int position) {
+    return allUsers[position];
+  }
+
+  /**
+   * Find a user's position from their `_id`.
+   *
+   * @param id the `_id`
+   * @return the position, or `null` if there's no user with that `_id`
+   */
+  Integer positionOf(String id) {
+    return positionsById.get(id);
+  }
+
+  User getUserByName(String name) {
+    return usersByName.get(name);
+  }
+
+  SortedIndex ageIndex() {
+    return ageIndex;
+  }
+
+  SortedIndex companyIndex() {
+    return companyIndex;
+  }
+
+  /**
+   * Get the index for a field that can be filtered or ordered by.
+   *
+   * @param field `name`, `email`, `age` or `company`
+   * @return the index, or `null` if there isn't one for the field
+   */
+  SortedIndex index(String field) {
+    return indexes.get(field);
+  }
+}
@@ -0,0 +1,61 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * Tests of `Compression`: gzipping and `Accept-Encoding` negotiation.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class CompressionSpec {
+  private static boolean acceptsGzip(String acceptEncoding) {
+    Context ctx = mock(Context.class);
+    when(ctx.header(Header.ACCEPT_ENCODING)).thenReturn(acceptEncoding);
+    return Compression.acceptsGzip(ctx);
+  }
+
+  @Test
+  public void gzipsBytes() throws IOException {
+    byte[] bytes = "{\"owner\":\"Fry\"},".repeat(100).getBytes(StandardCharsets.UTF_8);
+    byte[] gzipped = Compression.gzip(bytes);
+    assertTrue(gzipped.length < bytes.length / 10);
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped))) {
+      assertArrayEquals(bytes, in.readAllBytes());
+    }
+  }
+
+  @Test
+  public void negotiatesGzip() {
+    assertFalse(acceptsGzip(null));
+    assertFalse(acceptsGzip("identity"));
+    assertFalse(acceptsGzip("br"));
+    assertTrue(acceptsGzip("gzip"));
+    assertTrue(acceptsGzip("br, GZIP;q=0.5"));
+    assertTrue(acceptsGzip("gzip, deflate, br"));
+    assertFalse(acceptsGzip("gzip;q=0"));
+    assertFalse(acceptsGzip("gzip; q=0.0, br"));
+    assertTrue(acceptsGzip("gzip;q=oops"));
+    assertTrue(acceptsGzip("*"));
+    assertFalse(acceptsGzip("*;q=0"));
+    assertFalse(acceptsGzip("*, gzip;q=0"));
+  }
+
+  @Test
+  public void onlyCompressesBigEnoughResponses() {
+    assertEquals(Compression.MIN_COMPRESSED_BYTES, Compression.strategy().getMinSizeForCompression());
+  }
+}
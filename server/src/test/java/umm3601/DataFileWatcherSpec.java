@@ -0,0 +1,111 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests of watching data files with a `DataFileWatcher`, and reloading
+ * them when they change.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class DataFileWatcherSpec {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  @TempDir
+  private Path tempDir;
+
+  private DataFileWatcher watcher;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    watcher = new DataFileWatcher(Duration.ofMillis(50));
+  }
+
+  @AfterEach
+  public void tearDown() throws IOException {
+    watcher.close();
+  }
+
+  @Test
+  public void reloadsChangedFiles() throws Exception {
+    Path file = tempDir.resolve("data.json");
+    Files.writeString(file, "first");
+    BlockingQueue<String> reloaded = new LinkedBlockingQueue<>();
+    watcher.watch(file, () -> reloaded.add(Files.readString(file)));
+    // Changes to other files in the same directory are ignored.
+    Files.writeString(tempDir.resolve("other.json"), "other");
+
+    Files.writeString(file, "second");
+    assertEquals("second", reloaded.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    // Renaming a new file over the old one counts as a change too.
+    Path replacement = tempDir.resolve("data.json.tmp");
+    Files.writeString(replacement, "third");
+    Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    assertEquals("third", reloaded.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(null, reloaded.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void keepsWatchingAfterAFailedReload() throws Exception {
+    Path file = tempDir.resolve("users.json");
+    Files.writeString(file, "[{\"_id\": \"1\", \"name\": \"Fry\"}]");
+    UserDatabase db = new UserDatabase(file.toString());
+    BlockingQueue<Boolean> reloaded = new LinkedBlockingQueue<>();
+    watcher.watch(file, () -> {
+      try {
+        db.reload(file.toString());
+        reloaded.add(true);
+      } catch (IOException e) {
+        reloaded.add(false);
+        throw e;
+      }
+    });
+
+    Files.writeString(file, "[{\"_id\": ");
+    assertEquals(false, reloaded.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals("Fry", db.getUser("1").name);
+
+    Files.writeString(file, "[{\"_id\": \"2\", \"name\": \"Blanche\"}, {\"_id\": \"3\", \"name\": \"Barry\"}]");
+    assertEquals(true, reloaded.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(List.of("Blanche", "Barry"), List.of(db.getUser("2").name, db.getUser("3").name));
+    assertEquals(1, db.reloads().count());
+    assertEquals(1, db.reloads().failures());
+    assertTrue(db.reloads().lastBuildNanos() > 0);
+  }
+
+  @Test
+  public void keepsWatchingAfterAReloadThrows() throws Exception {
+    Path file = tempDir.resolve("data.json");
+    Files.writeString(file, "first");
+    BlockingQueue<String> reloaded = new LinkedBlockingQueue<>();
+    watcher.watch(file, () -> {
+      String contents = Files.readString(file);
+      reloaded.add(contents);
+      if (contents.equals("second")) {
+        throw new IllegalStateException("Could not reload " + file);
+      }
+    });
+
+    Files.writeString(file, "second");
+    assertEquals("second", reloaded.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    Files.writeString(file, "third");
+    assertEquals("third", reloaded.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+}
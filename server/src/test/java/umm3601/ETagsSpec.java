@@ -0,0 +1,100 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+import io.javalin.http.HttpStatus;
+
+/**
+ * Tests of `ETags`: computing tags and matching them against
+ * `If-None-Match` headers.
+ */
+public class ETagsSpec {
+  private static Map<String, List<String>> query(String key, String... values) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(key, Arrays.asList(values));
+    return queryParams;
+  }
+
+  @Test
+  public void queryTagsDependOnVersionAndQuery() {
+    String etag = ETags.forQuery(1, query("owner", "Fry"));
+    assertTrue(etag.startsWith("\"") && etag.endsWith("\""));
+    assertEquals(etag, ETags.forQuery(1, query("owner", "Fry")));
+    assertNotEquals(etag, ETags.forQuery(2, query("owner", "Fry")));
+    assertNotEquals(etag, ETags.forQuery(1, query("owner", "Dawn")));
+    assertNotEquals(etag, ETags.forContent(ResponseCache.key(1, query("owner", "Fry"))));
+  }
+
+  @Test
+  public void contentTagsKeepPartsApart() {
+    assertEquals(ETags.forContent("a", "b"), ETags.forContent("a", "b"));
+    assertNotEquals(ETags.forContent("ab", "c"), ETags.forContent("a", "bc"));
+    assertNotEquals(ETags.forContent("a", null), ETags.forContent("a", "null"));
+    assertNotEquals(ETags.forContent("a", null), ETags.forContent("a", "-1:"));
+  }
+
+  @Test
+  public void matchesIfNoneMatchHeaders() {
+    String etag = ETags.forContent("a");
+    assertFalse(ETags.matches(null, etag));
+    assertTrue(ETags.matches(etag, etag));
+    assertTrue(ETags.matches("W/" + etag, etag));
+    assertTrue(ETags.matches("\"other\", " + etag, etag));
+    assertTrue(ETags.matches("*", etag));
+    assertFalse(ETags.matches("\"other\"", etag));
+    assertFalse(ETags.matches(etag.substring(1, etag.length() - 1), etag));
+  }
+
+  @Test
+  public void setsNotModifiedStatusOnlyWhenMatching() {
+    String etag = ETags.forContent("a");
+    Context ctx = mock(Context.class);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+    assertTrue(ETags.notModified(ctx, etag));
+    verify(ctx).header(Header.ETAG, etag);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+
+    Context other = mock(Context.class);
+    when(other.header(Header.IF_NONE_MATCH)).thenReturn("\"other\"");
+    assertFalse(ETags.notModified(other, etag));
+    verify(other).header(Header.ETAG, etag);
+    verify(other, never()).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void tagsGzippedRepresentationsApart() {
+    String etag = ETags.forContent("a");
+    String gzipped = ETags.gzipped(etag);
+    assertNotEquals(etag, gzipped);
+    assertTrue(gzipped.startsWith(etag.substring(0, etag.length() - 1)) && gzipped.endsWith("-gzip\""));
+
+    Context ctx = mock(Context.class);
+    when(ctx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+    assertFalse(ETags.notModified(ctx, etag));
+    verify(ctx).header(Header.ETAG, gzipped);
+    verify(ctx).header(Header.VARY, Header.ACCEPT_ENCODING);
+
+    // Either form of the tag is up to date.
+    Context identity = mock(Context.class);
+    when(identity.header(Header.IF_NONE_MATCH)).thenReturn(gzipped);
+    assertTrue(ETags.notModified(identity, etag));
+    verify(identity).header(Header.ETAG, etag);
+    verify(identity).status(HttpStatus.NOT_MODIFIED);
+  }
+}
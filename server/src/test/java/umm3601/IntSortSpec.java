@@ -0,0 +1,45 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of sorting ints with an `IntSort`, against sorting boxed ints
+ * with a `Comparator`.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class IntSortSpec {
+  @Test
+  public void sortsLikeAComparator() {
+    Random random = new Random(3601);
+    for (int size : new int[] {0, 1, 2, 15, 16, 17, 100, 1000, 10_000}) {
+      int[] values = random.ints(size, -1000, 1000).toArray();
+      int[] expected = IntStream.of(values).boxed().sorted(Comparator.reverseOrder())
+        .mapToInt(Integer::intValue).toArray();
+      IntSort.sort(values, (a, b) -> Integer.compare(b, a));
+      assertArrayEquals(expected, values);
+    }
+  }
+
+  @Test
+  public void keepsTiesInOrder() {
+    // Sort positions by a key with lots of ties: positions with the same
+    // key should stay in increasing order.
+    Random random = new Random(3601);
+    int[] keys = random.ints(5000, 0, 10).toArray();
+    int[] positions = IntStream.range(0, keys.length).toArray();
+    int[] expected = IntStream.range(0, keys.length).boxed()
+      .sorted(Comparator.comparingInt(position -> keys[position])).mapToInt(Integer::intValue).toArray();
+    IntSort.sort(positions, (a, b) -> Integer.compare(keys[a], keys[b]));
+    assertArrayEquals(expected, positions);
+
+    // Already sorted runs are left alone.
+    IntSort.sort(positions, (a, b) -> Integer.compare(keys[a], keys[b]));
+    assertArrayEquals(expected, positions);
+  }
+}
@@ -0,0 +1,102 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.todo.Todo;
+import umm3601.todo.TodoDatabase;
+import umm3601.user.UserDatabase;
+
+/**
+ * Tests of loading data files with the `JsonLoader`, both from the
+ * classpath and (streamed or memory-mapped) from the filesystem.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class JsonLoaderSpec {
+  @TempDir
+  private Path tempDir;
+
+  @Test
+  public void loadsEveryRecordFromClasspath() throws IOException {
+    List<Todo> todos = new ArrayList<>();
+    int count = JsonLoader.load(Main.TODO_DATA_FILE, Todo.class, todos::add);
+    assertEquals(300, count);
+    assertEquals(300, todos.size());
+    assertEquals("58895985a22c04e761776d54", todos.get(0)._id);
+  }
+
+  @Test
+  public void loadsDatabasesFromFilesystem() throws IOException {
+    Path todoFile = tempDir.resolve("todos.json");
+    try (InputStream input = getClass().getResourceAsStream(Main.TODO_DATA_FILE)) {
+      Files.copy(input, todoFile);
+    }
+    Path userFile = tempDir.resolve("users.json");
+    try (InputStream input = getClass().getResourceAsStream(Main.USER_DATA_FILE)) {
+      Files.copy(input, userFile);
+    }
+
+    TodoDatabase todoDatabase = new TodoDatabase(todoFile.toString());
+    assertEquals(300, todoDatabase.size());
+    assertEquals("Fry", todoDatabase.getTodo("58895985c1849992336c219b").owner);
+    UserDatabase userDatabase = new UserDatabase(userFile.toString());
+    assertEquals(10, userDatabase.size());
+  }
+
+  @Test
+  public void mapsFilesOnRequest() throws IOException {
+    Path todoFile = tempDir.resolve("todos.json");
+    try (InputStream input = getClass().getResourceAsStream(Main.TODO_DATA_FILE)) {
+      Files.copy(input, todoFile);
+    }
+    List<Todo> streamed = new ArrayList<>();
+    List<Todo> mapped = new ArrayList<>();
+    JsonLoader.load(todoFile.toString(), Todo.class, streamed::add, false);
+    assertEquals(300, JsonLoader.load(todoFile.toString(), Todo.class, mapped::add, true));
+    assertEquals(streamed.stream().map(todo -> todo._id).toList(), mapped.stream().map(todo -> todo._id).toList());
+  }
+
+  @Test
+  public void mapsFilesOnlyIfTheyAreNotWatched() {
+    assertFalse(JsonLoader.mapFiles());
+    System.setProperty(JsonLoader.MAP_FILES_PROPERTY, "true");
+    try {
+      // Data files are watched unless that's turned off.
+      assertFalse(JsonLoader.mapFiles());
+      System.setProperty(Main.DATA_WATCH_PROPERTY, "false");
+      assertTrue(JsonLoader.mapFiles());
+    } finally {
+      System.clearProperty(JsonLoader.MAP_FILES_PROPERTY);
+      System.clearProperty(Main.DATA_WATCH_PROPERTY);
+    }
+  }
+
+  @Test
+  public void rejectsFilesThatAreNotArraysOfObjects() throws IOException {
+    Path notArray = tempDir.resolve("object.json");
+    Files.writeString(notArray, "{\"_id\": \"1\"}");
+    assertThrows(IOException.class, () -> JsonLoader.load(notArray.toString(), Todo.class, todo -> { }));
+
+    Path notObjects = tempDir.resolve("numbers.json");
+    Files.writeString(notObjects, "[1, 2, 3]");
+    assertThrows(IOException.class, () -> JsonLoader.load(notObjects.toString(), Todo.class, todo -> { }));
+  }
+
+  @Test
+  public void rejectsMissingFiles() {
+    assertThrows(IOException.class, () -> JsonLoader.open(tempDir.resolve("missing.json").toString()));
+    assertThrows(IOException.class, () -> JsonLoader.open("not\0a path"));
+  }
+}
@@ -0,0 +1,103 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the `LatencyHistogram`: its buckets, quantiles and counts.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class LatencyHistogramSpec {
+  @Test
+  public void bucketsCoverEveryLatencyWithoutGaps() {
+    assertEquals(0, LatencyHistogram.lowestNanosOf(0));
+    for (int bucket = 0; bucket < 1000; bucket++) {
+      long lowest = LatencyHistogram.lowestNanosOf(bucket);
+      long highest = LatencyHistogram.highestNanosOf(bucket);
+      assertTrue(lowest <= highest);
+      assertEquals(highest + 1, LatencyHistogram.lowestNanosOf(bucket + 1));
+      // Each bucket holds values within about 3% of each other.
+      assertTrue(highest - lowest <= Math.max(0, lowest / 32));
+    }
+  }
+
+  @Test
+  public void quantilesAreWithinTheBucketPrecision() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long nanos = 1; nanos <= 100_000; nanos++) {
+      histogram.record(nanos * 1000);
+    }
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(100_000, snapshot.count());
+    assertEquals(100_000L * 100_001 / 2 * 1000, snapshot.totalNanos());
+    for (double quantile : new double[] {0.5, 0.9, 0.99, 0.999, 1}) {
+      double expected = quantile * 100_000_000;
+      long actual = snapshot.valueAtQuantile(quantile);
+      assertTrue(actual >= expected && actual <= expected * 1.04, quantile + ": " + actual);
+    }
+    long lowest = snapshot.valueAtQuantile(0);
+    assertTrue(lowest >= 1000 && lowest <= 1040, "0: " + lowest);
+  }
+
+  @Test
+  public void countsAtOrBelowOnlyIncludeWholeBuckets() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(10);
+    histogram.record(1_000);
+    histogram.record(1_000_000);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(0, snapshot.countAtOrBelow(9));
+    assertEquals(1, snapshot.countAtOrBelow(10));
+    assertEquals(1, snapshot.countAtOrBelow(999));
+    assertEquals(2, snapshot.countAtOrBelow(1_100));
+    assertEquals(3, snapshot.countAtOrBelow(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void outOfRangeLatenciesAreClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(2, snapshot.count());
+    assertEquals(1, snapshot.countAtOrBelow(0));
+    assertEquals((1L << 36) - 1, snapshot.valueAtQuantile(1));
+  }
+
+  @Test
+  public void emptyHistogramsHaveNoLatencies() {
+    LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+    assertEquals(0, snapshot.count());
+    assertEquals(0, snapshot.valueAtQuantile(0.99));
+  }
+
+  @Test
+  public void concurrentRecordsAreAllCounted() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> recorders = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        recorders.add(pool.submit(() -> {
+          for (int i = 0; i < 10_000; i++) {
+            histogram.record(i);
+          }
+        }));
+      }
+      for (Future<?> recorder : recorders) {
+        recorder.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(40_000, histogram.snapshot().count());
+  }
+}
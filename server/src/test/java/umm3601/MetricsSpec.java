@@ -0,0 +1,149 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import io.javalin.http.Context;
+import io.javalin.http.ForbiddenResponse;
+import io.javalin.http.HandlerType;
+
+/**
+ * Tests of the server's `Metrics`: recording requests, counters and
+ * gauges, and writing them all out in the Prometheus text format.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class MetricsSpec {
+  @Test
+  public void requestsAreRecordedByRouteMethodAndStatus() {
+    Metrics metrics = new Metrics();
+    metrics.recordRequest(HandlerType.GET, "/api/users/{id}", 200, 300_000);
+    metrics.recordRequest(HandlerType.GET, "/api/users/{id}", 200, 2_000_000);
+    metrics.recordRequest(HandlerType.GET, "/api/users/{id}", 404, 50_000);
+    String scrape = metrics.scrape();
+
+    assertTrue(scrape.contains("# TYPE http_server_request_duration_seconds histogram\n"));
+    String ok = "method=\"GET\",route=\"/api/users/{id}\",status=\"200\"";
+    assertTrue(scrape.contains("http_server_request_duration_seconds_bucket{" + ok + ",le=\"0.00025\"} 0\n"));
+    assertTrue(scrape.contains("http_server_request_duration_seconds_bucket{" + ok + ",le=\"0.0005\"} 1\n"));
+    assertTrue(scrape.contains("http_server_request_duration_seconds_bucket{" + ok + ",le=\"0.0025\"} 2\n"));
+    assertTrue(scrape.contains("http_server_request_duration_seconds_bucket{" + ok + ",le=\"+Inf\"} 2\n"));
+    assertTrue(scrape.contains("http_server_request_duration_seconds_sum{" + ok + "} 0.0023\n"));
+    assertTrue(scrape.contains("http_server_request_duration_seconds_count{" + ok + "} 2\n"));
+    String notFound = "method=\"GET\",route=\"/api/users/{id}\",status=\"404\"";
+    assertTrue(scrape.contains("http_server_request_duration_seconds_count{" + notFound + "} 1\n"));
+    assertTrue(scrape.contains("http_server_request_duration_quantile_seconds{" + ok + ",quantile=\"0.5\"}"));
+  }
+
+  @Test
+  public void requestsAreRecordedFromTheirContexts() {
+    Metrics metrics = new Metrics();
+    Context ctx = mock(Context.class);
+    when(ctx.method()).thenReturn(HandlerType.POST);
+    when(ctx.handlerType()).thenReturn(HandlerType.POST);
+    when(ctx.endpointHandlerPath()).thenReturn("/api/todos");
+    when(ctx.statusCode()).thenReturn(201);
+    metrics.recordRequest(ctx, 1.5f);
+    Context unmatched = mock(Context.class);
+    when(unmatched.method()).thenReturn(HandlerType.GET);
+    when(unmatched.handlerType()).thenReturn(HandlerType.BEFORE);
+    when(unmatched.endpointHandlerPath()).thenThrow(IllegalStateException.class);
+    when(unmatched.statusCode()).thenReturn(404);
+    metrics.recordRequest(unmatched, 0.5f);
+
+    String scrape = metrics.scrape();
+    assertTrue(scrape.contains(
+      "http_server_request_duration_seconds_sum{method=\"POST\",route=\"/api/todos\",status=\"201\"} 0.0015\n"));
+    assertTrue(scrape.contains(
+      "http_server_request_duration_seconds_sum{method=\"GET\",route=\"unmatched\",status=\"404\"} 5.0E-4\n"));
+  }
+
+  @Test
+  public void nothingIsWrittenForRequestsBeforeThereAreAny() {
+    assertEquals("", new Metrics().scrape());
+  }
+
+  @Test
+  public void countersAndGaugesAreReadWhenScraped() {
+    Metrics metrics = new Metrics();
+    AtomicLong rows = new AtomicLong();
+    metrics.counter("rows_total", "Rows.", Map.of("collection", "todos"), rows::get);
+    metrics.counter("rows_total", "Rows.", Map.of("collection", "users"), () -> 7);
+    metrics.gauge("ratio", "A \"ratio\".", Map.of(), () -> 0.25);
+    rows.set(12);
+
+    assertEquals("""
+      # HELP rows_total Rows.
+      # TYPE rows_total counter
+      rows_total{collection="todos"} 12
+      rows_total{collection="users"} 7
+      # HELP ratio A "ratio".
+      # TYPE ratio gauge
+      ratio 0.25
+      """, metrics.scrape());
+  }
+
+  @Test
+  public void metricsCantChangeType() {
+    Metrics metrics = new Metrics();
+    metrics.counter("things_total", "Things.", Map.of(), () -> 1);
+    assertThrows(IllegalArgumentException.class, () -> metrics.gauge("things_total", "Things.", Map.of(), () -> 1));
+  }
+
+  @Test
+  public void labelValuesAreEscaped() {
+    Metrics metrics = new Metrics();
+    metrics.gauge("odd", "Odd labels.", Map.of("name", "a \"b\"\\c\nd"), () -> 1);
+    assertTrue(metrics.scrape().contains("odd{name=\"a \\\"b\\\"\\\\c\\nd\"} 1\n"));
+  }
+
+  @Test
+  public void valuesAreFormattedForPrometheus() {
+    assertEquals("3", Metrics.format(3));
+    assertEquals("-2", Metrics.format(-2));
+    assertEquals("0.5", Metrics.format(0.5));
+    assertEquals("NaN", Metrics.format(Double.NaN));
+    assertEquals("+Inf", Metrics.format(Double.POSITIVE_INFINITY));
+    assertEquals("-Inf", Metrics.format(Double.NEGATIVE_INFINITY));
+    assertEquals("1.0E20", Metrics.format(1e20));
+  }
+
+  @Test
+  public void jvmMetricsIncludeAllocation() {
+    Metrics metrics = new Metrics();
+    metrics.addJvmMetrics();
+    String scrape = metrics.scrape();
+    assertTrue(scrape.contains("# TYPE jvm_allocated_bytes_total counter\n"));
+    assertTrue(scrape.contains("\njvm_allocation_rate_bytes_per_second "));
+    assertTrue(scrape.contains("\njvm_memory_used_bytes{area=\"heap\"} "));
+    assertTrue(scrape.contains("# TYPE jvm_gc_collections_total counter\n"));
+  }
+
+  @Test
+  public void onlyLocalClientsCanGetTheMetrics() {
+    assertTrue(Metrics.isLocal("127.0.0.1"));
+    assertTrue(Metrics.isLocal("0:0:0:0:0:0:0:1"));
+    assertFalse(Metrics.isLocal("192.0.2.1"));
+
+    Metrics metrics = new Metrics();
+    metrics.gauge("up", "Up.", Map.of(), () -> 1);
+    Context local = mock(Context.class);
+    when(local.ip()).thenReturn("127.0.0.1");
+    metrics.serve(local);
+    verify(local).contentType(Metrics.CONTENT_TYPE);
+    verify(local).result("# HELP up Up.\n# TYPE up gauge\nup 1\n");
+
+    Context remote = mock(Context.class);
+    when(remote.ip()).thenReturn("192.0.2.1");
+    assertThrows(ForbiddenResponse.class, () -> metrics.serve(remote));
+  }
+}
@@ -0,0 +1,171 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import io.javalin.http.ContentType;
+import io.javalin.http.Context;
+import io.javalin.http.Header;
+
+/**
+ * Tests of the `ResponseCache`: keys, hits and misses, eviction,
+ * invalidation and compression.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class ResponseCacheSpec {
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new LinkedHashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.computeIfAbsent(keysAndValues[i], k -> new ArrayList<>()).add(keysAndValues[i + 1]);
+    }
+    return queryParams;
+  }
+
+  // An entry whose JSON is exactly `size` bytes long.
+  private static ResponseCache.Entry entryOfSize(int size) {
+    return ResponseCache.Entry.of("x".repeat(size - 2), null);
+  }
+
+  @Test
+  public void keysIgnoreParameterOrderButNotValueOrder() {
+    assertEquals(ResponseCache.key(1, query("owner", "Fry", "limit", "5")),
+      ResponseCache.key(1, query("limit", "5", "owner", "Fry")));
+    assertNotEquals(ResponseCache.key(1, query("owner", "Fry", "owner", "Dawn")),
+      ResponseCache.key(1, query("owner", "Dawn", "owner", "Fry")));
+    assertNotEquals(ResponseCache.key(1, query("owner", "Fry")), ResponseCache.key(2, query("owner", "Fry")));
+    // Values and names containing the separators can't be confused with
+    // other parameters.
+    assertNotEquals(ResponseCache.key(1, query("owner", "Fry&limit=5")),
+      ResponseCache.key(1, query("owner", "Fry", "limit", "5")));
+    assertNotEquals(ResponseCache.key(1, query("a=b", "c")), ResponseCache.key(1, query("a", "b=c")));
+  }
+
+  @Test
+  public void countsHitsAndMisses() {
+    ResponseCache cache = new ResponseCache(1000);
+    assertNull(cache.get(1, query("owner", "Fry")));
+    ResponseCache.Entry entry = entryOfSize(10);
+    cache.put(1, query("owner", "Fry"), entry);
+    assertSame(entry, cache.get(1, query("owner", "Fry")));
+    assertNull(cache.get(1, query("owner", "Dawn")));
+    assertEquals(1, cache.hits());
+    assertEquals(2, cache.misses());
+    assertEquals(1, cache.size());
+    assertEquals(10, cache.bytes());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsedEntries() {
+    ResponseCache cache = new ResponseCache(100);
+    cache.put(1, query("q", "a"), entryOfSize(20));
+    cache.put(1, query("q", "b"), entryOfSize(20));
+    cache.put(1, query("q", "c"), entryOfSize(20));
+    cache.put(1, query("q", "d"), entryOfSize(20));
+    // Using `a` makes `b` the least recently used.
+    assertNotNull(cache.get(1, query("q", "a")));
+    cache.put(1, query("q", "e"), entryOfSize(25));
+    assertNull(cache.get(1, query("q", "b")));
+    assertNotNull(cache.get(1, query("q", "a")));
+    assertNotNull(cache.get(1, query("q", "e")));
+    assertEquals(1, cache.evictions());
+    assertEquals(85, cache.bytes());
+
+    // Replacing an entry only counts its new size.
+    cache.put(1, query("q", "a"), entryOfSize(10));
+    assertEquals(75, cache.bytes());
+  }
+
+  @Test
+  public void doesNotCacheHugeEntries() {
+    ResponseCache cache = new ResponseCache(100);
+    cache.put(1, query("q", "a"), entryOfSize(26));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void newerVersionsInvalidateOlderEntries() {
+    ResponseCache cache = new ResponseCache(1000);
+    cache.put(1, query("q", "a"), entryOfSize(10));
+    cache.put(2, query("q", "b"), entryOfSize(10));
+    assertNull(cache.get(1, query("q", "a")));
+    assertEquals(1, cache.size());
+    // Responses computed from older data are never cached.
+    cache.put(1, query("q", "a"), entryOfSize(10));
+    assertNull(cache.get(1, query("q", "a")));
+    cache.invalidate();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.bytes());
+  }
+
+  @Test
+  public void writesEntryWithNextLink() {
+    Context ctx = mock(Context.class);
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>(query("limit", "1")));
+    when(ctx.path()).thenReturn("/api/things");
+    ResponseCache.Entry entry = ResponseCache.Entry.of(Arrays.asList("a"), "CURSOR");
+    assertEquals("CURSOR", entry.nextCursor());
+    entry.writeTo(ctx);
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+    verify(ctx).result("[\"a\"]".getBytes(StandardCharsets.UTF_8));
+    verify(ctx).header(Header.LINK, "</api/things?limit=1&after=CURSOR>; rel=\"next\"");
+  }
+
+  @Test
+  public void writesGzippedEntriesToClientsThatAcceptGzip() throws IOException {
+    ResponseCache.Entry entry = ResponseCache.Entry.of("x".repeat(Compression.MIN_COMPRESSED_BYTES), null);
+    assertTrue(entry.isCompressed());
+    byte[] json = ("\"" + "x".repeat(Compression.MIN_COMPRESSED_BYTES) + "\"").getBytes(StandardCharsets.UTF_8);
+    assertTrue(entry.size() > json.length);
+
+    Context gzipCtx = mock(Context.class);
+    when(gzipCtx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip, deflate");
+    entry.writeTo(gzipCtx);
+    verify(gzipCtx).header(Header.CONTENT_ENCODING, Compression.GZIP);
+    verify(gzipCtx).header(Header.VARY, Header.ACCEPT_ENCODING);
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(gzipCtx).result(bodyCaptor.capture());
+    try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bodyCaptor.getValue()))) {
+      assertArrayEquals(json, in.readAllBytes());
+    }
+
+    Context plainCtx = mock(Context.class);
+    entry.writeTo(plainCtx);
+    verify(plainCtx, never()).header(Header.CONTENT_ENCODING, Compression.GZIP);
+    verify(plainCtx).result(json);
+  }
+
+  @Test
+  public void doesNotCompressSmallEntries() {
+    ResponseCache.Entry entry = ResponseCache.Entry.of("x".repeat(10), null);
+    assertFalse(entry.isCompressed());
+    Context ctx = mock(Context.class);
+    when(ctx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip");
+    entry.writeTo(ctx);
+    verify(ctx, never()).header(Header.CONTENT_ENCODING, Compression.GZIP);
+    verify(ctx).result("\"xxxxxxxxxx\"".getBytes(StandardCharsets.UTF_8));
+  }
+}
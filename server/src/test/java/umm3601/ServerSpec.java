@@ -0,0 +1,21 @@
+package umm3601;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of configuring the `Server`.
+ */
+public class ServerSpec {
+  @Test
+  public void parsesThreadModesIgnoringCase() {
+    assertEquals(Server.ThreadMode.PLATFORM, Server.ThreadMode.parse("platform"));
+    assertEquals(Server.ThreadMode.VIRTUAL, Server.ThreadMode.parse("Virtual"));
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+      () -> Server.ThreadMode.parse("virtaul"));
+    assertTrue(e.getMessage().contains("[virtual, platform]"), e.getMessage());
+  }
+}
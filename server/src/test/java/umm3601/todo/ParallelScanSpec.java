@@ -0,0 +1,67 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that `ParallelScan` finds the same positions, in the same order,
+ * whether or not it splits a scan.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class ParallelScanSpec {
+  private static final IntPredicate MULTIPLE_OF_THREE = position -> position % 3 == 0;
+
+  @Test
+  public void splitScansMatchSequentialScans() {
+    // Descending, and not a whole number of segments, so the segments
+    // have to be joined back in the right order.
+    int[] positions = IntStream.range(0, 1000).map(i -> 2000 - 2 * i).toArray();
+    int[] expected = IntStream.of(positions).filter(MULTIPLE_OF_THREE).toArray();
+    ParallelScan scan = new ParallelScan(4, 100, 7);
+    assertTrue(scan.splits(positions.length));
+    assertArrayEquals(expected, scan.filter(positions, MULTIPLE_OF_THREE));
+    assertArrayEquals(expected, new ParallelScan(1, 100, 7).filter(positions, MULTIPLE_OF_THREE));
+  }
+
+  @Test
+  public void splitScansRunOnThePool() {
+    Set<String> threadNames = ConcurrentHashMap.newKeySet();
+    int[] positions = IntStream.range(0, 1000).toArray();
+    new ParallelScan(2, 0, 10).filter(positions, position -> threadNames.add(Thread.currentThread().getName()));
+    assertFalse(threadNames.isEmpty());
+    assertTrue(threadNames.stream().allMatch(name -> name.startsWith("todo-scan-")), threadNames.toString());
+  }
+
+  @Test
+  public void smallScansAreNotSplit() {
+    ParallelScan scan = new ParallelScan(4, 100, 7);
+    assertFalse(scan.splits(99));
+    assertFalse(new ParallelScan(1, 0, 7).splits(1000));
+    // A scan of one segment isn't worth splitting either.
+    assertFalse(new ParallelScan(4, 0, 1000).splits(1000));
+
+    String caller = Thread.currentThread().getName();
+    int[] positions = IntStream.range(0, 99).toArray();
+    assertEquals(33, scan.filter(positions, position -> {
+      assertEquals(caller, Thread.currentThread().getName());
+      return MULTIPLE_OF_THREE.test(position);
+    }).length);
+    assertEquals(0, scan.filter(new int[0], MULTIPLE_OF_THREE).length);
+  }
+
+  @Test
+  public void needsAThreadAndASegment() {
+    assertThrows(IllegalArgumentException.class, () -> new ParallelScan(0, 100, 7));
+    assertThrows(IllegalArgumentException.class, () -> new ParallelScan(2, 100, 0));
+  }
+}
@@ -7,7 +7,12 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -16,18 +21,33 @@ import java.util.Map;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import io.javalin.json.JavalinJackson;
+import io.javalin.validation.BodyValidator;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import umm3601.ETags;
+import umm3601.JsonStreams;
 import umm3601.Main;
+import umm3601.Metrics;
+import umm3601.ResponseCache;
+import umm3601.user.UserDatabase;
 
 /**
  * Tests the logic of the TodoController
@@ -37,6 +57,9 @@ import umm3601.Main;
 
 @SuppressWarnings({"MagicNumber"})
 public class TodoControllerSpec {
+  @TempDir
+  private Path tempDir;
+
   private TodoController todoController;
   private static TodoDatabase db;
 
@@ -72,6 +95,10 @@ public class TodoControllerSpec {
     // on the server at least twice. We use `any()` to say we don't care about
     // the arguments that were passed to `.get()`.
     verify(mockServer, Mockito.atLeast(2)).get(any(), any());
+    verify(mockServer, Mockito.times(2)).post(any(), any());
+    verify(mockServer).put(any(), any());
+    verify(mockServer).patch(any(), any());
+    verify(mockServer).delete(any(), any());
   }
 
   @Test
@@ -81,6 +108,14 @@ public class TodoControllerSpec {
     });
   }
 
+  @Test
+  public void buildControllerFailsWithDuplicateIds() {
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      TodoController.buildTodoController("/duplicate-todos.json");
+    });
+    assertEquals("Duplicate todo id 58895985a22c04e761776d54 in /duplicate-todos.json", exception.getMessage());
+  }
+
    /**
    * Confirm that we can get all the todos
    *
@@ -357,5 +392,558 @@ public class TodoControllerSpec {
     }
   }
 
+  /**
+   * Confirm that filtering on an owner that doesn't appear in the
+   * "database" gives back an empty list rather than an error.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void canGetNoTodosForUnknownOwner() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Nobody"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).json(todoArrayCaptor.capture());
+    assertEquals(0, todoArrayCaptor.getValue().length);
+  }
+
+  /**
+   * Confirm that the owner, category and status filters return the
+   * same todos (in the same order) as checking every todo by hand.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void indexedFiltersMatchFullScan() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Blanche"}));
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    queryParams.put("status", Arrays.asList(new String[] {"incomplete"}));
+
+    Todo[] expected = Arrays.stream(db.listTodos(new HashMap<>()))
+      .filter(todo -> todo.owner.equals("Blanche") && todo.category.equals("homework") && !todo.status)
+      .toArray(Todo[]::new);
+    Todo[] actual = db.listTodos(queryParams);
+
+    assertTrue(expected.length > 0);
+    Assertions.assertArrayEquals(expected, actual);
+  }
+
+  /**
+   * A `ServletOutputStream` that just collects what's written to it,
+   * for checking streamed responses.
+   */
+  private static ServletOutputStream collectingOutputStream(ByteArrayOutputStream out) {
+    return new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    };
+  }
+
+  /**
+   * Confirm that once a list is larger than the streaming threshold it is
+   * written straight to the response output stream, and that what's
+   * written is the same list of todos `ctx.json` would have been given.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void canStreamLargeListsOfTodos() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(out));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    new TodoController(db, 10).getTodos(ctx);
+
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+    verify(ctx, Mockito.never()).json(any());
+    Todo[] streamed = new ObjectMapper().readValue(out.toByteArray(), Todo[].class);
+    Todo[] expected = db.listTodos(queryParams);
+    assertEquals(expected.length, streamed.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i]._id, streamed[i]._id);
+      assertEquals(expected[i].body, streamed[i].body);
+    }
+  }
+
+  /**
+   * Confirm that a list cut short by `limit` comes with a `Link` header
+   * pointing at the next page, keeping the other query parameters.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void addsNextLinkToLimitedLists() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"20"}));
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.path()).thenReturn("/api/todos");
+
+    todoController.getTodos(ctx);
+
+    ArgumentCaptor<String> linkCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.LINK), linkCaptor.capture());
+    String link = linkCaptor.getValue();
+    assertTrue(link.startsWith("</api/todos?"));
+    assertTrue(link.endsWith(">; rel=\"next\""));
+    assertTrue(link.contains("owner=Fry"));
+    assertTrue(link.contains("limit=20"));
+    assertTrue(link.contains("&after="));
+  }
+
+  /**
+   * Confirm that repeating a query is answered from the response cache,
+   * without running the query or serializing anything again.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void answersRepeatedQueriesFromCache() throws IOException {
+    TodoDatabase spiedDb = Mockito.spy(db);
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    TodoController controller = new TodoController(spiedDb, TodoController.STREAMING_THRESHOLD, cache);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"5"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.path()).thenReturn("/api/todos");
+
+    controller.getTodos(ctx);
+    controller.getTodos(ctx);
+
+    verify(spiedDb, Mockito.times(1)).queryTodos(any());
+    verify(ctx, Mockito.never()).json(any());
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    Todo[] todos = new ObjectMapper().readValue(bodyCaptor.getValue(), Todo[].class);
+    assertEquals(Arrays.asList(db.listTodos(queryParams)), Arrays.asList(todos));
+    verify(ctx, Mockito.times(2)).header(Mockito.eq(Header.LINK), any(String.class));
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  @Test
+  public void doesNotCacheStreamedLists() throws IOException {
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(new ByteArrayOutputStream()));
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+
+    new TodoController(db, 10, cache).getTodos(ctx);
+
+    assertEquals(0, cache.size());
+  }
+
+  /**
+   * Confirm that a client which already has the current list gets a 304
+   * Not Modified, without the query being run.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void answersConditionalListRequestsWithNotModified() throws IOException {
+    TodoDatabase spiedDb = Mockito.spy(db);
+    TodoController controller = new TodoController(spiedDb);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    controller.getTodos(ctx);
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etagCaptor.getValue());
+    controller.getTodos(ctx);
+
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(spiedDb, Mockito.times(1)).queryTodos(any());
+    verify(ctx, Mockito.times(1)).json(any());
+  }
+
+  @Test
+  public void answersConditionalTodoRequestsWithNotModified() throws IOException {
+    String id = "58895985c1849992336c219b";
+    Todo todo = db.getTodo(id);
+    String etag = ETags.forContent(todo._id, todo.owner, Boolean.toString(todo.status), todo.body, todo.category);
+    when(ctx.pathParam("id")).thenReturn(id);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+
+    todoController.getTodo(ctx);
+
+    verify(ctx).header(Header.ETAG, etag);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, Mockito.never()).json(any());
+  }
+
+  private void givenBody(String json) {
+    when(ctx.body()).thenReturn(json);
+    when(ctx.bodyValidator(Todo.class)).thenReturn(new BodyValidator<>(json, Todo.class, new JavalinJackson()));
+  }
+
+  private Todo respondedTodo() {
+    ArgumentCaptor<Todo> todoCaptor = ArgumentCaptor.forClass(Todo.class);
+    verify(ctx).json(todoCaptor.capture());
+    return todoCaptor.getValue();
+  }
+
+  @Test
+  public void canAddTodo() {
+    givenBody("{\"owner\":\"Leela\",\"status\":true,\"body\":\"Fly the ship\",\"category\":\"work\"}");
+
+    todoController.addNewTodo(ctx);
+
+    verify(ctx).status(HttpStatus.CREATED);
+    Todo added = respondedTodo();
+    assertEquals("Leela", added.owner);
+    assertTrue(added.status);
+    assertEquals(added, db.getTodo(added._id));
+  }
+
+  @Test
+  public void rejectsInvalidNewTodos() {
+    int size = db.size();
+    for (String json : new String[] {
+      "{\"status\":true,\"body\":\"b\",\"category\":\"c\"}",
+      "{\"owner\":\" \",\"body\":\"b\",\"category\":\"c\"}",
+      "{\"owner\":\"o\",\"body\":\"b\"}",
+      "{\"owner\":\"o\",\"category\":\"\"}",
+      "{\"owner\":\"o\",\"category\":\"c\"}"
+    }) {
+      givenBody(json);
+      Assertions.assertThrows(BadRequestResponse.class, () -> todoController.addNewTodo(ctx), json);
+    }
+    assertEquals(size, db.size());
+  }
+
+  @Test
+  public void canReplaceTodo() {
+    String id = "58895985c1849992336c219b";
+    when(ctx.pathParam("id")).thenReturn(id);
+    givenBody("{\"owner\":\"Leela\",\"body\":\"Fly the ship\",\"category\":\"work\"}");
+
+    todoController.replaceTodo(ctx);
 
+    verify(ctx).status(HttpStatus.OK);
+    Todo replaced = respondedTodo();
+    assertEquals(id, replaced._id);
+    assertEquals(replaced, db.getTodo(id));
+    assertFalse(replaced.status);
+  }
+
+  @Test
+  public void rejectsBadReplacements() {
+    when(ctx.pathParam("id")).thenReturn("58895985c1849992336c219b");
+    givenBody("{\"_id\":\"other\",\"owner\":\"Leela\",\"body\":\"b\",\"category\":\"work\"}");
+    Assertions.assertThrows(BadRequestResponse.class, () -> todoController.replaceTodo(ctx));
+
+    when(ctx.pathParam("id")).thenReturn("no such id");
+    givenBody("{\"owner\":\"Leela\",\"body\":\"b\",\"category\":\"work\"}");
+    Assertions.assertThrows(NotFoundResponse.class, () -> todoController.replaceTodo(ctx));
+  }
+
+  @Test
+  public void canPatchTodo() {
+    String id = "58895985c1849992336c219b";
+    Todo before = db.getTodo(id);
+    when(ctx.pathParam("id")).thenReturn(id);
+    givenBody("{\"_id\":\"" + id + "\",\"status\":" + !before.status + "}");
+
+    todoController.updateTodo(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    Todo patched = respondedTodo();
+    assertEquals(!before.status, patched.status);
+    assertEquals(before.body, patched.body);
+    assertEquals(patched, db.getTodo(id));
+  }
+
+  @Test
+  public void rejectsBadPatches() {
+    String id = "58895985c1849992336c219b";
+    Todo before = db.getTodo(id);
+    when(ctx.pathParam("id")).thenReturn(id);
+    for (String json : new String[] {"not json", "[1]", "", "{\"_id\":\"other\"}", "{\"colour\":\"red\"}",
+        "{\"status\":\"maybe\"}", "{\"owner\":\"\"}"}) {
+      givenBody(json);
+      Assertions.assertThrows(BadRequestResponse.class, () -> todoController.updateTodo(ctx), json);
+    }
+    assertEquals(before, db.getTodo(id));
+
+    when(ctx.pathParam("id")).thenReturn("no such id");
+    givenBody("{\"status\":true}");
+    Assertions.assertThrows(NotFoundResponse.class, () -> todoController.updateTodo(ctx));
+  }
+
+  @Test
+  public void canDeleteTodo() {
+    String id = "58895985c1849992336c219b";
+    when(ctx.pathParam("id")).thenReturn(id);
+
+    todoController.deleteTodo(ctx);
+
+    verify(ctx).status(HttpStatus.NO_CONTENT);
+    Assertions.assertNull(db.getTodo(id));
+    Assertions.assertThrows(NotFoundResponse.class, () -> todoController.deleteTodo(ctx));
+  }
+
+  @Test
+  public void writesInvalidateCachedResponses() throws IOException {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    TodoController controller = new TodoController(db, TodoController.STREAMING_THRESHOLD, cache);
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    controller.getTodos(ctx);
+    assertEquals(1, cache.size());
+    when(ctx.pathParam("id")).thenReturn("58895985c1849992336c219b");
+
+    controller.deleteTodo(ctx);
+
+    assertEquals(0, cache.size());
+  }
+
+  private void givenNdjsonBody(String ndjson) {
+    when(ctx.bodyInputStream()).thenReturn(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> importReport() {
+    ArgumentCaptor<Map<String, Object>> reportCaptor = ArgumentCaptor.forClass(Map.class);
+    verify(ctx).json(reportCaptor.capture());
+    return reportCaptor.getValue();
+  }
+
+  @Test
+  public void canImportTodosInBatches() throws IOException {
+    int size = db.size();
+    String id = "58895985c1849992336c219b";
+    StringBuilder ndjson = new StringBuilder();
+    for (int i = 0; i < TodoController.IMPORT_BATCH_SIZE + 1; i++) {
+      ndjson.append("{\"owner\":\"Importer\",\"status\":false,\"body\":\"todo ").append(i)
+        .append("\",\"category\":\"bulk\"}\n");
+    }
+    // Blank lines are fine, and todos with an `_id` replace that todo.
+    ndjson.append("\n{\"_id\":\"" + id + "\",\"owner\":\"Importer\",\"body\":\"replaced\",\"category\":\"bulk\"}");
+    givenNdjsonBody(ndjson.toString());
+
+    todoController.importTodos(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    Map<String, Object> report = importReport();
+    assertEquals(TodoController.IMPORT_BATCH_SIZE + 2, report.get("imported"));
+    assertEquals(TodoController.IMPORT_BATCH_SIZE + 1, report.get("added"));
+    assertEquals(1, report.get("replaced"));
+    assertTrue(report.containsKey("recordsPerSecond"));
+    assertEquals(size + TodoController.IMPORT_BATCH_SIZE + 1, db.size());
+    assertEquals("replaced", db.getTodo(id).body);
+  }
+
+  @Test
+  public void importStopsAtTheFirstInvalidTodo() {
+    int size = db.size();
+    for (String invalid : new String[] {"{\"owner\":\"o\"}", "{\"colour\":\"red\"}", "not json", "null", "[1]"}) {
+      givenNdjsonBody("{\"owner\":\"o\",\"body\":\"b\",\"category\":\"c\"}\n" + invalid
+        + "\n{\"owner\":\"o\",\"body\":\"after\",\"category\":\"c\"}");
+      BadRequestResponse e = Assertions.assertThrows(BadRequestResponse.class, () -> todoController.importTodos(ctx),
+        invalid);
+      assertTrue(e.getMessage().startsWith("Todo 2 in the request is not valid"), e.getMessage());
+    }
+    // Just the todo before each invalid one was imported.
+    assertEquals(size + 5, db.size());
+  }
+
+  @Test
+  public void canExportTodos() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(out));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.exportTodos(ctx);
+
+    Todo[] expected = db.listTodos(queryParams);
+    verify(ctx).contentType(JsonStreams.NDJSON);
+    verify(ctx).header("X-Record-Count", Integer.toString(expected.length));
+    String ndjson = out.toString(StandardCharsets.UTF_8);
+    assertTrue(ndjson.endsWith("}\n"));
+    String[] lines = ndjson.split("\n");
+    assertEquals(expected.length, lines.length);
+    ObjectMapper mapper = new ObjectMapper();
+    for (int i = 0; i < expected.length; i++) {
+      // Each line is exactly one object, with nothing around it.
+      assertTrue(lines[i].startsWith("{") && lines[i].endsWith("}"), lines[i]);
+      assertEquals(expected[i], mapper.readValue(lines[i], Todo.class));
+    }
+  }
+
+  @Test
+  public void exportedTodosCanBeImportedAgain() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(out));
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+    todoController.exportTodos(ctx);
+    Todo[] before = db.listTodos(new HashMap<>());
+
+    givenNdjsonBody(out.toString(StandardCharsets.UTF_8));
+    todoController.importTodos(ctx);
+
+    assertEquals(before.length, importReport().get("replaced"));
+    Assertions.assertArrayEquals(before, db.listTodos(new HashMap<>()));
+  }
+
+  @Test
+  public void canGetTodoStats() {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("groupBy", Arrays.asList(new String[] {"owner"}));
+    queryParams.put("category", Arrays.asList(new String[] {"homework"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodoStats(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    ArgumentCaptor<TodoStats> statsCaptor = ArgumentCaptor.forClass(TodoStats.class);
+    verify(ctx).json(statsCaptor.capture());
+    TodoStats stats = statsCaptor.getValue();
+    assertEquals("owner", stats.groupBy);
+    assertEquals(db.listTodos(Map.of("category", List.of("homework"))).length, stats.count);
+    assertEquals(stats.count, stats.groups.stream().mapToInt(group -> group.count).sum());
+  }
+
+  @Test
+  public void addsMetricsForQueries() {
+    Metrics metrics = new Metrics();
+    todoController.addMetrics(metrics);
+    db.listTodos(Map.of("status", List.of("complete")));
+
+    String scrape = metrics.scrape();
+    assertTrue(scrape.contains("rows_scanned_total{collection=\"todos\"} " + db.size() + "\n"));
+    assertTrue(scrape.contains("rows_returned_total{collection=\"todos\"} " + db.rowsReturned() + "\n"));
+    // This controller has no response cache.
+    assertFalse(scrape.contains("response_cache"));
+  }
+
+  @Test
+  public void canExplainQueries() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("owner", Arrays.asList(new String[] {"Fry"}));
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    queryParams.put("explain", Arrays.asList(new String[] {"true"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    todoController.getTodos(ctx);
+
+    verify(ctx).status(HttpStatus.OK);
+    ArgumentCaptor<TodoQueryPlan> planCaptor = ArgumentCaptor.forClass(TodoQueryPlan.class);
+    verify(ctx).json(planCaptor.capture());
+    TodoQueryPlan plan = planCaptor.getValue();
+    assertEquals("index", plan.filters.get(0).access);
+    assertEquals(db.listTodos(Map.of("owner", List.of("Fry"), "status", List.of("complete"))).length, plan.rows);
+  }
+
+  /**
+   * A database of users for joining todos to: two of the todos' owners,
+   * and someone who doesn't own any todos.
+   */
+  private UserDatabase ownersDatabase() throws IOException {
+    Path usersFile = tempDir.resolve("users.json");
+    Files.writeString(usersFile, """
+      [{"_id": "fry", "name": "Fry", "age": 30, "company": "PLANET", "email": "fry@planet.com"},
+       {"_id": "blanche", "name": "Blanche", "age": 40, "company": "OHMNET", "email": "blanche@ohmnet.com"},
+       {"_id": "nobody", "name": "Nobody", "age": 50, "company": "OHMNET", "email": "nobody@ohmnet.com"}]
+      """);
+    return new UserDatabase(usersFile.toString());
+  }
+
+  @Test
+  public void canExpandOwners() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(out));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("expand", Arrays.asList(new String[] {"owner"}));
+    queryParams.put("orderBy", Arrays.asList(new String[] {"owner"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    todoController.setUserDatabase(ownersDatabase());
+
+    todoController.getTodos(ctx);
+
+    // Every todo is streamed, with its owner when there's a user with
+    // that name.
+    verify(ctx, Mockito.never()).json(any());
+    JsonNode streamed = new ObjectMapper().readTree(out.toByteArray());
+    Todo[] expected = db.listTodos(queryParams);
+    assertEquals(expected.length, streamed.size());
+    for (int i = 0; i < expected.length; i++) {
+      JsonNode todo = streamed.get(i);
+      assertEquals(expected[i]._id, todo.get("_id").asText());
+      assertEquals(expected[i].owner, todo.get("owner").asText());
+      if (expected[i].owner.equals("Fry") || expected[i].owner.equals("Blanche")) {
+        assertEquals(expected[i].owner, todo.get("ownerUser").get("name").asText());
+      } else {
+        assertTrue(todo.get("ownerUser").isNull());
+      }
+    }
+  }
+
+  @Test
+  public void canListAUsersTodos() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(out));
+    when(ctx.pathParam("id")).thenReturn("blanche");
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("status", Arrays.asList(new String[] {"complete"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    todoController.setUserDatabase(ownersDatabase());
+
+    todoController.getUserTodos(ctx);
+
+    JsonNode streamed = new ObjectMapper().readTree(out.toByteArray());
+    Todo[] expected = db.listTodos(Map.of("owner", List.of("Blanche"), "status", List.of("complete")));
+    assertEquals(expected.length, streamed.size());
+    for (JsonNode todo : streamed) {
+      assertEquals("Blanche", todo.get("owner").asText());
+      assertTrue(todo.get("status").asBoolean());
+      assertEquals("blanche", todo.get("ownerUser").get("_id").asText());
+    }
+  }
+
+  @Test
+  public void respondsAppropriatelyToBadJoins() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("expand", Arrays.asList(new String[] {"owner"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    // Without any users, owners can't be expanded.
+    Assertions.assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+
+    todoController.setUserDatabase(ownersDatabase());
+    queryParams.put("expand", Arrays.asList(new String[] {"category"}));
+    Assertions.assertThrows(BadRequestResponse.class, () -> todoController.getTodos(ctx));
+    when(ctx.pathParam("id")).thenReturn("588935f57546a2daea44de7c");
+    Assertions.assertThrows(NotFoundResponse.class, () -> todoController.getUserTodos(ctx));
+  }
+
+  @Test
+  public void addsUserTodosRouteWithUsers() throws IOException {
+    Javalin mockServer = Mockito.mock(Javalin.class);
+    todoController.addRoutes(mockServer);
+    verify(mockServer, Mockito.never()).get(Mockito.eq("/api/users/{id}/todos"), any());
+
+    todoController.setUserDatabase(ownersDatabase());
+    todoController.addRoutes(mockServer);
+    verify(mockServer).get(Mockito.eq("/api/users/{id}/todos"), any());
+  }
 }
@@ -0,0 +1,667 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.Cursor;
+import umm3601.Main;
+
+/**
+ * Tests of the `TodoDatabase` that don't need a controller, mostly
+ * checking that its results match a simple (scan and sort) "oracle"
+ * implementation working on its own copy of the data.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoDatabaseSpec {
+  private static final String[] ORDERS = {"owner", "category", "body", "status"};
+  private static final String[] WORDS = {"sit", "Lorem", "magna", "esse", "zzz"};
+  private static final String[] OWNERS = {"Blanche", "Fry", "Barry", "Nobody"};
+
+  @TempDir
+  private Path tempDir;
+
+  private TodoDatabase db;
+  // The todos as read straight from the data file, used by the oracle.
+  private Todo[] oracleTodos;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    db = new TodoDatabase(Main.TODO_DATA_FILE);
+    InputStreamReader reader = new InputStreamReader(getClass().getResourceAsStream(Main.TODO_DATA_FILE));
+    oracleTodos = new ObjectMapper().readValue(reader, Todo[].class);
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], Arrays.asList(keysAndValues[i + 1]));
+    }
+    return queryParams;
+  }
+
+  private static String[] ids(Todo[] todos) {
+    return Arrays.stream(todos).map(todo -> todo._id).toArray(String[]::new);
+  }
+
+  /**
+   * The expected result of an `owner`, `orderBy` and/or `contains` query,
+   * computed serially by filtering and sorting a copy of the data (breaking
+   * ties in the sort by `_id`).
+   */
+  private String[] oracle(String owner, String orderBy, String contains) {
+    Todo[] expected = Arrays.stream(oracleTodos)
+      .filter(todo -> owner == null || todo.owner.equals(owner))
+      .filter(todo -> contains == null || todo.body.contains(contains))
+      .toArray(Todo[]::new);
+    if (orderBy != null) {
+      Comparator<Todo> order = switch (orderBy) {
+        case "owner" -> Comparator.comparing(todo -> todo.owner);
+        case "category" -> Comparator.comparing(todo -> todo.category);
+        case "body" -> Comparator.comparing(todo -> todo.body);
+        default -> Comparator.comparing(todo -> todo.status);
+      };
+      Arrays.sort(expected, order.thenComparing(todo -> todo._id));
+    }
+    return ids(expected);
+  }
+
+  @Test
+  public void columnsRebuildEveryTodoExactly() {
+    assertArrayEquals(oracleTodos, db.listTodos(new HashMap<>()));
+    for (Todo todo : oracleTodos) {
+      assertEquals(todo, db.getTodo(todo._id));
+      assertEquals(todo.hashCode(), db.getTodo(todo._id).hashCode());
+    }
+    assertTrue(!oracleTodos[0].equals(oracleTodos[1]));
+    assertTrue(!oracleTodos[0].equals(null));
+  }
+
+  @Test
+  public void orderByDoesNotReorderTheStore() {
+    String[] before = ids(db.listTodos(new HashMap<>()));
+    db.listTodos(query("orderBy", "body"));
+    db.listTodos(query("contains", "sit"));
+    assertArrayEquals(before, ids(db.listTodos(new HashMap<>())));
+    assertArrayEquals(ids(oracleTodos), before);
+  }
+
+  /**
+   * Ordering uses the precomputed sort orders, both for a small selection
+   * (sorting ranks) and for a large one (walking the sort order), and the
+   * limit is applied after ordering.
+   */
+  @Test
+  public void orderedAndLimitedResultsMatchOracle() {
+    assertArrayEquals(oracle(null, "status", null), ids(db.listTodos(query("orderBy", "status"))));
+    assertArrayEquals(oracle(null, "owner", "sit"), ids(db.listTodos(query("orderBy", "owner", "contains", "sit"))));
+    assertArrayEquals(oracle("Fry", "body", "Lorem"),
+      ids(db.listTodos(query("orderBy", "body", "contains", "Lorem", "owner", "Fry"))));
+    assertArrayEquals(Arrays.copyOf(oracle(null, "category", "esse"), 5),
+      ids(db.listTodos(query("orderBy", "category", "contains", "esse", "limit", "5"))));
+    // An unknown `orderBy` leaves the todos in their original order.
+    assertArrayEquals(oracle(null, null, "sit"), ids(db.listTodos(query("orderBy", "nonsense", "contains", "sit"))));
+  }
+
+  /**
+   * The trigram index should find exactly the todos a full scan would,
+   * including for queries too short to have any trigrams, queries whose
+   * trigrams don't appear anywhere, and case-insensitive queries.
+   */
+  @Test
+  public void containsMatchesFullScan() {
+    for (String word : new String[] {"sit", "ex", "e", "Cillum non", "qui commodo", "xyzzy", "lorem"}) {
+      assertArrayEquals(oracle(null, null, word), ids(db.listTodos(query("contains", word))), word);
+    }
+    String[] expected = Arrays.stream(oracleTodos)
+      .filter(todo -> todo.body.toLowerCase().contains("lorem"))
+      .map(todo -> todo._id)
+      .toArray(String[]::new);
+    assertTrue(expected.length > oracle(null, null, "lorem").length);
+    assertArrayEquals(expected, ids(db.listTodos(query("contains", "lorem", "ignoreCase", "true"))));
+    assertArrayEquals(expected, ids(db.listTodos(query("contains", "LOREM", "ignoreCase", "true"))));
+    assertArrayEquals(new String[0], ids(db.listTodos(query("contains", "xyzzy", "ignoreCase", "true"))));
+  }
+
+  /**
+   * Page through the results of a query `limit` todos at a time using
+   * the `after` cursors, and collect all the pages together.
+   */
+  private String[] allPages(Map<String, List<String>> queryParams, int limit) {
+    List<String> ids = new ArrayList<>();
+    queryParams.put("limit", Arrays.asList(String.valueOf(limit)));
+    while (true) {
+      TodoQueryResult page = db.queryTodos(queryParams);
+      assertTrue(page.size() <= limit);
+      ids.addAll(Arrays.asList(ids(page.toArray())));
+      if (page.nextCursor() == null) {
+        return ids.toArray(new String[0]);
+      }
+      queryParams.put("after", Arrays.asList(page.nextCursor()));
+    }
+  }
+
+  /**
+   * Paging through a list with cursors should give exactly the same todos
+   * as asking for the whole list at once, whether it's ordered or not, and
+   * whether the selection is everything, large or small.
+   */
+  @Test
+  public void pagingWithCursorsMatchesOracle() {
+    assertArrayEquals(oracle(null, null, null), allPages(query(), 7));
+    assertArrayEquals(oracle(null, null, "sit"), allPages(query("contains", "sit"), 10));
+    assertArrayEquals(oracle(null, "owner", null), allPages(query("orderBy", "owner"), 25));
+    assertArrayEquals(oracle(null, "status", "sit"), allPages(query("orderBy", "status", "contains", "sit"), 9));
+    assertArrayEquals(oracle("Fry", "body", "Lorem"),
+      allPages(query("orderBy", "body", "contains", "Lorem", "owner", "Fry"), 2));
+    // A limit of zero gives an empty page, and no cursor.
+    TodoQueryResult empty = db.queryTodos(query("limit", "0"));
+    assertEquals(0, empty.size());
+    assertEquals(null, empty.nextCursor());
+  }
+
+  @Test
+  public void rejectsBadCursors() {
+    String ownerCursor = db.queryTodos(query("orderBy", "owner", "limit", "5")).nextCursor();
+    assertThrows(BadRequestResponse.class, () -> db.listTodos(query("orderBy", "body", "after", ownerCursor)));
+    assertThrows(BadRequestResponse.class, () -> db.listTodos(query("after", "not a cursor")));
+    assertThrows(BadRequestResponse.class, () -> db.listTodos(query("after", Cursor.encode("only one part"))));
+    assertThrows(BadRequestResponse.class, () -> db.listTodos(query("after", Cursor.encode("", "", "no such id"))));
+  }
+
+  @Test
+  public void rejectsBlankContains() {
+    assertThrows(BadRequestResponse.class, () -> db.listTodos(query("contains", "   ")));
+  }
+
+  @Test
+  public void rejectsNegativeLimit() {
+    assertThrows(BadRequestResponse.class, () -> db.listTodos(query("limit", "-1")));
+  }
+
+  /**
+   * Hammer the database with a random mix of `orderBy` and `contains`
+   * queries from several threads at once, and check every result against
+   * the serial oracle.
+   */
+  @Test
+  public void concurrentQueriesMatchSerialOracle() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < 400; t++) {
+        Random random = new Random(t);
+        futures.add(pool.submit(() -> {
+          for (int i = 0; i < 10; i++) {
+            String orderBy = random.nextBoolean() ? ORDERS[random.nextInt(ORDERS.length)] : null;
+            String contains = random.nextBoolean() ? WORDS[random.nextInt(WORDS.length)] : null;
+            String owner = random.nextBoolean() ? OWNERS[random.nextInt(OWNERS.length)] : null;
+            Map<String, List<String>> queryParams = new HashMap<>();
+            if (owner != null) {
+              queryParams.put("owner", Arrays.asList(owner));
+            }
+            if (orderBy != null) {
+              queryParams.put("orderBy", Arrays.asList(orderBy));
+            }
+            if (contains != null) {
+              queryParams.put("contains", Arrays.asList(contains));
+            }
+            assertArrayEquals(oracle(owner, orderBy, contains), ids(db.listTodos(queryParams)));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(oracleTodos.length, db.size());
+  }
+
+  private static Todo todo(String owner, boolean status, String body, String category) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.status = status;
+    todo.body = body;
+    todo.category = category;
+    return todo;
+  }
+
+  /**
+   * Make a few writes, keeping the oracle's copy of the data up to date,
+   * and check that every index agrees with the oracle afterwards.
+   */
+  @Test
+  public void writesKeepEveryIndexConsistent() {
+    long version = db.version();
+    Todo added = db.addTodo(todo("Fry", true, "Zoidberg sit", "software design"));
+    assertEquals(24, added._id.length());
+    assertEquals(added, db.getTodo(added._id));
+    assertTrue(db.version() > version);
+
+    String updatedId = oracleTodos[3]._id;
+    Todo updated = db.updateTodo(updatedId, todo -> {
+      todo.owner = "Nobody";
+      todo.body = "magna magna";
+      return todo;
+    });
+    assertEquals("Nobody", updated.owner);
+    assertEquals(oracleTodos[3].category, updated.category);
+    String deletedId = oracleTodos[5]._id;
+    assertTrue(db.deleteTodo(deletedId));
+    assertNull(db.getTodo(deletedId));
+
+    List<Todo> expected = new ArrayList<>(Arrays.asList(oracleTodos));
+    expected.set(3, updated);
+    expected.remove(5);
+    expected.add(added);
+    oracleTodos = expected.toArray(new Todo[0]);
+    assertArrayEquals(oracleTodos, db.listTodos(new HashMap<>()));
+    for (String owner : OWNERS) {
+      for (String order : ORDERS) {
+        assertArrayEquals(oracle(owner, order, null), ids(db.listTodos(query("owner", owner, "orderBy", order))));
+      }
+      for (String word : WORDS) {
+        assertArrayEquals(oracle(owner, null, word), ids(db.listTodos(query("owner", owner, "contains", word))));
+      }
+    }
+    assertArrayEquals(oracle(null, "body", "Zoidberg"), ids(db.listTodos(query("contains", "Zoidberg"))));
+    assertEquals(oracleTodos.length, db.size());
+  }
+
+  @Test
+  public void queriesKeepTheStoreTheyStartedWith() {
+    TodoQueryResult before = db.queryTodos(query("owner", "Fry"));
+    Todo first = before.iterator().next();
+    db.deleteTodo(first._id);
+    db.addTodo(todo("Fry", false, "new", "groceries"));
+    assertArrayEquals(oracle("Fry", null, null), ids(before.toArray()));
+  }
+
+  @Test
+  public void missingTodosAreNotWritten() {
+    long version = db.version();
+    assertNull(db.updateTodo("no such id", todo -> todo));
+    assertFalse(db.deleteTodo("no such id"));
+    assertEquals(version, db.version());
+  }
+
+  /**
+   * Check the stats for a query, grouped every way, against counting the
+   * todos the same query lists.
+   */
+  private void assertStatsMatchCounting(String... filter) {
+    Todo[] todos = db.listTodos(query(filter));
+    for (String groupBy : new String[] {null, "owner", "category", "status"}) {
+      Map<String, int[]> expected = new TreeMap<>();
+      for (Todo todo : todos) {
+        String key = groupBy == null ? "" : switch (groupBy) {
+          case "owner" -> todo.owner;
+          case "category" -> todo.category;
+          default -> todo.status ? "complete" : "incomplete";
+        };
+        int[] counts = expected.computeIfAbsent(key, k -> new int[2]);
+        counts[0]++;
+        counts[1] += todo.status ? 1 : 0;
+      }
+      Map<String, List<String>> queryParams = query(filter);
+      if (groupBy != null) {
+        queryParams.put("groupBy", List.of(groupBy));
+      }
+      TodoStats stats = db.todoStats(queryParams);
+      assertEquals(todos.length, stats.count);
+      assertEquals(Arrays.stream(todos).filter(todo -> todo.status).count(), stats.complete);
+      if (groupBy == null) {
+        assertTrue(stats.groups.isEmpty());
+        continue;
+      }
+      assertArrayEquals(expected.keySet().toArray(), stats.groups.stream().map(g -> g.key).toArray());
+      for (TodoStats.Group group : stats.groups) {
+        assertEquals(expected.get(group.key)[0], group.count, group.key);
+        assertEquals(expected.get(group.key)[1], group.complete, group.key);
+        assertEquals((double) group.complete / group.count, group.completionRate, 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void statsMatchCountingTheTodos() {
+    assertStatsMatchCounting();
+    assertStatsMatchCounting("owner", "Blanche");
+    assertStatsMatchCounting("category", "homework", "status", "complete");
+    assertStatsMatchCounting("contains", "sit");
+    assertStatsMatchCounting("owner", "Nobody");
+
+    // The counts kept for the stats follow writes.
+    db.addTodo(todo("Blanche", true, "new", "new category"));
+    db.updateTodo(oracleTodos[0]._id, todo -> {
+      todo.status = !todo.status;
+      return todo;
+    });
+    db.deleteTodo(oracleTodos[1]._id);
+    assertStatsMatchCounting();
+  }
+
+  @Test
+  public void statsRejectUnknownGroups() {
+    assertThrows(BadRequestResponse.class, () -> db.todoStats(query("groupBy", "body")));
+  }
+
+  @Test
+  public void importsAddAndReplaceTodos() {
+    long version = db.version();
+    Todo replacement = todo("Importer", true, "replaced", "bulk");
+    replacement._id = oracleTodos[0]._id;
+    Todo withNewId = todo("Importer", false, "kept id", "bulk");
+    withNewId._id = "imported";
+    assertEquals(2, db.importTodos(List.of(todo("Importer", false, "added", "bulk"), replacement, withNewId)));
+    assertTrue(db.version() > version);
+    assertEquals(replacement, db.getTodo(oracleTodos[0]._id));
+    assertEquals(withNewId, db.getTodo("imported"));
+    assertEquals(oracleTodos.length + 2, db.size());
+  }
+
+  @Test
+  public void failedUpdatesChangeNothing() {
+    String id = oracleTodos[0]._id;
+    assertThrows(IllegalStateException.class, () -> db.updateTodo(id, todo -> {
+      todo.owner = "Changed";
+      throw new IllegalStateException("oops");
+    }));
+    assertThrows(IllegalArgumentException.class, () -> db.updateTodo(id, todo -> {
+      todo._id = "another id";
+      return todo;
+    }));
+    assertEquals(oracleTodos[0], db.getTodo(id));
+    assertNull(db.getTodo("another id"));
+  }
+
+  @Test
+  public void changesToAddedTodosStayInTheBatch() {
+    TodoChanges changes = new TodoChanges(new TodoStore(oracleTodos));
+    Todo added = changes.add(todo("Fry", false, "body", "groceries"));
+    added.body = "changed outside the batch";
+    assertEquals("body", changes.get(added._id).body);
+    Todo changed = changes.get(added._id);
+    changed.body = "changed";
+    changes.put(changed);
+    assertTrue(changes.remove(oracleTodos[0]._id));
+    assertFalse(changes.remove(oracleTodos[0]._id));
+    assertNull(changes.get(oracleTodos[0]._id));
+    TodoStore store = changes.apply();
+    assertEquals(oracleTodos.length, store.size());
+    assertEquals("changed", store.getTodo(added._id).body);
+    assertTrue(changes.remove(added._id));
+    assertEquals(oracleTodos.length - 1, changes.apply().size());
+  }
+
+  /**
+   * Apply random batches of changes, and check that each new store's
+   * indexes, which are updated from the previous store's, are exactly the
+   * ones a store built from scratch would have.
+   */
+  @Test
+  public void updatedIndexesMatchRebuiltOnes() {
+    Random random = new Random(3601);
+    TodoStore store = new TodoStore(oracleTodos);
+    for (int round = 0; round < 30; round++) {
+      TodoChanges changes = new TodoChanges(store);
+      int count = 1 + random.nextInt(5);
+      for (int i = 0; i < count; i++) {
+        Todo todo = store.todoAt(random.nextInt(store.size()));
+        switch (random.nextInt(3)) {
+          case 0 -> changes.remove(todo._id);
+          case 1 -> {
+            todo.owner = OWNERS[random.nextInt(OWNERS.length)];
+            todo.status = random.nextBoolean();
+            todo.body = WORDS[random.nextInt(WORDS.length)] + " " + todo.body.substring(random.nextInt(10));
+            changes.put(todo);
+          }
+          default -> changes.add(todo);
+        }
+      }
+      store = changes.apply();
+
+      Todo[] todos = new Todo[store.size()];
+      for (int i = 0; i < todos.length; i++) {
+        todos[i] = store.todoAt(i);
+      }
+      TodoStore rebuilt = new TodoStore(todos);
+      for (String order : ORDERS) {
+        assertArrayEquals(rebuilt.sortOrder(order), store.sortOrder(order), order);
+        assertArrayEquals(rebuilt.sortRanks(order), store.sortRanks(order), order);
+      }
+      Map<Long, int[]> postings = store.bodyIndex().postings();
+      assertEquals(rebuilt.bodyIndex().postings().keySet(), postings.keySet());
+      rebuilt.bodyIndex().postings().forEach((trigram, list) -> assertArrayEquals(list, postings.get(trigram)));
+    }
+  }
+
+  /**
+   * Add and change todos from several threads at once while other threads
+   * query, and check that every write is kept and that every query sees a
+   * consistent store.
+   */
+  @Test
+  public void concurrentWritesAreAllApplied() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<List<String>>> writers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        String owner = "Writer " + t;
+        writers.add(pool.submit(() -> {
+          List<String> ids = new ArrayList<>();
+          for (int i = 0; i < 25; i++) {
+            String id = db.addTodo(todo(owner, false, "body " + i, "writes"))._id;
+            db.updateTodo(id, todo -> {
+              todo.status = true;
+              return todo;
+            });
+            ids.add(id);
+          }
+          return ids;
+        }));
+      }
+      List<Future<?>> readers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        readers.add(pool.submit(() -> {
+          for (int i = 0; i < 50; i++) {
+            Todo[] written = db.listTodos(query("category", "writes", "orderBy", "owner"));
+            for (int j = 1; j < written.length; j++) {
+              assertEquals("writes", written[j].category);
+              assertTrue(written[j - 1].owner.compareTo(written[j].owner) <= 0);
+            }
+          }
+          return null;
+        }));
+      }
+      for (Future<?> reader : readers) {
+        reader.get();
+      }
+      for (Future<List<String>> writer : writers) {
+        for (String id : writer.get()) {
+          assertTrue(db.getTodo(id).status);
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+    assertEquals(oracleTodos.length + 100, db.size());
+    assertEquals(100, db.listTodos(query("category", "writes", "status", "complete")).length);
+  }
+
+  @Test
+  public void countsRowsScannedAndReturned() {
+    // Fry's todos are found through the index alone.
+    int owned = db.listTodos(query("owner", "Fry")).length;
+    assertEquals(0, db.rowsScanned());
+    assertEquals(owned, db.rowsReturned());
+    // Every todo's status is checked, but only a page is returned.
+    db.listTodos(query("status", "complete", "limit", "5"));
+    assertEquals(db.size(), db.rowsScanned());
+    assertEquals(owned + 5, db.rowsReturned());
+    // Only the statuses of Fry's todos are checked.
+    int ownedComplete = db.listTodos(query("owner", "Fry", "status", "complete")).length;
+    assertEquals(db.size() + owned, db.rowsScanned());
+    assertEquals(owned + 5 + ownedComplete, db.rowsReturned());
+  }
+
+  /**
+   * Todos in a data file can be missing any of their fields; they're
+   * stored as `null` and come back that way, sorting before any value.
+   */
+  @Test
+  public void loadsTodosWithMissingFields() throws IOException {
+    Path dataFile = tempDir.resolve("todos.json");
+    Files.writeString(dataFile, "[{\"_id\": \"a\", \"owner\": \"Fry\", \"category\": \"homework\", "
+      + "\"body\": \"sit amet\", \"status\": true}, {\"_id\": \"b\"}, {\"owner\": \"Fry\", \"body\": \"\"}, "
+      + "{\"_id\": \"d\", \"category\": \"homework\", \"body\": \"sit\"}]");
+    TodoDatabase sparse = new TodoDatabase(dataFile.toString());
+
+    Todo[] todos = sparse.listTodos(new HashMap<>());
+    assertEquals(4, todos.length);
+    Todo missing = sparse.getTodo("b");
+    assertNull(missing.owner);
+    assertNull(missing.category);
+    assertNull(missing.body);
+    assertFalse(missing.status);
+    assertNull(todos[2]._id);
+    assertEquals("", todos[2].body);
+
+    assertArrayEquals(new String[] {"b", "d", null, "a"}, ids(sparse.listTodos(query("orderBy", "owner"))));
+    assertArrayEquals(new String[] {"b", null, "d", "a"}, ids(sparse.listTodos(query("orderBy", "body"))));
+    assertArrayEquals(new String[] {"a", "d"}, ids(sparse.listTodos(query("contains", "sit"))));
+    assertArrayEquals(new String[] {"a", null}, ids(sparse.listTodos(query("owner", "Fry"))));
+    // Pages resume after a todo with a missing sort key.
+    Map<String, List<String>> firstPage = query("orderBy", "category", "limit", "1");
+    TodoQueryResult first = sparse.queryTodos(firstPage);
+    Map<String, List<String>> nextPage = query("orderBy", "category", "limit", "10", "after", first.nextCursor());
+    assertEquals(1, first.size());
+    assertEquals(3, sparse.listTodos(nextPage).length);
+    assertEquals(2, sparse.todoStats(query("groupBy", "owner")).groups.size());
+  }
+
+  /**
+   * A store built with `withChanges` (which copies the unchanged todos
+   * across column by column) holds exactly what a store built from
+   * scratch over the same todos does.
+   */
+  @Test
+  public void changedStoresMatchStoresBuiltFromScratch() {
+    Random random = new Random(3601);
+    List<Todo> todos = new ArrayList<>(Arrays.asList(oracleTodos));
+    // Some todos missing fields, so `null`s get copied too.
+    todos.get(3).owner = null;
+    todos.get(4).body = null;
+    todos.get(5).category = null;
+    TodoStore store = new TodoStore(todos.toArray(new Todo[0]));
+    for (int round = 0; round < 5; round++) {
+      Map<Integer, Todo> replacements = new HashMap<>();
+      for (int i = 0; i < 10; i++) {
+        int position = random.nextInt(todos.size());
+        Todo replacement = random.nextInt(3) == 0 ? null
+          : todo(OWNERS[random.nextInt(OWNERS.length)], random.nextBoolean(), "changed " + round + " " + i, "new");
+        if (replacement != null) {
+          replacement._id = todos.get(position)._id;
+        }
+        replacements.put(position, replacement);
+      }
+      List<Todo> additions = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        Todo addition = todo("Added", true, "added " + round + " " + i, round % 2 == 0 ? null : "added");
+        addition._id = "added" + round + i;
+        additions.add(addition);
+      }
+      store = store.withChanges(replacements, additions);
+
+      List<Todo> expected = new ArrayList<>();
+      for (int position = 0; position < todos.size(); position++) {
+        if (!replacements.containsKey(position)) {
+          expected.add(todos.get(position));
+        } else if (replacements.get(position) != null) {
+          expected.add(replacements.get(position));
+        }
+      }
+      expected.addAll(additions);
+      todos = expected;
+      TodoStore scratch = new TodoStore(todos.toArray(new Todo[0]));
+
+      assertEquals(scratch.size(), store.size());
+      for (int position = 0; position < store.size(); position++) {
+        assertEquals(scratch.todoAt(position), store.todoAt(position));
+      }
+      for (String field : ORDERS) {
+        assertArrayEquals(scratch.sortOrder(field), store.sortOrder(field), field);
+      }
+      for (String owner : new String[] {"Fry", "Added", null}) {
+        assertArrayEquals(scratch.positionsWithOwner(owner), store.positionsWithOwner(owner));
+      }
+      assertArrayEquals(scratch.bodyCandidates("changed"), store.bodyCandidates("changed"));
+      assertEquals(scratch.countWithStatus(true), store.countWithStatus(true));
+      assertEquals(scratch.stats("category", null).groups.size(), store.stats("category", null).groups.size());
+    }
+    // Building a store from scratch builds it just once.
+    long version = new TodoStore(new Todo[0]).version();
+    assertEquals(version + 1, new TodoStore(new Todo[0]).version());
+  }
+
+  @Test
+  public void reloadsSwapInTheNewTodos() throws IOException {
+    Path dataFile = tempDir.resolve("todos.json");
+    Todo old = todo("Fry", true, "old", "reloads");
+    old._id = "old1";
+    new ObjectMapper().writeValue(dataFile.toFile(), new Todo[] {old});
+    TodoDatabase reloading = new TodoDatabase(dataFile.toString());
+    long version = reloading.version();
+    Iterator<Todo> inFlight = reloading.queryTodos(query("category", "reloads")).iterator();
+
+    Todo[] next = {todo("Blanche", false, "new", "reloads"), todo("Barry", true, "newer", "reloads")};
+    next[0]._id = "new1";
+    next[1]._id = "new2";
+    new ObjectMapper().writeValue(dataFile.toFile(), next);
+    reloading.reload(dataFile.toString());
+    assertTrue(reloading.version() > version);
+    assertArrayEquals(new String[] {"new1", "new2"}, ids(reloading.listTodos(query("category", "reloads"))));
+    assertEquals("Blanche", reloading.getTodo("new1").owner);
+    // A query that started before the reload finishes with the old todos.
+    assertEquals("old", inFlight.next().body);
+    assertFalse(inFlight.hasNext());
+    assertEquals(1, reloading.reloads().count());
+
+    // A data file that can't be read leaves the todos as they were.
+    Files.writeString(dataFile, "[{\"owner\": ");
+    assertThrows(IOException.class, () -> reloading.reload(dataFile.toString()));
+    assertEquals(2, reloading.size());
+    assertEquals(1, reloading.reloads().count());
+    assertEquals(1, reloading.reloads().failures());
+  }
+}
@@ -0,0 +1,284 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.Main;
+
+/**
+ * Tests of logging writes to the todos with a `TodoLog`: replaying them
+ * when the database is next constructed, compaction, and recovering from
+ * partly written logs.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoLogSpec {
+  // Big enough that the tests decide when the log is compacted.
+  private static final long NEVER_COMPACT = Long.MAX_VALUE;
+
+  @TempDir
+  private Path tempDir;
+
+  private Path snapshotFile;
+  private Path logFile;
+  private List<TodoDatabase> databases = new ArrayList<>();
+
+  @BeforeEach
+  public void setUp() {
+    snapshotFile = tempDir.resolve("todos.snapshot");
+    logFile = tempDir.resolve("todos.log");
+  }
+
+  @AfterEach
+  public void closeDatabases() throws IOException {
+    for (TodoDatabase db : databases) {
+      db.close();
+    }
+  }
+
+  private TodoDatabase open(Duration syncInterval, long compactionBytes) throws IOException {
+    TodoDatabase db = new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile, logFile, syncInterval, compactionBytes);
+    databases.add(db);
+    return db;
+  }
+
+  private TodoDatabase open() throws IOException {
+    return open(Duration.ZERO, NEVER_COMPACT);
+  }
+
+  private static Todo todo(String owner, String body) {
+    Todo todo = new Todo();
+    todo.owner = owner;
+    todo.body = body;
+    todo.category = "logging";
+    return todo;
+  }
+
+  private static void makeSomeWrites(TodoDatabase db) {
+    String added = db.addTodo(todo("Writer", "added"))._id;
+    db.updateTodo(added, todo -> {
+      todo.status = true;
+      return todo;
+    });
+    db.updateTodo("58895985c1849992336c219b", todo -> {
+      todo.body = "changed";
+      return todo;
+    });
+    db.deleteTodo("58895985ae3b752b124e7663");
+  }
+
+  private static void assertSameTodos(TodoDatabase expected, TodoDatabase actual) {
+    assertEquals(expected.size(), actual.size());
+    assertArrayEquals(expected.listTodos(new HashMap<>()), actual.listTodos(new HashMap<>()));
+  }
+
+  @Test
+  public void writesSurviveRestarts() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    first.close();
+
+    TodoDatabase second = open();
+    assertSameTodos(first, second);
+    assertEquals("changed", second.getTodo("58895985c1849992336c219b").body);
+    assertNull(second.getTodo("58895985ae3b752b124e7663"));
+    // New writes carry on from the replayed ones.
+    second.addTodo(todo("Writer", "after restart"));
+    second.close();
+    assertSameTodos(second, open());
+  }
+
+  @Test
+  public void writesAreReplayedOnTopOfCompactedSnapshots() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    long logged = Files.size(logFile);
+    first.compact();
+    assertTrue(Files.size(logFile) < logged);
+    first.addTodo(todo("Writer", "after compaction"));
+    first.close();
+
+    assertSameTodos(first, open());
+  }
+
+  @Test
+  public void writesWithoutASnapshotAreReplayedOnTheDataFile() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    first.close();
+    Files.delete(snapshotFile);
+    assertSameTodos(first, open());
+  }
+
+  @Test
+  public void writesAlreadyInTheSnapshotAreNotReplayedAgain() throws IOException {
+    // As if the server crashed after compaction wrote the snapshot but
+    // before it dropped the writes from the log. The snapshot is really of
+    // the data file, so we can tell that only later writes are replayed.
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    String added = first.addTodo(todo("Writer", "added after the snapshot"))._id;
+    first.close();
+    TodoStore original = new TodoStore(new TodoDatabase(Main.TODO_DATA_FILE).listTodos(new HashMap<>()));
+    TodoSnapshot.write(original, snapshotFile, TodoSnapshot.checksum(Main.TODO_DATA_FILE), 4);
+
+    TodoDatabase second = open();
+    assertEquals(original.size() + 1, second.size());
+    assertNotNull(second.getTodo(added));
+    assertNotNull(second.getTodo("58895985ae3b752b124e7663"));
+    assertEquals(0, second.listTodos(Map.of("contains", List.of("changed"))).length);
+  }
+
+  @Test
+  public void partlyWrittenRecordsAreIgnored() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    long complete = Files.size(logFile);
+    first.addTodo(todo("Writer", "torn"));
+    first.close();
+    // Cut the last record short, as if the server crashed writing it.
+    try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+      channel.truncate(Files.size(logFile) - 5);
+    }
+
+    TodoDatabase second = open();
+    assertEquals(0, second.listTodos(Map.of("contains", List.of("torn"))).length);
+    assertEquals(complete, Files.size(logFile));
+    // New writes go after the last complete record.
+    second.addTodo(todo("Writer", "after the torn one"));
+    second.close();
+    assertSameTodos(second, open());
+  }
+
+  @Test
+  public void corruptRecordsAreIgnored() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    first.close();
+    byte[] log = Files.readAllBytes(logFile);
+    log[log.length - 3] ^= 1;
+    Files.write(logFile, log);
+
+    TodoDatabase second = open();
+    // The last write (the delete) is lost.
+    assertEquals(first.size() + 1, second.size());
+  }
+
+  @Test
+  public void refusesToSkipWritesThatAreOnlyInALostSnapshot() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    first.compact();
+    first.addTodo(todo("Writer", "after compaction"));
+    first.close();
+    Files.delete(snapshotFile);
+
+    assertThrows(IOException.class, () -> open());
+  }
+
+  @Test
+  public void logsOfOtherDataFilesAreDiscarded() throws IOException {
+    TodoDatabase first = open();
+    makeSomeWrites(first);
+    first.close();
+
+    Path todoFile = tempDir.resolve("todos.json");
+    Files.writeString(todoFile, "[]");
+    TodoDatabase other = new TodoDatabase(todoFile.toString(), snapshotFile, logFile, Duration.ZERO, NEVER_COMPACT);
+    databases.add(other);
+    assertEquals(0, other.size());
+    assertTrue(Files.exists(tempDir.resolve("todos.log.discarded")));
+  }
+
+  @Test
+  public void periodicallySyncedWritesSurviveRestarts() throws Exception {
+    TodoDatabase first = open(Duration.ofMillis(5), NEVER_COMPACT);
+    makeSomeWrites(first);
+    // Give the syncer a chance to run.
+    Thread.sleep(20);
+    first.addTodo(todo("Writer", "synced on close"));
+    first.close();
+    assertSameTodos(first, open());
+  }
+
+  @Test
+  public void largeLogsAreCompactedInTheBackground() throws Exception {
+    TodoDatabase first = open(Duration.ZERO, 1);
+    long emptyLog = Files.size(logFile);
+    makeSomeWrites(first);
+    long deadline = System.currentTimeMillis() + 10_000;
+    while (Files.size(logFile) > emptyLog && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    first.close();
+    assertEquals(emptyLog, Files.size(logFile));
+    assertSameTodos(first, open());
+  }
+
+  @Test
+  public void concurrentWritesAreAllLogged() throws Exception {
+    TodoDatabase first = open();
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<?>> writers = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        String owner = "Writer " + t;
+        writers.add(pool.submit(() -> {
+          for (int i = 0; i < 25; i++) {
+            first.addTodo(todo(owner, "body " + i));
+          }
+          return null;
+        }));
+      }
+      for (Future<?> writer : writers) {
+        writer.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+    first.close();
+    TodoDatabase second = open();
+    assertEquals(100, second.listTodos(Map.of("category", List.of("logging"))).length);
+    assertSameTodos(first, second);
+  }
+
+  @Test
+  public void writesFailOnceTheLogIsClosed() throws IOException {
+    TodoDatabase db = open();
+    db.close();
+    assertThrows(UncheckedIOException.class, () -> db.addTodo(todo("Writer", "too late")));
+    assertEquals(0, db.listTodos(Map.of("contains", List.of("too late"))).length);
+  }
+
+  @Test
+  public void loggedTodosCantBeReloaded() throws IOException {
+    TodoDatabase db = open();
+    // The log holds writes the data file doesn't, which a reload would
+    // lose.
+    assertThrows(IllegalStateException.class, () -> db.reload(Main.TODO_DATA_FILE));
+    assertEquals(0, db.reloads().count());
+  }
+}
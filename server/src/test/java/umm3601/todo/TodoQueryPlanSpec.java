@@ -0,0 +1,199 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Tests of the plans `TodoQueryPlan` chooses, and of the results of
+ * queries run with each kind of plan, on todos whose fields have known
+ * frequencies.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoQueryPlanSpec {
+  private static final int SIZE = 1000;
+  private static final String[] OWNERS = {"Ann", "Bob", "Cat", "Dan"};
+  private static final String[] CATEGORIES = {"one", "two", "three", "four", "five"};
+
+  @TempDir
+  private Path tempDir;
+
+  private Todo[] todos;
+  private TodoDatabase db;
+
+  // A thousand todos, spread evenly over four owners, five categories and
+  // both statuses. Every body contains "common", a quarter (the same
+  // quarter as have one of the owners) contain "qqq", and three contain
+  // "xylophone".
+  @BeforeEach
+  public void setUp() throws IOException {
+    todos = new Todo[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      Todo todo = new Todo();
+      todo._id = String.format("%024x", i);
+      todo.owner = OWNERS[i % OWNERS.length];
+      todo.category = CATEGORIES[i % CATEGORIES.length];
+      todo.status = i % 2 == 0;
+      todo.body = "common words " + (i * 7919 % SIZE) + (i % 4 == 1 ? " qqq" : "")
+        + (i % 400 == 1 ? " xylophone" : "");
+      todos[i] = todo;
+    }
+    Path dataFile = tempDir.resolve("todos.json");
+    new ObjectMapper().writeValue(dataFile.toFile(), todos);
+    db = new TodoDatabase(dataFile.toString());
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], Arrays.asList(keysAndValues[i + 1]));
+    }
+    return queryParams;
+  }
+
+  // Each step of the plan for a query, as `access: filter`.
+  private List<String> steps(Map<String, List<String>> queryParams) {
+    return db.explainTodos(queryParams).filters.stream().map(step -> step.access + ": " + step.filter).toList();
+  }
+
+  private String[] ids(Predicate<Todo> filter, Comparator<Todo> order) {
+    return Arrays.stream(todos).filter(filter).sorted(order).map(todo -> todo._id).toArray(String[]::new);
+  }
+
+  private static String[] ids(Todo[] found) {
+    return Arrays.stream(found).map(todo -> todo._id).toArray(String[]::new);
+  }
+
+  @Test
+  public void theSmallestIndexDrivesAndTheRestAreChecked() {
+    Map<String, List<String>> queryParams = query("owner", "Ann", "category", "two", "status", "complete");
+    TodoQueryPlan plan = db.explainTodos(queryParams);
+    assertEquals(List.of("index: category = two", "check: owner = Ann", "check: status = complete"),
+      steps(queryParams));
+    // The index's estimate is exact.
+    assertEquals(200, plan.filters.get(0).estimatedRows);
+    assertEquals(ids(todo -> todo.owner.equals("Ann") && todo.category.equals("two") && todo.status,
+      Comparator.comparing(todo -> todo._id)).length, plan.rows);
+    assertNull(plan.orderBy);
+  }
+
+  @Test
+  public void statusAloneIsAScan() {
+    assertEquals(List.of("scan: every todo", "check: status = incomplete"), steps(query("status", "incomplete")));
+  }
+
+  @Test
+  public void bodiesAreSearchedLast() {
+    assertEquals(List.of("index: owner = Bob", "check: status = incomplete", "check: body contains 'common'"),
+      steps(query("contains", "common", "status", "incomplete", "owner", "Bob")));
+  }
+
+  @Test
+  public void unselectiveTrigramsAreNotUsed() {
+    // Every todo has the trigrams of "common", so searching the owner's
+    // bodies is cheaper than the trigram index.
+    assertEquals(List.of("index: owner = Bob", "check: body contains 'common'"),
+      steps(query("owner", "Bob", "contains", "common")));
+    // A string too short to have trigrams can only be searched for.
+    assertEquals(List.of("scan: every todo", "check: body contains 'qq'"), steps(query("contains", "qq")));
+  }
+
+  @Test
+  public void selectiveTrigramsNarrowTheTodosDown() {
+    // A fifth of the todos are in the category, and a quarter of those
+    // contain "qqq", so the trigram index saves most of the searches.
+    Map<String, List<String>> queryParams = query("category", "two", "contains", "qqq");
+    assertEquals(List.of("index: category = two", "trigram index: body contains 'qqq'",
+      "check: body contains 'qqq'"), steps(queryParams));
+    assertArrayEquals(ids(todo -> todo.category.equals("two") && todo.body.contains("qqq"),
+      Comparator.comparing(todo -> todo._id)), ids(db.listTodos(queryParams)));
+  }
+
+  @Test
+  public void rareTrigramsDriveTheQuery() {
+    Map<String, List<String>> queryParams = query("owner", "Bob", "contains", "Xylophone", "ignoreCase", "true");
+    assertEquals(List.of("trigram index: body contains 'Xylophone' (ignoring case)", "check: owner = Bob",
+      "check: body contains 'Xylophone' (ignoring case)"), steps(queryParams));
+    assertArrayEquals(ids(todo -> todo.owner.equals("Bob") && todo.body.contains("xylophone"),
+      Comparator.comparing(todo -> todo._id)), ids(db.listTodos(queryParams)));
+  }
+
+  @Test
+  public void pagesOfTodosOrderedByAFilteredFieldUseATopKHeap() {
+    Map<String, List<String>> queryParams = query("owner", "Dan", "orderBy", "owner", "limit", "5");
+    assertEquals("top 6 heap", db.explainTodos(queryParams).order);
+    assertPagesMatch(queryParams, todo -> todo.owner.equals("Dan"), Comparator.comparing(todo -> todo._id));
+  }
+
+  @Test
+  public void pagesOfTodosOrderedByAnotherFieldWalkTheSortOrder() {
+    Map<String, List<String>> queryParams = query("status", "complete", "orderBy", "body", "limit", "5");
+    assertEquals("sort order walk", db.explainTodos(queryParams).order);
+    assertPagesMatch(queryParams, todo -> todo.status,
+      Comparator.comparing((Todo todo) -> todo.body).thenComparing(todo -> todo._id));
+  }
+
+  @Test
+  public void allOfAFewTodosHaveTheirRanksSorted() {
+    Map<String, List<String>> queryParams = query("contains", "xylophone", "orderBy", "body");
+    TodoQueryPlan plan = db.explainTodos(queryParams);
+    assertEquals("sorted ranks", plan.order);
+    assertEquals("body", plan.orderBy);
+    assertArrayEquals(ids(todo -> todo.body.contains("xylophone"),
+      Comparator.comparing((Todo todo) -> todo.body).thenComparing(todo -> todo._id)),
+      ids(db.listTodos(queryParams)));
+  }
+
+  @Test
+  public void everyTodoUsesTheSortOrder() {
+    assertEquals("sort order", db.explainTodos(query("orderBy", "category", "limit", "3")).order);
+  }
+
+  @Test
+  public void bigChecksAreSplitOverThreads() {
+    db.setParallelScan(new ParallelScan(4, 100, 64));
+    Map<String, List<String>> queryParams = query("contains", "qq", "status", "incomplete");
+    TodoQueryPlan plan = db.explainTodos(queryParams);
+    assertEquals(List.of("scan: every todo", "check: status = incomplete", "check: body contains 'qq'"),
+      steps(queryParams));
+    // Checking the statuses of every todo reads the status bits instead.
+    assertFalse(plan.filters.get(1).parallel);
+    assertTrue(plan.filters.get(2).parallel);
+    assertArrayEquals(ids(todo -> !todo.status && todo.body.contains("qq"), Comparator.comparing(todo -> todo._id)),
+      ids(db.listTodos(queryParams)));
+  }
+
+  // Page through the query's results with cursors, checking they match
+  // the oracle's.
+  private void assertPagesMatch(Map<String, List<String>> queryParams, Predicate<Todo> filter,
+      Comparator<Todo> order) {
+    List<String> paged = new ArrayList<>();
+    Map<String, List<String>> pageParams = new HashMap<>(queryParams);
+    String cursor;
+    do {
+      TodoQueryResult page = db.queryTodos(pageParams);
+      paged.addAll(Arrays.asList(ids(page.toArray())));
+      cursor = page.nextCursor();
+      pageParams.put("after", List.of(cursor == null ? "" : cursor));
+    } while (cursor != null);
+    assertEquals(Arrays.asList(ids(filter, order)), paged);
+  }
+}
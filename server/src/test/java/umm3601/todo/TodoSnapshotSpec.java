@@ -0,0 +1,163 @@
+package umm3601.todo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import umm3601.Main;
+
+/**
+ * Tests of writing binary snapshots of a `TodoStore` and reading them
+ * back, including falling back to the data file when a snapshot can't be
+ * used.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class TodoSnapshotSpec {
+  @TempDir
+  private Path tempDir;
+
+  private Path snapshotFile;
+  private long checksum;
+  private TodoDatabase jsonDatabase;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    snapshotFile = tempDir.resolve("todos.snapshot");
+    checksum = TodoSnapshot.checksum(Main.TODO_DATA_FILE);
+    jsonDatabase = new TodoDatabase(Main.TODO_DATA_FILE);
+  }
+
+  private static Map<String, List<String>> query(String key, String value) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put(key, Arrays.asList(value));
+    return queryParams;
+  }
+
+  private static void assertSameResults(TodoDatabase expected, TodoDatabase actual) {
+    assertEquals(expected.size(), actual.size());
+    assertArrayEquals(expected.listTodos(new HashMap<>()), actual.listTodos(new HashMap<>()));
+    for (String field : new String[] {"owner", "category", "body", "status"}) {
+      assertArrayEquals(expected.listTodos(query("orderBy", field)), actual.listTodos(query("orderBy", field)));
+    }
+    assertArrayEquals(expected.listTodos(query("owner", "Fry")), actual.listTodos(query("owner", "Fry")));
+    assertArrayEquals(expected.listTodos(query("contains", "magna")), actual.listTodos(query("contains", "magna")));
+    assertEquals(expected.getTodo("58895985c1849992336c219b"), actual.getTodo("58895985c1849992336c219b"));
+  }
+
+  @Test
+  public void writesSnapshotOnFirstLoadAndReadsItAfterwards() throws IOException {
+    TodoDatabase first = new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile);
+    assertTrue(Files.isRegularFile(snapshotFile));
+    assertSameResults(jsonDatabase, first);
+
+    assertNotNull(TodoSnapshot.read(snapshotFile, checksum));
+    TodoDatabase second = new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile);
+    assertSameResults(jsonDatabase, second);
+  }
+
+  @Test
+  public void roundTripsNullValues() throws IOException {
+    Todo todo = new Todo();
+    todo._id = "1";
+    todo.owner = "Fry";
+    todo.body = "body";
+    Todo sparse = new Todo();
+    sparse._id = "2";
+    Todo empty = new Todo();
+    empty.owner = "";
+    empty.category = "";
+    empty.body = "";
+    Todo[] todos = {todo, sparse, empty};
+    TodoSnapshot.write(new TodoStore(todos), snapshotFile, 42);
+    TodoStore store = TodoSnapshot.read(snapshotFile, 42);
+    assertNull(store.getTodo("1").category);
+    assertEquals(todo, store.getTodo("1"));
+    // `null` and empty strings are kept apart.
+    for (int position = 0; position < todos.length; position++) {
+      assertEquals(todos[position], store.todoAt(position));
+    }
+  }
+
+  @Test
+  public void ignoresMissingSnapshot() {
+    assertNull(TodoSnapshot.read(snapshotFile, checksum));
+  }
+
+  @Test
+  public void ignoresSnapshotOfAnotherDataFile() throws IOException {
+    new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile);
+    assertNull(TodoSnapshot.read(snapshotFile, checksum + 1));
+
+    // The database falls back to the data file and replaces the stale snapshot.
+    Path todoFile = tempDir.resolve("todos.json");
+    Files.writeString(todoFile, "[]");
+    TodoDatabase empty = new TodoDatabase(todoFile.toString(), snapshotFile);
+    assertEquals(0, empty.size());
+    assertEquals(0, TodoSnapshot.read(snapshotFile, TodoSnapshot.checksum(todoFile.toString())).size());
+  }
+
+  @Test
+  public void ignoresCorruptOrForeignSnapshots() throws IOException {
+    new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile);
+    byte[] snapshot = Files.readAllBytes(snapshotFile);
+
+    byte[] corrupt = snapshot.clone();
+    corrupt[corrupt.length / 2] ^= 1;
+    Files.write(snapshotFile, corrupt);
+    assertNull(TodoSnapshot.read(snapshotFile, checksum));
+    assertSameResults(jsonDatabase, new TodoDatabase(Main.TODO_DATA_FILE, snapshotFile));
+
+    Files.write(snapshotFile, Arrays.copyOf(snapshot, snapshot.length - 10));
+    assertNull(TodoSnapshot.read(snapshotFile, checksum));
+
+    Files.writeString(snapshotFile, "[{\"_id\": \"not a snapshot\"}]");
+    assertNull(TodoSnapshot.read(snapshotFile, checksum));
+
+    Files.write(snapshotFile, new byte[3]);
+    assertNull(TodoSnapshot.read(snapshotFile, checksum));
+  }
+
+  @Test
+  public void ignoresSnapshotWithBadPayload() throws IOException {
+    // A payload that passes its checksum but isn't a valid store, as a
+    // buggy writer might produce.
+    TodoSnapshot.write(new TodoStore(new Todo[0]), snapshotFile, checksum);
+    byte[] snapshot = Files.readAllBytes(snapshotFile);
+    byte[] payload = Arrays.copyOfRange(snapshot, 40, snapshot.length);
+    payload[3] = 100;
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer.wrap(snapshot).putLong(24, crc.getValue()).put(40 + 3, (byte) 100);
+    Files.write(snapshotFile, snapshot);
+    assertNull(TodoSnapshot.read(snapshotFile, checksum));
+  }
+
+  @Test
+  public void startsWithoutSnapshotIfItCannotBeWritten() throws IOException {
+    Path unwritable = tempDir.resolve("missing-directory").resolve("todos.snapshot");
+    assertSameResults(jsonDatabase, new TodoDatabase(Main.TODO_DATA_FILE, unwritable));
+    assertTrue(!Files.exists(unwritable));
+  }
+
+  @Test
+  public void buildsControllerFromSnapshot() throws IOException {
+    assertNotNull(TodoController.buildTodoController(Main.TODO_DATA_FILE, snapshotFile));
+    assertTrue(Files.isRegularFile(snapshotFile));
+  }
+}
@@ -0,0 +1,40 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the order and ranges of a `SortedIndex`.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class SortedIndexSpec {
+  private static int[] order(SortedIndex index, int size) {
+    return IntStream.range(0, size).map(index::positionAt).toArray();
+  }
+
+  @Test
+  public void sortsIntsThenPositions() {
+    int[] ages = {25, -3, 25, Integer.MAX_VALUE, 0, Integer.MIN_VALUE, -3};
+    SortedIndex index = SortedIndex.ofInts(ages);
+    assertArrayEquals(new int[] {5, 1, 6, 4, 0, 2, 3}, order(index, ages.length));
+    for (int rank = 0; rank < ages.length; rank++) {
+      assertEquals(rank, index.rankOf(index.positionAt(rank)));
+    }
+    assertArrayEquals(new int[] {1, 3}, index.between(-3, -1));
+    assertArrayEquals(new int[] {3, 6}, index.between(0, 25));
+  }
+
+  @Test
+  public void sortsStringsThenPositions() {
+    String[] names = {"connie", "Blanche", null, "Connie", "bob", ""};
+    SortedIndex index = SortedIndex.ofStrings(names, true);
+    // Null is indexed as the empty string, and case is ignored.
+    assertArrayEquals(new int[] {2, 5, 1, 4, 0, 3}, order(index, names.length));
+    assertArrayEquals(new int[] {4, 6}, index.equalTo("CONNIE"));
+    assertArrayEquals(new int[] {2, 4}, index.withPrefix("b"));
+  }
+}
@@ -1,11 +1,16 @@
 package umm3601.user;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -20,12 +25,22 @@ import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import io.javalin.Javalin;
 import io.javalin.http.BadRequestResponse;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Header;
 import io.javalin.http.HttpStatus;
 import io.javalin.http.NotFoundResponse;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import umm3601.Cursor;
+import umm3601.ETags;
 import umm3601.Main;
+import umm3601.Metrics;
+import umm3601.ResponseCache;
 
 /**
  * Tests the logic of the UserController
@@ -111,6 +126,18 @@ public class UserControllerSpec {
     });
   }
 
+  /**
+   * Verify that a data file with two users sharing the same `_id`
+   * is rejected when the database is loaded.
+   */
+  @Test
+  public void buildControllerFailsWithDuplicateIds() {
+    Throwable exception = Assertions.assertThrows(IOException.class, () -> {
+      UserController.buildUserController("/duplicate-users.json");
+    });
+    assertEquals("Duplicate user id 588935f57546a2daea44de7c in /duplicate-users.json", exception.getMessage());
+  }
+
   /**
    * Confirm that we can get all the users.
    *
@@ -270,4 +297,271 @@ public class UserControllerSpec {
     });
     assertEquals("No user with id " + null + " was found.", exception.getMessage());
   }
+
+  /**
+   * A `ServletOutputStream` that just collects what's written to it,
+   * for checking streamed responses.
+   */
+  private static ServletOutputStream collectingOutputStream(ByteArrayOutputStream out) {
+    return new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        out.write(b);
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+      }
+    };
+  }
+
+  /**
+   * Confirm that a list of more users than the streaming threshold is
+   * written straight to the response output stream instead of being
+   * passed to `json`.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void canStreamListsOfUsers() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    when(ctx.outputStream()).thenReturn(collectingOutputStream(out));
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    // There are two users at OHMNET.
+    new UserController(db, 1).getUsers(ctx);
+
+    verify(ctx).contentType(ContentType.APPLICATION_JSON);
+    verify(ctx, Mockito.never()).json(any());
+    User[] streamed = new ObjectMapper().readValue(out.toByteArray(), User[].class);
+    User[] expected = db.listUsers(queryParams);
+    assertEquals(expected.length, streamed.length);
+    for (int i = 0; i < expected.length; i++) {
+      assertEquals(expected[i]._id, streamed[i]._id);
+      assertEquals("OHMNET", streamed[i].company);
+    }
+  }
+
+  /**
+   * Confirm that we can page through the users with `limit` and the
+   * cursors from the `Link` headers, and end up with every user once.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void canPageThroughUsers() throws IOException {
+    List<String> seen = new ArrayList<>();
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"3"}));
+    while (true) {
+      UserQueryResult page = db.queryUsers(queryParams);
+      User[] users = page.toArray();
+      assertTrue(users.length <= 3);
+      for (User user : users) {
+        seen.add(user._id);
+      }
+      if (page.nextCursor() == null) {
+        break;
+      }
+      queryParams.put("after", Arrays.asList(new String[] {page.nextCursor()}));
+    }
+    List<String> expected = new ArrayList<>();
+    for (User user : db.listUsers(new HashMap<>())) {
+      expected.add(user._id);
+    }
+    assertEquals(expected, seen);
+
+    // A limit of zero gives an empty page with no next link.
+    assertEquals(null, db.queryUsers(Map.of("limit", Arrays.asList(new String[] {"0"}))).nextCursor());
+  }
+
+  /**
+   * Confirm that a limited list of users comes with a `Link` header for
+   * the next page.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void addsNextLinkToLimitedUsers() throws IOException {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    queryParams.put("limit", Arrays.asList(new String[] {"1"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.path()).thenReturn("/api/users");
+
+    userController.getUsers(ctx);
+
+    verify(ctx).json(userArrayCaptor.capture());
+    assertEquals(1, userArrayCaptor.getValue().length);
+    ArgumentCaptor<String> linkCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.LINK), linkCaptor.capture());
+    assertTrue(linkCaptor.getValue().contains("company=OHMNET"));
+    assertTrue(linkCaptor.getValue().contains("&after="));
+  }
+
+  /**
+   * Test that bad `limit` and `after` parameters get a reasonable error
+   * code back.
+   */
+  @Test
+  public void respondsAppropriatelyToIllegalPaging() {
+    assertThrows(BadRequestResponse.class, () -> db.listUsers(Map.of("limit", Arrays.asList(new String[] {"abc"}))));
+    assertThrows(BadRequestResponse.class, () -> db.listUsers(Map.of("limit", Arrays.asList(new String[] {"-3"}))));
+    assertThrows(BadRequestResponse.class, () -> db.listUsers(Map.of("after", Arrays.asList(new String[] {"???"}))));
+    assertThrows(BadRequestResponse.class,
+      () -> db.listUsers(Map.of("after", Arrays.asList(new String[] {Cursor.encode("nobody")}))));
+  }
+
+  /**
+   * Confirm that repeating a query is answered from the response cache,
+   * without running the query again.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void answersRepeatedQueriesFromCache() throws IOException {
+    UserDatabase spiedDb = Mockito.spy(db);
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    UserController controller = new UserController(spiedDb, UserController.STREAMING_THRESHOLD, cache);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    controller.getUsers(ctx);
+    controller.getUsers(ctx);
+
+    verify(spiedDb, Mockito.times(1)).queryUsers(any());
+    verify(ctx, Mockito.never()).json(any());
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    User[] users = new ObjectMapper().readValue(bodyCaptor.getValue(), User[].class);
+    assertEquals(db.listUsers(queryParams).length, users.length);
+    assertEquals(1, cache.hits());
+    assertEquals(1, cache.misses());
+  }
+
+  /**
+   * Confirm that a short page of users from a database larger than the
+   * streaming threshold isn't streamed, but cached like any other short
+   * list.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void cachesShortPagesOfLargeDatabases() throws IOException {
+    ResponseCache cache = new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES);
+    UserController controller = new UserController(db, 5, cache);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("limit", Arrays.asList(new String[] {"3"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+    when(ctx.path()).thenReturn("/api/users");
+
+    assertTrue(db.size() > 5);
+    controller.getUsers(ctx);
+    controller.getUsers(ctx);
+
+    verify(ctx, Mockito.never()).outputStream();
+    ArgumentCaptor<byte[]> bodyCaptor = ArgumentCaptor.forClass(byte[].class);
+    verify(ctx, Mockito.times(2)).result(bodyCaptor.capture());
+    assertEquals(3, new ObjectMapper().readValue(bodyCaptor.getValue(), User[].class).length);
+    assertEquals(1, cache.misses());
+    assertEquals(1, cache.hits());
+  }
+
+  /**
+   * Confirm that a client which already has the current list gets a 304
+   * Not Modified, without the query being run.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void answersConditionalListRequestsWithNotModified() throws IOException {
+    UserDatabase spiedDb = Mockito.spy(db);
+    UserController controller = new UserController(spiedDb);
+    Map<String, List<String>> queryParams = new HashMap<>();
+    queryParams.put("company", Arrays.asList(new String[] {"OHMNET"}));
+    when(ctx.queryParamMap()).thenReturn(queryParams);
+
+    controller.getUsers(ctx);
+    ArgumentCaptor<String> etagCaptor = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), etagCaptor.capture());
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etagCaptor.getValue());
+    controller.getUsers(ctx);
+
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(spiedDb, Mockito.times(1)).queryUsers(any());
+    verify(ctx, Mockito.times(1)).json(any());
+  }
+
+  /**
+   * Confirm that a cached list sent gzipped has a different tag from the
+   * same list sent as it is, and that either tag is up to date.
+   *
+   * @throws IOException if there are problems reading from the "database" file.
+   */
+  @Test
+  public void tagsGzippedListsApart() throws IOException {
+    UserController controller = new UserController(db, UserController.STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
+    Context gzipCtx = Mockito.mock(Context.class);
+    when(gzipCtx.queryParamMap()).thenReturn(new HashMap<>());
+    when(gzipCtx.header(Header.ACCEPT_ENCODING)).thenReturn("gzip");
+    when(ctx.queryParamMap()).thenReturn(new HashMap<>());
+
+    controller.getUsers(gzipCtx);
+    controller.getUsers(ctx);
+
+    verify(gzipCtx).header(Header.CONTENT_ENCODING, "gzip");
+    verify(ctx, Mockito.never()).header(Mockito.eq(Header.CONTENT_ENCODING), any());
+    ArgumentCaptor<String> gzipTag = ArgumentCaptor.forClass(String.class);
+    verify(gzipCtx).header(Mockito.eq(Header.ETAG), gzipTag.capture());
+    ArgumentCaptor<String> identityTag = ArgumentCaptor.forClass(String.class);
+    verify(ctx).header(Mockito.eq(Header.ETAG), identityTag.capture());
+    assertNotEquals(identityTag.getValue(), gzipTag.getValue());
+
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(gzipTag.getValue());
+    controller.getUsers(ctx);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+  }
+
+  @Test
+  public void answersConditionalUserRequestsWithNotModified() throws IOException {
+    String id = "588935f5c668650dc77df581";
+    User user = db.getUser(id);
+    String etag = ETags.forContent(user._id, user.name, Integer.toString(user.age), user.company, user.email);
+    when(ctx.pathParam("id")).thenReturn(id);
+    when(ctx.header(Header.IF_NONE_MATCH)).thenReturn(etag);
+
+    userController.getUser(ctx);
+
+    verify(ctx).header(Header.ETAG, etag);
+    verify(ctx).status(HttpStatus.NOT_MODIFIED);
+    verify(ctx, Mockito.never()).json(any());
+  }
+
+  @Test
+  public void addsMetricsForQueries() throws IOException {
+    UserDatabase countedDb = new UserDatabase(Main.USER_DATA_FILE);
+    UserController controller = new UserController(countedDb, UserController.STREAMING_THRESHOLD,
+      new ResponseCache(ResponseCache.DEFAULT_MAX_BYTES));
+    Metrics metrics = new Metrics();
+    controller.addMetrics(metrics);
+    // The two users aged 25 come straight from the age index, and are
+    // then checked against the company.
+    int aged25AtOhmnet = countedDb.listUsers(Map.of("age", List.of("25"), "company", List.of("OHMNET"))).length;
+    // Without any filters, nothing is checked.
+    countedDb.listUsers(Map.of("limit", List.of("2")));
+
+    String scrape = metrics.scrape();
+    assertTrue(scrape.contains("rows_scanned_total{collection=\"users\"} 2\n"));
+    assertTrue(scrape.contains("rows_returned_total{collection=\"users\"} " + (aged25AtOhmnet + 2) + "\n"));
+    assertTrue(scrape.contains("response_cache_hits_total{cache=\"users\"} 0\n"));
+  }
 }
@@ -0,0 +1,256 @@
+package umm3601.user;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.javalin.http.BadRequestResponse;
+import umm3601.Cursor;
+
+/**
+ * Tests of the `UserDatabase`'s indexed queries, checking that their
+ * results match a simple (scan and sort) "oracle" implementation working
+ * on its own copy of the users.
+ */
+@SuppressWarnings({"MagicNumber"})
+public class UserDatabaseSpec {
+  private static final int SIZE = 500;
+  private static final String[] FIRST_NAMES = {"Connie", "connor", "Lynn", "Roseann", "Ron", "Ann"};
+  private static final String[] LAST_NAMES = {"Stewart", "Ferguson", "Roberson"};
+  private static final String[] COMPANIES = {"OHMNET", "NIQUENT", "ohmnet", "BITREX"};
+  private static final String[] ORDERS = {"", "name", "email", "age", "company"};
+  private static final String[] PREFIXES = {"con", "CONN", "r", "ann", "Ro", "x", ""};
+
+  @TempDir
+  private Path tempDir;
+
+  private User[] users;
+  private UserDatabase db;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    Random random = new Random(3601);
+    users = new User[SIZE];
+    for (int i = 0; i < SIZE; i++) {
+      User user = new User();
+      user._id = String.format("%024x", i);
+      String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+      String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+      user.name = first + " " + last;
+      user.age = 18 + random.nextInt(40);
+      user.company = COMPANIES[random.nextInt(COMPANIES.length)];
+      user.email = (first + last).toLowerCase(Locale.ROOT) + "@" + user.company.toLowerCase(Locale.ROOT) + ".com";
+      users[i] = user;
+    }
+    Path dataFile = tempDir.resolve("users.json");
+    new ObjectMapper().writeValue(dataFile.toFile(), users);
+    db = new UserDatabase(dataFile.toString());
+  }
+
+  private static Map<String, List<String>> query(String... keysAndValues) {
+    Map<String, List<String>> queryParams = new HashMap<>();
+    for (int i = 0; i < keysAndValues.length; i += 2) {
+      queryParams.put(keysAndValues[i], new ArrayList<>(List.of(keysAndValues[i + 1])));
+    }
+    return queryParams;
+  }
+
+  private static boolean startsWithIgnoringCase(String value, String prefix) {
+    return value.toLowerCase(Locale.ROOT).startsWith(prefix.toLowerCase(Locale.ROOT));
+  }
+
+  // The oracle: filter every user, then sort them.
+  private List<String> oracle(Map<String, List<String>> queryParams) {
+    Predicate<User> filter = user -> true;
+    if (queryParams.containsKey("age")) {
+      int age = Integer.parseInt(queryParams.get("age").get(0));
+      filter = filter.and(user -> user.age == age);
+    }
+    if (queryParams.containsKey("ageMin")) {
+      int ageMin = Integer.parseInt(queryParams.get("ageMin").get(0));
+      filter = filter.and(user -> user.age >= ageMin);
+    }
+    if (queryParams.containsKey("ageMax")) {
+      int ageMax = Integer.parseInt(queryParams.get("ageMax").get(0));
+      filter = filter.and(user -> user.age <= ageMax);
+    }
+    if (queryParams.containsKey("company")) {
+      String company = queryParams.get("company").get(0);
+      filter = filter.and(user -> user.company.equals(company));
+    }
+    if (queryParams.containsKey("name")) {
+      String name = queryParams.get("name").get(0);
+      filter = filter.and(user -> startsWithIgnoringCase(user.name, name));
+    }
+    if (queryParams.containsKey("email")) {
+      String email = queryParams.get("email").get(0);
+      filter = filter.and(user -> startsWithIgnoringCase(user.email, email));
+    }
+    // The sort is stable, so ties stay in their original order.
+    Comparator<User> order = switch (queryParams.containsKey("orderBy") ? queryParams.get("orderBy").get(0) : "") {
+      case "name" -> Comparator.comparing(user -> user.name.toLowerCase(Locale.ROOT));
+      case "email" -> Comparator.comparing(user -> user.email.toLowerCase(Locale.ROOT));
+      case "age" -> Comparator.comparingInt(user -> user.age);
+      case "company" -> Comparator.comparing(user -> user.company);
+      default -> (a, b) -> 0;
+    };
+    return Arrays.stream(users).filter(filter).sorted(order).map(user -> user._id).toList();
+  }
+
+  private static List<String> ids(User[] found) {
+    return Arrays.stream(found).map(user -> user._id).toList();
+  }
+
+  // Page through a query's results with cursors.
+  private List<String> paged(Map<String, List<String>> queryParams, int limit) {
+    List<String> paged = new ArrayList<>();
+    Map<String, List<String>> pageParams = new HashMap<>(queryParams);
+    pageParams.put("limit", List.of(Integer.toString(limit)));
+    while (true) {
+      UserQueryResult page = db.queryUsers(pageParams);
+      paged.addAll(ids(page.toArray()));
+      if (page.nextCursor() == null) {
+        return paged;
+      }
+      pageParams.put("after", List.of(page.nextCursor()));
+    }
+  }
+
+  @Test
+  public void randomQueriesMatchTheOracle() {
+    Random random = new Random(42);
+    for (int i = 0; i < 300; i++) {
+      Map<String, List<String>> queryParams = new HashMap<>();
+      if (random.nextInt(4) == 0) {
+        queryParams.put("age", List.of(Integer.toString(18 + random.nextInt(40))));
+      }
+      if (random.nextInt(3) == 0) {
+        queryParams.put("ageMin", List.of(Integer.toString(10 + random.nextInt(50))));
+      }
+      if (random.nextInt(3) == 0) {
+        queryParams.put("ageMax", List.of(Integer.toString(20 + random.nextInt(50))));
+      }
+      if (random.nextInt(3) == 0) {
+        queryParams.put("company", List.of(COMPANIES[random.nextInt(COMPANIES.length)]));
+      }
+      if (random.nextInt(3) == 0) {
+        queryParams.put("name", List.of(PREFIXES[random.nextInt(PREFIXES.length)]));
+      }
+      if (random.nextInt(4) == 0) {
+        queryParams.put("email", List.of(PREFIXES[random.nextInt(PREFIXES.length)]));
+      }
+      queryParams.put("orderBy", List.of(ORDERS[random.nextInt(ORDERS.length)]));
+
+      List<String> expected = oracle(queryParams);
+      assertEquals(expected, ids(db.listUsers(queryParams)), queryParams.toString());
+      assertEquals(expected, paged(queryParams, 1 + random.nextInt(40)), queryParams.toString());
+    }
+  }
+
+  @Test
+  public void ageRangesAndPrefixesMatch() {
+    Map<String, List<String>> queryParams = query("ageMin", "30", "ageMax", "35", "name", "CON", "orderBy", "age");
+    List<String> found = ids(db.listUsers(queryParams));
+    assertEquals(oracle(queryParams), found);
+    for (String id : found) {
+      User user = db.getUser(id);
+      assertEquals(true, user.age >= 30 && user.age <= 35 && user.name.toLowerCase(Locale.ROOT).startsWith("con"));
+    }
+    // An empty range, and a prefix nobody has.
+    assertEquals(List.of(), ids(db.listUsers(query("ageMin", "40", "ageMax", "30"))));
+    assertEquals(List.of(), ids(db.listUsers(query("email", "zzz"))));
+    assertEquals(List.of(), ids(db.listUsers(query("age", "30", "ageMax", "29"))));
+  }
+
+  @Test
+  public void onlyTheNarrowestRangeIsChecked() {
+    Map<String, List<String>> queryParams = query("company", "BITREX", "email", "ann");
+    int inRange = Math.min(oracle(query("company", "BITREX")).size(), oracle(query("email", "ann")).size());
+    int found = db.listUsers(queryParams).length;
+    assertEquals(oracle(queryParams).size(), found);
+    assertEquals(inRange, db.rowsScanned());
+    // A single filter's range is exactly its users, so there's nothing to
+    // check.
+    db.listUsers(query("ageMin", "50", "orderBy", "name"));
+    assertEquals(inRange, db.rowsScanned());
+  }
+
+  @Test
+  public void orderedPagesResumeAfterTheirCursor() {
+    Map<String, List<String>> queryParams = query("orderBy", "name", "ageMin", "40");
+    assertEquals(oracle(queryParams), paged(queryParams, 7));
+    // Only the next page's users (and one more) are looked at.
+    UserQueryResult first = db.queryUsers(query("orderBy", "email", "limit", "5"));
+    first.toArray();
+    Map<String, List<String>> next = query("orderBy", "email", "limit", "5", "after", first.nextCursor());
+    assertEquals(oracle(query("orderBy", "email")).subList(5, 10), ids(db.listUsers(next)));
+  }
+
+  @Test
+  public void rejectsBadRangesAndCursors() {
+    BadRequestResponse badAge = assertThrows(BadRequestResponse.class, () -> db.listUsers(query("ageMin", "old")));
+    assertEquals("Specified ageMin 'old' can't be parsed to an integer", badAge.getMessage());
+    assertThrows(BadRequestResponse.class, () -> db.listUsers(query("ageMax", "1.5")));
+    // A cursor from an ordered query can't be used with another ordering.
+    String cursor = db.queryUsers(query("orderBy", "age", "limit", "1")).nextCursor();
+    assertThrows(BadRequestResponse.class, () -> db.listUsers(query("orderBy", "name", "after", cursor)));
+    assertThrows(BadRequestResponse.class, () -> db.listUsers(query("after", Cursor.encode("", "nobody"))));
+  }
+
+  @Test
+  public void findsTheFirstUserWithAName() {
+    for (User user : users) {
+      assertEquals(Arrays.stream(users).filter(other -> other.name.equals(user.name)).findFirst().get()._id,
+        db.getUserByName(user.name)._id);
+    }
+    assertEquals(null, db.getUserByName("Nobody Atall"));
+  }
+
+  @Test
+  public void reloadsSwapInTheNewUsers() throws IOException {
+    long version = db.version();
+    UserQueryResult inFlight = db.queryUsers(query("company", "BITREX"));
+    Function<String, User> oldUsersByName = db.usersByName();
+    int bitrex = oracle(query("company", "BITREX")).size();
+
+    User[] next = Arrays.copyOf(users, 10);
+    Path dataFile = tempDir.resolve("users.json");
+    new ObjectMapper().writeValue(dataFile.toFile(), next);
+    db.reload(dataFile.toString());
+    assertTrue(db.version() > version);
+    assertEquals(10, db.size());
+    assertEquals(null, db.getUser(users[10]._id));
+    users = next;
+    assertEquals(oracle(query("orderBy", "name")), ids(db.listUsers(query("orderBy", "name"))));
+    // Anything that started before the reload finishes with the old users.
+    assertEquals(bitrex, inFlight.toArray().length);
+    assertEquals(users[0].name, oldUsersByName.apply(users[0].name).name);
+    assertEquals(1, db.reloads().count());
+
+    // A data file that can't be read leaves the users as they were.
+    Files.writeString(dataFile, "[{\"name\": ");
+    assertThrows(IOException.class, () -> db.reload(dataFile.toString()));
+    assertEquals(10, db.size());
+    assertEquals(1, db.reloads().failures());
+  }
+}